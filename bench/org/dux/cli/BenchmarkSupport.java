@@ -0,0 +1,39 @@
+package org.dux.cli;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Setup shared by the benchmarks of this package
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Sets up the logger that DuxCLI.main would, logging only warnings, so that the code under
+     * measurement can log without costing more than it does in a normal run
+     */
+    static void quietLogging() {
+        DuxCLI.logger = (Logger) LoggerFactory.getLogger(DuxCLI.class);
+        DuxCLI.logger.setLevel(Level.WARN);
+    }
+
+    static void deleteRecursively(Path directory) {
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    deleteRecursively(f.toPath());
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        directory.toFile().delete();
+    }
+}
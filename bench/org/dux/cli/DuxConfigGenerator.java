@@ -0,0 +1,79 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates synthetic configurations with the shape of real ones: mostly absolute paths under
+ * a few deep system directories, which share long prefixes, some paths relative to the project,
+ * a handful of links and the environment variables that name the directories.
+ * <p>
+ * The same seed always gives the same configuration. Run it directly to write one to a file:
+ * <pre>
+ *   DuxConfigGenerator OUTPUT_FILE [ENTRIES [SEED]]
+ * </pre>
+ */
+public final class DuxConfigGenerator {
+    public static final long DEFAULT_SEED = 20180621L;
+
+    private static final String[] DIRECTORIES = {
+            "/usr/lib/x86_64-linux-gnu", "/usr/include", "/usr/include/c++/12/bits",
+            "/usr/lib/gcc/x86_64-linux-gnu/12", "/usr/share/zoneinfo/America",
+            "/opt/sdk/jdk-17.0.2/lib", "/opt/sdk/jdk-17.0.2/include/linux",
+            "/home/builder/.m2/repository/com/google/guava/guava/31.1-jre",
+            "../third_party/protobuf/src/google/protobuf", "../third_party/zlib",
+    };
+    private static final String[] EXTENSIONS = {".h", ".so", ".so.6", ".jar", ".a", ".hpp", ".py", ""};
+    private static final String[] SYLLABLES = {"lib", "std", "proto", "base", "io", "util", "core", "net",
+            "alloc", "format", "crypto", "stream", "thread", "atomic", "hash", "map"};
+
+    private DuxConfigGenerator() {
+    }
+
+    /**
+     * @return a configuration with entries distinct entries, generated from seed
+     */
+    public static DuxConfiguration generate(int entries, long seed) {
+        Random random = new Random(seed);
+        DuxConfiguration config = new DuxConfiguration("generated", "make -j8 all");
+        byte[] hash = new byte[32];
+        for (int i = 0; i < entries; i++) {
+            String directory = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+            StringBuilder path = new StringBuilder(directory);
+            int depth = random.nextInt(3);
+            for (int d = 0; d < depth; d++) {
+                path.append('/').append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            path.append('/').append(SYLLABLES[random.nextInt(SYLLABLES.length)])
+                    .append(SYLLABLES[random.nextInt(SYLLABLES.length)])
+                    .append(i)
+                    .append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            random.nextBytes(hash);
+            String p = path.toString();
+            config.add(new DuxConfigurationEntry(p, HashCode.fromBytes(hash.clone()),
+                    !p.startsWith("/"), new File(p)));
+        }
+        for (int i = 0; i < 8; i++) {
+            config.addLink(new DuxConfigurationLink(Paths.get("/usr/bin/tool" + i),
+                    Paths.get("/etc/alternatives/tool" + i)));
+        }
+        config.addVar(new DuxConfigurationVar("JAVA_HOME", "/opt/sdk/jdk-17.0.2", false));
+        config.addVar(new DuxConfigurationVar("PATH", "/opt/sdk/jdk-17.0.2/bin", true));
+        config.addVar(new DuxConfigurationVar("CPATH", "../third_party/zlib", true));
+        return config;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: DuxConfigGenerator OUTPUT_FILE [ENTRIES [SEED]]");
+            System.exit(2);
+        }
+        BenchmarkSupport.quietLogging();
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        DuxConfigurationIO.write(args[0], generate(entries, seed));
+    }
+}
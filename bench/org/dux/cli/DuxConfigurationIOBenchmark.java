@@ -0,0 +1,64 @@
+package org.dux.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link DuxConfigurationIO} takes to read and write generated configurations of
+ * 1k, 10k and 100k entries
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuxConfigurationIOBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private Path directory;
+    private DuxConfiguration config;
+    private String readFile;
+    private String writeFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        directory = Files.createTempDirectory("dux-bench-config");
+        config = DuxConfigGenerator.generate(entries, DuxConfigGenerator.DEFAULT_SEED);
+        readFile = directory.resolve("read.dux").toString();
+        writeFile = directory.resolve("write.dux").toString();
+        DuxConfigurationIO.write(readFile, config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public DuxConfiguration read() {
+        return DuxConfigurationIO.read(readFile);
+    }
+
+    @Benchmark
+    public void write() {
+        DuxConfigurationIO.write(writeFile, config);
+    }
+}
@@ -0,0 +1,69 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link DuxFileHasher#hashFile} takes for a file of each size class: one that is
+ * read in a single call, one streamed through a direct buffer and one that is memory-mapped.
+ * The hash cache is off, so every call reads the file; after the first iteration the file is in
+ * the page cache, so this measures hashing rather than the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuxFileHasherBenchmark {
+    @Param({"4", "1024", "65536"})
+    public int sizeKb;
+
+    private Path directory;
+    private String file;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        DuxFileHasher.setCache(null);
+        directory = Files.createTempDirectory("dux-bench-hash");
+        Path path = directory.resolve("file-" + sizeKb + "k");
+        Random random = new Random(sizeKb);
+        byte[] block = new byte[1024];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (int i = 0; i < sizeKb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        file = path.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public HashCode hashFile() throws IOException {
+        return DuxFileHasher.hashFile(file);
+    }
+}
@@ -0,0 +1,108 @@
+package org.dux.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link DuxTraceBlacklist#contains} takes with a large ignore list, either of
+ * literal paths only or with a realistic share of globs and negations, against paths that are
+ * as often ignored as not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuxTraceBlacklistBenchmark {
+    private static final int PATHS = 4096;
+    private static final Path PROJECT = Paths.get("/home/builder/project");
+    private static final String[] ROOTS = {"/usr/lib", "/usr/include", "/opt/sdk", "/var/cache", "/home/builder/.cache"};
+    private static final String[] NAMES = {"alpha", "beta", "gamma", "delta", "core", "util", "net", "io"};
+
+    @Param({"100", "1000", "10000"})
+    public int rules;
+
+    @Param({"literal", "mixed"})
+    public String kind;
+
+    private DuxTraceBlacklist blacklist;
+    private Path[] paths;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        Random random = new Random(rules);
+        List<String> lines = new ArrayList<>();
+        lines.add("/proc");
+        lines.add("/sys");
+        lines.add("/dev");
+        for (int i = 0; i < rules; i++) {
+            String literal = randomPath(random, i);
+            if (!kind.equals("mixed")) {
+                lines.add(literal);
+                continue;
+            }
+            switch (i % 10) {
+                case 0:
+                    lines.add("*." + NAMES[random.nextInt(NAMES.length)] + i);
+                    break;
+                case 1:
+                    lines.add(ROOTS[random.nextInt(ROOTS.length)] + "/*/" + NAMES[random.nextInt(NAMES.length)] + i);
+                    break;
+                case 2:
+                    lines.add("**/__pycache__" + i + "/");
+                    break;
+                case 3:
+                    lines.add("!" + literal);
+                    break;
+                default:
+                    lines.add(literal);
+            }
+        }
+        blacklist = new DuxTraceBlacklist(lines, PROJECT);
+
+        // half of the paths are under a rule, and half are not
+        paths = new Path[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            String path = i % 2 == 0 ? lines.get(3 + random.nextInt(rules)) : randomPath(random, rules + i);
+            if (!path.startsWith("/")) {
+                path = randomPath(random, i);
+            }
+            paths[i] = Paths.get(path + "/" + NAMES[random.nextInt(NAMES.length)] + ".h");
+        }
+    }
+
+    private static String randomPath(Random random, int i) {
+        StringBuilder path = new StringBuilder(ROOTS[random.nextInt(ROOTS.length)]);
+        int depth = 1 + random.nextInt(4);
+        for (int d = 0; d < depth; d++) {
+            path.append('/').append(NAMES[random.nextInt(NAMES.length)]);
+        }
+        return path.append(i).toString();
+    }
+
+    @Benchmark
+    public boolean contains() {
+        Path path = paths[next];
+        next = (next + 1) & (PATHS - 1);
+        return blacklist.contains(path);
+    }
+}
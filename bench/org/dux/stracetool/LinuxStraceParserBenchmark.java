@@ -0,0 +1,107 @@
+package org.dux.stracetool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link LinuxStraceParser} takes per line of a generated build trace, both line by
+ * line and through {@link LinuxStraceParser#parseStream}, which is how dux reads a trace; and
+ * what it costs to keep the parsed calls, as a list of {@link StraceCall}s and as a
+ * {@link StraceCallBatch}. Run with {@code -prof gc} to see the bytes allocated per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinuxStraceParserBenchmark {
+    private static final int LINES = 100000;
+
+    private List<String> lines;
+    private String corpus;
+    private LinuxStraceParser parser;
+
+    @Setup
+    public void setUp() {
+        lines = StraceCorpusGenerator.generate(LINES, StraceCorpusGenerator.DEFAULT_SEED);
+        corpus = String.join("\n", lines) + "\n";
+        parser = new LinuxStraceParser();
+        checkBatchMatchesCalls();
+    }
+
+    /**
+     * Fails the run unless every call read back from a batch of the corpus matches the call
+     * that parsing it into a list gave, since the batch keeps only part of each call.
+     */
+    private void checkBatchMatchesCalls() {
+        List<StraceCall> calls = new ArrayList<>();
+        StraceCallBatch batch = new StraceCallBatch();
+        try {
+            new LinuxStraceParser().parseStream(new StringReader(corpus), calls::add);
+            new LinuxStraceParser().parseStream(new StringReader(corpus), batch::add);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (calls.size() != batch.size()) {
+            throw new IllegalStateException("the batch has " + batch.size() + " calls, but the list has " + calls.size());
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            StraceCall call = calls.get(i);
+            StraceCall view = batch.get(i);
+            if (!call.call.equals(view.call) || call.kind != view.kind || call.pid != view.pid
+                    || call.knownReturn != view.knownReturn || call.returnValue != view.returnValue
+                    || !Objects.equals(call.getPath(), view.getPath())
+                    || (call.isReadLink() && !Objects.equals(call.getLinkTarget(), view.getLinkTarget()))) {
+                throw new IllegalStateException("call " + i + " is " + call + " but the batch gives " + view);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseLine(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(parser.parseLine(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseStream(Blackhole blackhole) throws IOException {
+        parser.parseStream(new StringReader(corpus), blackhole::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public List<StraceCall> parseList() throws IOException {
+        List<StraceCall> calls = new ArrayList<>();
+        parser.parseStream(new StringReader(corpus), calls::add);
+        return calls;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public StraceCallBatch parseBatch() throws IOException {
+        StraceCallBatch batch = new StraceCallBatch();
+        parser.parseStream(new StringReader(corpus), batch::add);
+        return batch;
+    }
+}
@@ -0,0 +1,153 @@
+package org.dux.stracetool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic strace logs that look like a traced C/C++ build: compiler drivers
+ * exec'ing their subprocesses, header searches that mostly fail, shared libraries being
+ * mapped, and the reads, writes and closes in between, from several processes whose calls
+ * are interleaved (and so split into unfinished and resumed halves) as under strace -f -y.
+ * <p>
+ * The same seed always gives the same log, so benchmark results can be reproduced without
+ * tracing a real build. Run it directly to write a log to a file:
+ * <pre>
+ *   StraceCorpusGenerator OUTPUT_FILE [LINES [SEED]]
+ * </pre>
+ */
+public final class StraceCorpusGenerator {
+    public static final long DEFAULT_SEED = 20180621L;
+
+    private static final String PROJECT = "/home/builder/project";
+    private static final String[] INCLUDE_DIRS = {
+            PROJECT + "/include", "/usr/local/include", "/usr/lib/gcc/x86_64-linux-gnu/12/include",
+            "/usr/include/x86_64-linux-gnu", "/usr/include", "/usr/include/c++/12",
+            "/usr/include/x86_64-linux-gnu/c++/12", "/usr/include/c++/12/bits",
+    };
+    private static final String[] HEADERS = {
+            "stdio.h", "stdlib.h", "string.h", "vector", "memory", "bits/c++config.h", "features.h",
+            "sys/types.h", "unistd.h", "stddef.h", "stdint.h", "bits/stl_algobase.h", "new",
+            "type_traits", "utility", "bits/move.h", "errno.h", "pthread.h", "limits.h", "config.h",
+    };
+    private static final String[] LIBRARIES = {
+            "/lib/x86_64-linux-gnu/libc.so.6", "/lib/x86_64-linux-gnu/libm.so.6",
+            "/lib/x86_64-linux-gnu/libstdc++.so.6", "/lib/x86_64-linux-gnu/libz.so.1",
+            "/lib/x86_64-linux-gnu/libgcc_s.so.1", "/lib/x86_64-linux-gnu/libzstd.so.1",
+    };
+    private static final String[] PROGRAMS = {
+            "/usr/bin/make", "/usr/bin/g++", "/usr/lib/gcc/x86_64-linux-gnu/12/cc1plus",
+            "/usr/bin/as", "/usr/bin/ld",
+    };
+
+    private final Random random;
+    private final List<String> lines = new ArrayList<>();
+    private int nextPid = 4100;
+
+    private StraceCorpusGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return about count lines of strace output, generated from seed
+     */
+    public static List<String> generate(int count, long seed) {
+        StraceCorpusGenerator generator = new StraceCorpusGenerator(seed);
+        while (generator.lines.size() < count) {
+            generator.compileOneFile();
+        }
+        return generator.lines.subList(0, count);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: StraceCorpusGenerator OUTPUT_FILE [LINES [SEED]]");
+            System.exit(2);
+        }
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        try (Writer out = Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            for (String line : generate(count, seed)) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * One compiler process: exec, load libraries, search for and read its headers, and write
+     * an object file, with another process occasionally interrupting its calls
+     */
+    private void compileOneFile() {
+        int pid = nextPid++;
+        int other = pid - 1 - random.nextInt(3);
+        String program = PROGRAMS[random.nextInt(PROGRAMS.length)];
+        call(pid, "execve(\"" + program + "\", [\"" + program.substring(program.lastIndexOf('/') + 1)
+                + "\", \"-O2\", \"-c\", \"src/file" + pid + ".cc\"], 0x7ffd5a1c3e28 /* 42 vars */) = 0");
+        call(pid, "brk(NULL) = 0x55d4c1e1d000");
+        call(pid, "openat(AT_FDCWD</home/builder/project>, \"/etc/ld.so.cache\", O_RDONLY|O_CLOEXEC) = 3</etc/ld.so.cache>");
+        call(pid, "newfstatat(3</etc/ld.so.cache>, \"\", {st_mode=S_IFREG|0644, st_size=61404, ...}, AT_EMPTY_PATH) = 0");
+        call(pid, "mmap(NULL, 61404, PROT_READ, MAP_PRIVATE, 3</etc/ld.so.cache>, 0) = 0x7f2b1c5e1000");
+        call(pid, "close(3</etc/ld.so.cache>) = 0");
+        for (String library : LIBRARIES) {
+            if (random.nextInt(3) == 0) {
+                continue;
+            }
+            call(pid, "openat(AT_FDCWD</home/builder/project>, \"" + library + "\", O_RDONLY|O_CLOEXEC) = 3<" + library + ">");
+            call(pid, "read(3<" + library + ">, \"\\177ELF\\2\\1\\1\\3\\0\\0\\0\\0\\0\\0\\0\\0\\3\\0>\\0\\1\\0\\0\\0P\\237\\2\\0\\0\\0\\0\\0\"..., 832) = 832");
+            call(pid, "newfstatat(3<" + library + ">, \"\", {st_mode=S_IFREG|0755, st_size=" + (100000 + random.nextInt(2000000)) + ", ...}, AT_EMPTY_PATH) = 0");
+            call(pid, "mmap(NULL, 2260560, PROT_READ, MAP_PRIVATE|MAP_DENYWRITE, 3<" + library + ">, 0) = 0x7f2b1c200000");
+            call(pid, "close(3<" + library + ">) = 0");
+        }
+        call(pid, "readlinkat(AT_FDCWD</home/builder/project>, \"/usr/bin/cc\", \"/etc/alternatives/cc\", 4095) = 20");
+
+        int headers = 10 + random.nextInt(30);
+        for (int h = 0; h < headers; h++) {
+            String header = HEADERS[random.nextInt(HEADERS.length)];
+            int found = random.nextInt(INCLUDE_DIRS.length);
+            for (int d = 0; d < found; d++) {
+                String line = "openat(AT_FDCWD</home/builder/project>, \"" + INCLUDE_DIRS[d] + "/" + header
+                        + "\", O_RDONLY|O_NOCTTY) = -1 ENOENT (No such file or directory)";
+                if (random.nextInt(20) == 0) {
+                    // another process runs in the middle of this call
+                    interrupted(pid, other, line);
+                } else {
+                    call(pid, line);
+                }
+            }
+            String path = INCLUDE_DIRS[found] + "/" + header;
+            call(pid, "openat(AT_FDCWD</home/builder/project>, \"" + path + "\", O_RDONLY|O_NOCTTY) = 4<" + path + ">");
+            call(pid, "newfstatat(4<" + path + ">, \"\", {st_mode=S_IFREG|0644, st_size=" + random.nextInt(90000) + ", ...}, AT_EMPTY_PATH) = 0");
+            call(pid, "read(4<" + path + ">, \"/* Copyright (C) 1991-2022 Free Software Foundation, Inc.\\n   This file is part of th\"..., 8192) = 8192");
+            call(pid, "close(4<" + path + ">) = 0");
+        }
+
+        String object = PROJECT + "/out/file" + pid + ".o";
+        call(pid, "openat(AT_FDCWD</home/builder/project>, \"out/file" + pid + ".o\", O_WRONLY|O_CREAT|O_TRUNC, 0666) = 5<" + object + ">");
+        call(pid, "write(5<" + object + ">, \"\\177ELF\\2\\1\\1\\0\\0\\0\\0\\0\\0\\0\\0\\0\\1\\0>\\0\\1\\0\\0\\0\\0\\0\\0\\0\\0\\0\\0\\0\"..., 4096) = 4096");
+        call(pid, "close(5<" + object + ">) = 0");
+        call(pid, "exit_group(0) = ?");
+        lines.add("[pid " + pid + "] +++ exited with 0 +++");
+        lines.add("--- SIGCHLD {si_signo=SIGCHLD, si_code=CLD_EXITED, si_pid=" + pid + ", si_uid=1000, si_status=0, si_utime=3, si_stime=1} ---");
+    }
+
+    private void call(int pid, String call) {
+        lines.add("[pid " + pid + "] " + call);
+    }
+
+    /**
+     * Splits line, a call by pid, into unfinished and resumed halves around a call by other
+     */
+    private void interrupted(int pid, int other, String line) {
+        int split = line.indexOf(", O_RDONLY");
+        String name = line.substring(0, line.indexOf('('));
+        lines.add("[pid " + pid + "] " + line.substring(0, split) + " <unfinished ...>");
+        call(other, "wait4(-1, [{WIFEXITED(s) && WEXITSTATUS(s) == 0}], 0, NULL) = " + pid);
+        lines.add("[pid " + pid + "] <... " + name + " resumed>" + line.substring(split));
+    }
+}
@@ -0,0 +1,208 @@
+package org.dux.backingstore;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compression format for the contents of stored files.
+ * <p>
+ * A backing store records the name of the codec a file was stored with next to the file (for
+ * Google Cloud Storage, in the blob's metadata under {@link #METADATA_KEY}), so that files stored
+ * before compression was introduced, which have no codec recorded, are read as {@link #IDENTITY}.
+ */
+public enum BlobCodec {
+    /**
+     * Stores contents as they are
+     */
+    IDENTITY("identity", true) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+
+    /**
+     * Stores contents in the gzip format, which can also be read by standard tools. Concatenated
+     * gzip files decompress to the concatenation of their contents.
+     */
+    GZIP("gzip", true) {
+        @Override
+        public OutputStream compress(OutputStream out, final int level) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * Stores contents as a raw deflate stream, which saves gzip's header and checksum
+     */
+    DEFLATE("deflate", false) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            final Deflater deflater = new Deflater(level, true);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * The metadata key under which a store records the codec of a file
+     */
+    public static final String METADATA_KEY = "dux-codec";
+
+    /**
+     * The level used when none is configured, which trades speed for size like gzip's default
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // files smaller than this gain too little from compression to be worth it
+    private static final long MIN_COMPRESSIBLE_SIZE = 512;
+    // how many bytes to sample from each of the start, middle and end of a file
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    // a file whose samples do not shrink below this fraction is stored uncompressed
+    private static final double MAX_USEFUL_RATIO = 0.9;
+
+    private final String name;
+    private final boolean concatenable;
+
+    BlobCodec(String name, boolean concatenable) {
+        this.name = name;
+        this.concatenable = concatenable;
+    }
+
+    /**
+     * @return the name recorded in the metadata of files stored with this codec
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return whether pieces of a file compressed separately and then concatenated decompress to
+     * the whole file, so that the pieces can be compressed and uploaded in parallel
+     */
+    public boolean isConcatenable() {
+        return concatenable;
+    }
+
+    /**
+     * Wraps out so that the bytes written to the result are compressed into out. Closing the
+     * result closes out.
+     *
+     * @param level the compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Wraps in so that reading from the result yields the decompressed contents of in. Closing the
+     * result closes in.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * @param name a codec name as recorded in a file's metadata, or null if none was recorded
+     * @return the codec named name. Files with no codec recorded were stored uncompressed.
+     * @throws IllegalArgumentException if no codec is called name, e.g. because a newer version
+     *                                  of dux stored the file
+     */
+    public static BlobCodec forName(@Nullable String name) {
+        if (name == null) {
+            return IDENTITY;
+        }
+        for (BlobCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("unknown codec: " + name);
+    }
+
+    /**
+     * Guesses whether compressing the file at path would make it meaningfully smaller, by
+     * compressing samples from its start, middle and end at the fastest level. Already compressed
+     * files (archives, images, jars) fail this check and are stored as they are.
+     */
+    public static boolean looksCompressible(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            long size = file.length();
+            if (size < MIN_COMPRESSIBLE_SIZE) {
+                return false;
+            }
+
+            byte[] sample = new byte[SAMPLE_SIZE];
+            byte[] compressed = new byte[SAMPLE_SIZE];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            long sampled = 0;
+            long compressedSize = 0;
+            try {
+                long[] offsets = size <= 3 * SAMPLE_SIZE ? new long[] {0}
+                        : new long[] {0, size / 2 - SAMPLE_SIZE / 2, size - SAMPLE_SIZE};
+                for (long offset : offsets) {
+                    file.seek(offset);
+                    int length = file.read(sample, 0, (int) Math.min(SAMPLE_SIZE, size - offset));
+                    if (length <= 0) {
+                        continue;
+                    }
+                    deflater.reset();
+                    deflater.setInput(sample, 0, length);
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        compressedSize += deflater.deflate(compressed);
+                    }
+                    sampled += length;
+                }
+            } finally {
+                deflater.end();
+            }
+            return sampled > 0 && compressedSize < sampled * MAX_USEFUL_RATIO;
+        }
+    }
+}
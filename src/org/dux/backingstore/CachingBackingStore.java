@@ -0,0 +1,485 @@
+package org.dux.backingstore;
+
+import org.dux.cli.DuxCLI;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link DuxBackingStore} that keeps a local copy of every file it fetches from another
+ * store, and serves later fetches of the same key from that copy.
+ * <p>
+ * The cache is a directory laid out like a {@link LocalBackingStore}, and can be shared by
+ * every dux process on a host. A lock per key (a thread lock plus a file lock, striped over a
+ * fixed number of lock files) makes sure only one process downloads a given key at a time;
+ * the others wait and then hit the cache. When the cache grows beyond its byte budget, the
+ * least recently used files are evicted; a hit refreshes the modification time of the cached
+ * file to mark it as recently used. A batch of fetches takes the locks of all its missing keys
+ * at once, in a fixed order, and fetches them from the underlying store as one batch.
+ * <p>
+ * Hits are served by a kernel-side copy rather than a hard link, so that refreshing the cached
+ * file's timestamps never changes the fetched file.
+ * <p>
+ * A miss is downloaded into a file in {@code .tmp} named after its key, so that whatever the
+ * underlying store keeps of a failed download (e.g. the partial file of a ranged Google Cloud
+ * Storage download) is resumed by the next fetch of the same key. Downloads left there and not
+ * resumed for a day count towards the budget, and are evicted like any file not used since.
+ */
+public class CachingBackingStore implements DuxBackingStore {
+    private static final int LOCK_STRIPES = 256;
+    private static final String LOCK_DIR = ".locks";
+    private static final String TMP_DIR = ".tmp";
+    private static final String EVICT_LOCK = "evict.lock";
+    private static final String DOWNLOAD_SUFFIX = ".download";
+    // a download in TMP_DIR untouched for this long was abandoned, and is evicted like a cached file
+    private static final long ABANDONED_DOWNLOAD_MILLIS = 24 * 60 * 60 * 1000L;
+    // evict down to this fraction of the budget, so that eviction does not run on every miss
+    private static final double EVICT_TO = 0.9;
+
+    private final DuxBackingStore delegate;
+    private final LocalBackingStore cache;
+    private final Path cacheRoot;
+    private final long maxBytes;
+    private final ReentrantLock[] threadLocks;
+
+    // our estimate of the cache's size, or -1 if it has not been measured yet
+    private final AtomicLong approximateBytes = new AtomicLong(-1);
+
+    private final Counter hits = DuxMetrics.counter("cache.hits");
+    private final Counter misses = DuxMetrics.counter("cache.misses");
+    private final Counter evictions = DuxMetrics.counter("cache.evictions");
+
+    /**
+     * @param delegate the store to fetch files from on a miss, and to store files in
+     * @param cacheDir the directory to keep cached files in
+     * @param maxBytes how large the cache may grow before files are evicted
+     */
+    CachingBackingStore(DuxBackingStore delegate, String cacheDir, long maxBytes) {
+        this.delegate = delegate;
+        this.cache = new LocalBackingStore(cacheDir);
+        this.cacheRoot = Paths.get(cacheDir).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.threadLocks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            threadLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Fetches the file hashed by key, from the cache if it is there and from the underlying
+     * store (filling the cache) if it is not, and places it at target
+     *
+     * @param key    a hash into a dux server
+     * @param target the path to which the file should be saved
+     * @return whether the fetch succeeded
+     */
+    @Override
+    public boolean fetchFile(String key, String target) {
+        List<String> targets = Collections.singletonList(target);
+        NavigableSet<Integer> stripes = new TreeSet<>(Collections.singleton(stripe(key)));
+        List<FileLock> locks = new ArrayList<>();
+        try {
+            lockStripes(stripes, locks);
+            if (placeCached(key, targets)) {
+                DuxCLI.logger.debug("cache hit for {}", key);
+                hits.increment();
+                return true;
+            }
+            DuxCLI.logger.debug("cache miss for {}", key);
+            misses.increment();
+            Path download = downloadPath(key);
+            boolean placed;
+            try {
+                if (!delegate.fetchFile(key, download.toString())) {
+                    return false;
+                }
+                keep(key, download);
+                placed = placeCached(key, targets);
+            } finally {
+                LocalBackingStore.deleteQuietly(download);
+            }
+            evictIfNeeded();
+            return placed;
+        } catch (IOException ioe) {
+            DuxCLI.logger.error("cache failed to fetch {} to {}: {}", key, target, ioe);
+            return false;
+        } finally {
+            unlockStripes(stripes, locks);
+        }
+    }
+
+    /**
+     * Fetches every transfer, serving hits from the cache and fetching all the misses from the
+     * underlying store as one batch, so that a store with a batched lookup (such as
+     * {@link GoogleBackingStore}) makes one request for them rather than one per key. A key
+     * given more than once is fetched once.
+     *
+     * @param parallelism how many downloads the underlying store may run at once
+     * @return whether each fetch succeeded, in the order of transfers
+     */
+    @Override
+    public List<Boolean> fetchFiles(List<DuxTransfer> transfers, int parallelism) {
+        Map<String, List<String>> targetsByKey = new LinkedHashMap<>();
+        for (DuxTransfer t : transfers) {
+            targetsByKey.computeIfAbsent(t.key, k -> new ArrayList<>()).add(t.path);
+        }
+        Set<String> fetched = new HashSet<>();
+
+        // a hit takes no lock: the locks only keep two fetches from downloading the same key
+        Map<String, List<String>> missing = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> e : targetsByKey.entrySet()) {
+            try {
+                if (placeCached(e.getKey(), e.getValue())) {
+                    DuxCLI.logger.debug("cache hit for {}", e.getKey());
+                    hits.increment();
+                    fetched.add(e.getKey());
+                } else {
+                    missing.put(e.getKey(), e.getValue());
+                }
+            } catch (IOException ioe) {
+                DuxCLI.logger.error("cache failed to fetch {} to {}: {}", e.getKey(), e.getValue(), ioe);
+            }
+        }
+        if (!missing.isEmpty()) {
+            fetchMissing(missing, parallelism, fetched);
+        }
+
+        List<Boolean> results = new ArrayList<>(transfers.size());
+        for (DuxTransfer t : transfers) {
+            results.add(fetched.contains(t.key));
+        }
+        return results;
+    }
+
+    /**
+     * Fetches the missing keys from the underlying store in one batch, holding the locks of all
+     * of them while it runs, fills the cache with them, and places each at its targets
+     *
+     * @param missing the targets of each key that was not cached
+     * @param fetched the keys fetched so far, to which this adds the ones it fetches
+     */
+    private void fetchMissing(Map<String, List<String>> missing, int parallelism, Set<String> fetched) {
+        NavigableSet<Integer> stripes = new TreeSet<>();
+        for (String key : missing.keySet()) {
+            stripes.add(stripe(key));
+        }
+        List<FileLock> locks = new ArrayList<>();
+        List<DuxTransfer> downloads = new ArrayList<>();
+        try {
+            lockStripes(stripes, locks);
+            for (Map.Entry<String, List<String>> e : missing.entrySet()) {
+                // another process may have fetched the key while we waited for its lock
+                if (placeCached(e.getKey(), e.getValue())) {
+                    DuxCLI.logger.debug("cache hit for {}", e.getKey());
+                    hits.increment();
+                    fetched.add(e.getKey());
+                } else {
+                    DuxCLI.logger.debug("cache miss for {}", e.getKey());
+                    misses.increment();
+                    downloads.add(new DuxTransfer(e.getKey(), downloadPath(e.getKey()).toString()));
+                }
+            }
+
+            List<Boolean> downloaded = delegate.fetchFiles(downloads, parallelism);
+            for (int i = 0; i < downloads.size(); i++) {
+                DuxTransfer d = downloads.get(i);
+                if (!downloaded.get(i)) {
+                    continue;
+                }
+                try {
+                    keep(d.key, Paths.get(d.path));
+                    if (placeCached(d.key, missing.get(d.key))) {
+                        fetched.add(d.key);
+                    }
+                } catch (IOException ioe) {
+                    DuxCLI.logger.error("cache failed to fetch {} to {}: {}", d.key, missing.get(d.key), ioe);
+                }
+            }
+            evictIfNeeded();
+        } catch (IOException ioe) {
+            DuxCLI.logger.error("cache failed to fetch a batch of {} files: {}", missing.size(), ioe);
+        } finally {
+            for (DuxTransfer d : downloads) {
+                LocalBackingStore.deleteQuietly(Paths.get(d.path));
+            }
+            unlockStripes(stripes, locks);
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    /**
+     * Takes the thread lock and then the file lock of each stripe, in ascending order, so that
+     * threads and processes that each need several stripes cannot deadlock. Every file lock is
+     * added to locks as soon as it is taken, so that {@link #unlockStripes} releases whatever
+     * was taken even if this fails part way.
+     */
+    private void lockStripes(NavigableSet<Integer> stripes, List<FileLock> locks) throws IOException {
+        Path lockDir = Files.createDirectories(cacheRoot.resolve(LOCK_DIR));
+        for (int stripe : stripes) {
+            threadLocks[stripe].lock();
+            FileChannel lockChannel = FileChannel.open(lockDir.resolve(Integer.toString(stripe)),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                locks.add(lockChannel.lock());
+            } catch (IOException | RuntimeException e) {
+                lockChannel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockStripes}, in the reverse order.
+     */
+    private void unlockStripes(NavigableSet<Integer> stripes, List<FileLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            // closing the channel releases its lock
+            try {
+                locks.get(i).channel().close();
+            } catch (IOException ioe) {
+                DuxCLI.logger.warn("could not release a cache lock: {}", ioe);
+            }
+        }
+        for (int stripe : stripes.descendingSet()) {
+            if (threadLocks[stripe].isHeldByCurrentThread()) {
+                threadLocks[stripe].unlock();
+            }
+        }
+    }
+
+    /**
+     * @return where to download key from the underlying store. Only one thread of one process
+     * fetches key at a time, so the name is ours to use while we hold its lock.
+     */
+    private Path downloadPath(String key) throws IOException {
+        return Files.createDirectories(cacheRoot.resolve(TMP_DIR)).resolve(key + DOWNLOAD_SUFFIX);
+    }
+
+    /**
+     * Moves a complete download of key into the cache.
+     */
+    private void keep(String key, Path download) throws IOException {
+        long size = Files.size(download);
+        cache.moveIntoStore(download, key);
+        if (approximateBytes.get() >= 0) {
+            approximateBytes.addAndGet(size);
+        }
+    }
+
+    /**
+     * Places the cached copy of key at every target, and marks it as recently used.
+     *
+     * @return whether it was placed: false if key is not cached, or was evicted by another
+     * process before it could be placed
+     */
+    private boolean placeCached(String key, List<String> targets) throws IOException {
+        Path blob = cache.blobPath(key);
+        if (!Files.isRegularFile(blob)) {
+            return false;
+        }
+        try {
+            Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+            for (String target : targets) {
+                LocalBackingStore.placeAtomically(blob, Paths.get(target), false);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            // another process evicted the file between our check and our copy
+            DuxCLI.logger.debug("{} was evicted while being fetched", key);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the file in the underlying store. The cache is only filled by fetches.
+     */
+    @Override
+    public boolean storeFile(String key, String filePath) {
+        return delegate.storeFile(key, filePath);
+    }
+
+    /**
+     * Stores the files in the underlying store, as one batch.
+     */
+    @Override
+    public List<Boolean> storeFiles(List<DuxTransfer> transfers, int parallelism) {
+        return delegate.storeFiles(transfers, parallelism);
+    }
+
+    /**
+     * Asks the underlying store. The cache is not consulted, because callers use the answer to
+     * decide whether a file still needs to be uploaded, and a cache directory may be shared by
+     * stores that do not hold the same files.
+     */
+    @Override
+    public boolean containsFile(String key) {
+        return delegate.containsFile(key);
+    }
+
+    /**
+     * Asks the underlying store about every key, as one batch. See {@link #containsFile}.
+     */
+    @Override
+    public Map<String, Boolean> containsFiles(Collection<String> keys) {
+        return delegate.containsFiles(keys);
+    }
+
+    /**
+     * @return whether the file hashed by key is in the local cache, so that fetching it will not
+     * go to the underlying store. This says nothing about whether the underlying store has it.
+     */
+    public boolean isCached(String key) {
+        return Files.isRegularFile(cache.blobPath(key));
+    }
+
+    /**
+     * Evicts the least recently used files until the cache is comfortably within its budget.
+     * If another process is already evicting, leaves it to that process.
+     */
+    private void evictIfNeeded() throws IOException {
+        long estimate = approximateBytes.get();
+        if (estimate >= 0 && estimate <= maxBytes) {
+            return;
+        }
+
+        Path lockFile = cacheRoot.resolve(LOCK_DIR).resolve(EVICT_LOCK);
+        try (FileChannel lockChannel = FileChannel.open(lockFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                return;
+            }
+
+            List<CachedFile> files = listCachedFiles();
+            long total = 0;
+            for (CachedFile f : files) {
+                total += f.size;
+            }
+            if (total > maxBytes) {
+                Collections.sort(files, new Comparator<CachedFile>() {
+                    @Override
+                    public int compare(CachedFile a, CachedFile b) {
+                        return Long.compare(a.lastUsed, b.lastUsed);
+                    }
+                });
+                long goal = (long) (maxBytes * EVICT_TO);
+                for (CachedFile f : files) {
+                    if (total <= goal) {
+                        break;
+                    }
+                    // a process copying this file right now keeps its open handle, so deleting is safe
+                    if (Files.deleteIfExists(f.path)) {
+                        DuxCLI.logger.debug("evicted {} from the cache", f.path);
+                        evictions.increment();
+                        total -= f.size;
+                    }
+                }
+            }
+            approximateBytes.set(total);
+        } catch (OverlappingFileLockException e) {
+            // another thread of this process is already evicting
+        }
+    }
+
+    /**
+     * @return the cached files, and the abandoned downloads
+     */
+    private List<CachedFile> listCachedFiles() throws IOException {
+        final List<CachedFile> files = new ArrayList<>();
+        final Path tmpDir = cacheRoot.resolve(TMP_DIR);
+        final long abandonedBefore = System.currentTimeMillis() - ABANDONED_DOWNLOAD_MILLIS;
+        Files.walkFileTree(cacheRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path name = dir.getFileName();
+                if (name != null && name.toString().equals(LOCK_DIR)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getParent().equals(tmpDir)
+                        && attrs.lastModifiedTime().toMillis() > abandonedBefore) {
+                    // a download that is still in progress, or may still be resumed
+                    return FileVisitResult.CONTINUE;
+                }
+                if (attrs.isRegularFile()) {
+                    files.add(new CachedFile(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // most likely evicted by another process while we were walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Logs the cache's hit, miss and eviction counts, to help size it.
+     */
+    @Override
+    public void logStatistics() {
+        delegate.logStatistics();
+        DuxCLI.logger.info("fetch cache {}: {} hits, {} misses, {} evictions",
+                cacheRoot, hits.get(), misses.get(), evictions.get());
+    }
+
+    private static class CachedFile {
+        final Path path;
+        final long size;
+        final long lastUsed;
+
+        CachedFile(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package org.dux.backingstore;
+
+import com.google.common.hash.HashCode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.backingstore.ContentDefinedChunker.Chunk;
+import org.dux.backingstore.ContentDefinedChunker.ChunkedFile;
+import org.dux.cli.DuxCLI;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link DuxBackingStore} that stores large files as content-defined chunks in another store.
+ * <p>
+ * A file at least as large as the chunking threshold is split by {@link ContentDefinedChunker},
+ * each chunk is stored in the underlying store under its own hash (unless it is already there),
+ * and a manifest listing the chunks is stored under the file's key. When a new version of a large
+ * file differs from an old one by a few edits, only the chunks around those edits are uploaded.
+ * <p>
+ * Fetches always understand manifests, whatever the threshold: a fetched file that starts with
+ * the manifest's magic bytes is reassembled from its chunks. A file that happens to start with
+ * those bytes is always stored chunked, so the two can never be confused. Wrap a
+ * {@link CachingBackingStore} to keep fetched chunks locally, so that a new version of a file
+ * only downloads the chunks the cache does not already hold.
+ */
+public class ChunkedBackingStore implements DuxBackingStore {
+    private static final byte[] MAGIC = "DUXCHUNK".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+
+    // how many chunks to write to temporary files and upload at once
+    private static final int UPLOAD_GROUP_SIZE = 16;
+    // how many chunks to transfer at once when a single file is stored or fetched
+    private static final int DEFAULT_PARALLELISM = 8;
+
+    private final DuxBackingStore delegate;
+    private final long threshold;
+
+    private final Counter chunksUploaded = DuxMetrics.counter("chunked.chunks_uploaded");
+    private final Counter chunksSkipped = DuxMetrics.counter("chunked.chunks_skipped");
+    private final Counter chunksFetched = DuxMetrics.counter("chunked.chunks_fetched");
+
+    /**
+     * @param delegate  the store in which to keep files, chunks and manifests
+     * @param threshold the size in bytes from which files are stored chunked, or 0 to never store
+     *                  files chunked (chunked files are still fetched)
+     */
+    ChunkedBackingStore(DuxBackingStore delegate, long threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public boolean fetchFile(String key, String target) {
+        return fetchFiles(Arrays.asList(new DuxTransfer(key, target)), DEFAULT_PARALLELISM).get(0);
+    }
+
+    /**
+     * Fetches every file from the underlying store as one batch, then reassembles the ones that
+     * turn out to be manifests from their chunks
+     */
+    @Override
+    public List<Boolean> fetchFiles(List<DuxTransfer> transfers, int parallelism) {
+        List<DuxTransfer> downloads = new ArrayList<>(transfers.size());
+        for (DuxTransfer t : transfers) {
+            downloads.add(new DuxTransfer(t.key, downloadPath(t.path).toString()));
+        }
+        List<Boolean> downloaded = delegate.fetchFiles(downloads, parallelism);
+
+        List<Boolean> results = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            Path download = Paths.get(downloads.get(i).path);
+            Path target = Paths.get(transfers.get(i).path);
+            try {
+                results.add(downloaded.get(i) && finishFetch(transfers.get(i).key, download, target, parallelism));
+            } catch (IOException ioe) {
+                DuxCLI.logger.error("failed to fetch {} to {}: {}", transfers.get(i).key, target, ioe);
+                results.add(false);
+            } finally {
+                LocalBackingStore.deleteQuietly(download);
+            }
+        }
+        return results;
+    }
+
+    private static Path downloadPath(String target) {
+        Path t = Paths.get(target).toAbsolutePath();
+        return t.resolveSibling(t.getFileName() + ".dux-download");
+    }
+
+    /**
+     * Moves a downloaded file into place at target, or, if it is a manifest, assembles target
+     * from the chunks it lists
+     */
+    private boolean finishFetch(String key, Path download, Path target, int parallelism) throws IOException {
+        if (!isManifest(download)) {
+            Files.move(download, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        Manifest manifest = Manifest.read(download);
+        if (manifest == null) {
+            DuxCLI.logger.error("{} holds a chunk manifest in a format this version of dux cannot read", key);
+            return false;
+        }
+        DuxCLI.logger.debug("{} is stored as {} chunks", key, manifest.chunkHashes.size());
+        return assemble(manifest, target, parallelism);
+    }
+
+    /**
+     * Fetches each distinct chunk of the manifest once, then concatenates them into target,
+     * checking the result against the hash of the whole file
+     */
+    private boolean assemble(Manifest manifest, Path target, int parallelism) throws IOException {
+        Path dir = Files.createTempDirectory(target.toAbsolutePath().getParent(), ".dux-chunks");
+        Path assembled = target.toAbsolutePath().resolveSibling(target.getFileName() + ".dux-tmp");
+        try {
+            Set<String> distinct = new LinkedHashSet<>(manifest.chunkKeys());
+            List<DuxTransfer> fetches = new ArrayList<>(distinct.size());
+            for (String chunkKey : distinct) {
+                fetches.add(new DuxTransfer(chunkKey, dir.resolve(chunkKey).toString()));
+            }
+            List<Boolean> fetched = delegate.fetchFiles(fetches, parallelism);
+            for (int i = 0; i < fetches.size(); i++) {
+                if (!fetched.get(i)) {
+                    DuxCLI.logger.error("failed to fetch chunk {}", fetches.get(i).key);
+                    return false;
+                }
+            }
+            chunksFetched.add(fetches.size());
+
+            MessageDigest digest = ContentDefinedChunker.sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            long size = 0;
+            try (FileChannel out = FileChannel.open(assembled, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (String chunkKey : manifest.chunkKeys()) {
+                    try (FileChannel in = FileChannel.open(dir.resolve(chunkKey), StandardOpenOption.READ)) {
+                        while (in.read(buffer) != -1) {
+                            buffer.flip();
+                            digest.update(buffer.array(), 0, buffer.limit());
+                            size += buffer.limit();
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    }
+                }
+            }
+            if (size != manifest.size || !Arrays.equals(digest.digest(), manifest.hash)) {
+                DuxCLI.logger.error("the chunks fetched for {} do not add up to the stored file", target);
+                return false;
+            }
+
+            File f = assembled.toFile();
+            f.setExecutable(true);
+            f.setReadable(true);
+            f.setWritable(true);
+            Files.move(assembled, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            LocalBackingStore.deleteQuietly(assembled);
+            deleteDirectory(dir);
+        }
+    }
+
+    @Override
+    public boolean storeFile(String key, String filePath) {
+        return storeFiles(Arrays.asList(new DuxTransfer(key, filePath)), DEFAULT_PARALLELISM).get(0);
+    }
+
+    /**
+     * Stores each large file as chunks, one file at a time with its chunks uploaded in parallel,
+     * and hands the other files to the underlying store as one batch
+     */
+    @Override
+    public List<Boolean> storeFiles(List<DuxTransfer> transfers, int parallelism) {
+        Boolean[] results = new Boolean[transfers.size()];
+        List<DuxTransfer> whole = new ArrayList<>();
+        List<Integer> wholeIndices = new ArrayList<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            DuxTransfer t = transfers.get(i);
+            try {
+                if (shouldChunk(Paths.get(t.path))) {
+                    results[i] = storeChunked(t.key, Paths.get(t.path), parallelism);
+                    continue;
+                }
+            } catch (IOException ioe) {
+                DuxCLI.logger.error("failed to store {} in chunks: {}", t.path, ioe);
+                results[i] = false;
+                continue;
+            }
+            whole.add(t);
+            wholeIndices.add(i);
+        }
+
+        List<Boolean> stored = delegate.storeFiles(whole, parallelism);
+        for (int i = 0; i < stored.size(); i++) {
+            results[wholeIndices.get(i)] = stored.get(i);
+        }
+        return Arrays.asList(results);
+    }
+
+    private boolean shouldChunk(Path file) throws IOException {
+        if (threshold > 0 && Files.size(file) >= threshold) {
+            return true;
+        }
+        // stored whole, this file would be mistaken for a manifest when fetched
+        return isManifest(file);
+    }
+
+    /**
+     * Uploads the chunks of file that the underlying store does not hold yet, then the manifest.
+     * The manifest goes last, so a stored manifest always refers to stored chunks.
+     */
+    private boolean storeChunked(String key, Path file, int parallelism) throws IOException {
+        ChunkedFile chunked = ContentDefinedChunker.chunk(file);
+        Map<String, Chunk> distinct = new LinkedHashMap<>();
+        for (Chunk chunk : chunked.chunks) {
+            String chunkKey = HashCode.fromBytes(chunk.hash).toString();
+            if (!distinct.containsKey(chunkKey)) {
+                distinct.put(chunkKey, chunk);
+            }
+        }
+
+        List<String> missing = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Boolean> e : delegate.containsFiles(distinct.keySet()).entrySet()) {
+                if (!e.getValue()) {
+                    missing.add(e.getKey());
+                }
+            }
+        } catch (RuntimeException e) {
+            // StorageException, a RuntimeException, reports network and server errors
+            DuxCLI.logger.warn("could not check which chunks of {} are stored, uploading all of them: {}", file, e);
+            missing.clear();
+            missing.addAll(distinct.keySet());
+        }
+        DuxCLI.logger.debug("{} has {} chunks, {} distinct, {} not yet stored",
+                file, chunked.chunks.size(), distinct.size(), missing.size());
+        chunksSkipped.add(distinct.size() - missing.size());
+
+        // upload in groups, so that only a group's worth of chunks is on disk at once
+        for (int start = 0; start < missing.size(); start += UPLOAD_GROUP_SIZE) {
+            List<String> group = missing.subList(start, Math.min(missing.size(), start + UPLOAD_GROUP_SIZE));
+            if (!uploadChunks(file, group, distinct, parallelism)) {
+                return false;
+            }
+        }
+
+        Path manifestFile = Files.createTempFile("dux", ".manifest");
+        try {
+            new Manifest(chunked).write(manifestFile);
+            return delegate.storeFile(key, manifestFile.toString());
+        } finally {
+            LocalBackingStore.deleteQuietly(manifestFile);
+        }
+    }
+
+    private boolean uploadChunks(Path file, List<String> chunkKeys, Map<String, Chunk> chunks,
+                                 int parallelism) throws IOException {
+        Path dir = Files.createTempDirectory("dux-chunks");
+        try {
+            List<DuxTransfer> uploads = new ArrayList<>(chunkKeys.size());
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (String chunkKey : chunkKeys) {
+                    Chunk chunk = chunks.get(chunkKey);
+                    Path chunkFile = dir.resolve(chunkKey);
+                    try (FileChannel out = FileChannel.open(chunkFile, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE)) {
+                        long done = 0;
+                        while (done < chunk.length) {
+                            long n = in.transferTo(chunk.offset + done, chunk.length - done, out);
+                            if (n <= 0) {
+                                throw new IOException(file + " shrank while it was being stored");
+                            }
+                            done += n;
+                        }
+                    }
+                    uploads.add(new DuxTransfer(chunkKey, chunkFile.toString()));
+                }
+            }
+            List<Boolean> stored = delegate.storeFiles(uploads, parallelism);
+            for (int i = 0; i < stored.size(); i++) {
+                if (!stored.get(i)) {
+                    DuxCLI.logger.error("failed to store chunk {} of {}", uploads.get(i).key, file);
+                    return false;
+                }
+            }
+            chunksUploaded.add(uploads.size());
+            return true;
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    @Override
+    public boolean containsFile(String key) {
+        return delegate.containsFile(key);
+    }
+
+    @Override
+    public Map<String, Boolean> containsFiles(Collection<String> keys) {
+        return delegate.containsFiles(keys);
+    }
+
+    /**
+     * Logs how many chunks were transferred, and how many uploads were saved because the chunk
+     * was already stored.
+     */
+    @Override
+    public void logStatistics() {
+        delegate.logStatistics();
+        DuxCLI.logger.info("chunked storage: uploaded {} chunks, skipped {} already stored, fetched {} chunks",
+                chunksUploaded.get(), chunksSkipped.get(), chunksFetched.get());
+    }
+
+    private static boolean isManifest(Path file) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read = 0;
+            while (read < start.length) {
+                int n = in.read(start, read, start.length - read);
+                if (n == -1) {
+                    return false;
+                }
+                read += n;
+            }
+        }
+        return Arrays.equals(start, MAGIC);
+    }
+
+    private static void deleteDirectory(Path dir) {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                LocalBackingStore.deleteQuietly(f.toPath());
+            }
+        }
+        LocalBackingStore.deleteQuietly(dir);
+    }
+
+    /**
+     * The list of chunks a file was stored as, in order, and the size and hash of the whole file
+     */
+    private static final class Manifest {
+        final long size;
+        final byte[] hash;
+        final List<byte[]> chunkHashes;
+
+        Manifest(long size, byte[] hash, List<byte[]> chunkHashes) {
+            this.size = size;
+            this.hash = hash;
+            this.chunkHashes = chunkHashes;
+        }
+
+        Manifest(ChunkedFile file) {
+            this.size = file.size;
+            this.hash = file.hash;
+            this.chunkHashes = new ArrayList<>(file.chunks.size());
+            for (Chunk chunk : file.chunks) {
+                chunkHashes.add(chunk.hash);
+            }
+        }
+
+        List<String> chunkKeys() {
+            List<String> keys = new ArrayList<>(chunkHashes.size());
+            for (byte[] h : chunkHashes) {
+                keys.add(HashCode.fromBytes(h).toString());
+            }
+            return keys;
+        }
+
+        void write(Path file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.write(hash);
+                out.writeInt(chunkHashes.size());
+                for (byte[] h : chunkHashes) {
+                    out.write(h);
+                }
+            }
+        }
+
+        /**
+         * @return the manifest stored in file, or null if it has a version this code does not know
+         */
+        static @Nullable Manifest read(Path file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                in.readFully(new byte[MAGIC.length]);
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                long size = in.readLong();
+                byte[] hash = new byte[HASH_BYTES];
+                in.readFully(hash);
+                int count = in.readInt();
+                List<byte[]> chunkHashes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] h = new byte[HASH_BYTES];
+                    in.readFully(h);
+                    chunkHashes.add(h);
+                }
+                return new Manifest(size, hash, chunkHashes);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.dux.backingstore;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.dux.cli.DuxCLI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads one large file to Google Cloud Storage as several parts uploaded in parallel, which
+ * are then composed into the final blob on the server.
+ * <p>
+ * Every part is uploaded through its own resumable session, and a failed part is uploaded again
+ * on its own. The parts are temporary blobs next to the final one; they are deleted once
+ * composed, or as soon as the upload fails, so a failed upload leaves nothing behind.
+ * <p>
+ * Parts are compressed independently, so only codecs whose outputs can be concatenated
+ * ({@link BlobCodec#isConcatenable()}) can be used.
+ */
+final class CompositeUpload {
+    /**
+     * The most source blobs Google Cloud Storage accepts in one compose request.
+     */
+    static final int MAX_PARTS = 32;
+
+    private static final long MIN_PART_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    /**
+     * The chunk size of resumable sessions. Each chunk is one request, so larger chunks mean fewer
+     * round trips, at the cost of resending more after a failure.
+     */
+    static final int WRITE_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final Storage storage;
+    private final BlobInfo target;
+    private final Path file;
+    private final long size;
+    private final BlobCodec codec;
+    private final int level;
+    private final int threads;
+
+    /**
+     * @param target the blob to create, with any metadata it should have
+     * @param threads how many parts to upload at once
+     */
+    CompositeUpload(Storage storage, BlobInfo target, Path file, long size, BlobCodec codec, int level, int threads) {
+        this.storage = storage;
+        this.target = target;
+        this.file = file;
+        this.size = size;
+        this.codec = codec;
+        this.level = level;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return how many parts a file of size bytes is split into
+     */
+    static int partCount(long size) {
+        long partSize = Math.max(MIN_PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+        return (int) Math.max(1, (size + partSize - 1) / partSize);
+    }
+
+    /**
+     * Uploads the file and composes it into the target blob
+     *
+     * @return how many bytes were uploaded, after compression
+     */
+    long run() throws IOException {
+        int parts = partCount(size);
+        final long partSize = (size + parts - 1) / parts;
+        String prefix = target.getName() + ".dux-part-" + UUID.randomUUID() + "-";
+
+        final List<String> partNames = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            partNames.add(prefix + i);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, parts));
+        try {
+            List<Future<Long>> results = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                final long offset = i * partSize;
+                final long length = Math.min(partSize, size - offset);
+                final BlobInfo part = BlobInfo.newBuilder(target.getBucket(), partNames.get(i)).build();
+                results.add(pool.submit(() -> uploadWithRetries(storage, part, file, offset, length, codec, level)));
+            }
+
+            long uploaded = 0;
+            IOException failure = null;
+            for (Future<Long> result : results) {
+                try {
+                    uploaded += result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ?
+                                (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while uploading " + file, e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            storage.compose(Storage.ComposeRequest.newBuilder()
+                    .addSource(partNames)
+                    .setTarget(target)
+                    .build());
+            DuxCLI.logger.debug("composed {} from {} parts", target.getName(), parts);
+            return uploaded;
+        } finally {
+            pool.shutdownNow();
+            deleteParts(partNames);
+        }
+    }
+
+    /**
+     * Uploads like {@link #upload}, starting over up to twice if the upload fails
+     *
+     * @return how many bytes were uploaded, after compression
+     */
+    static long uploadWithRetries(Storage storage, BlobInfo info, Path file, long offset, long length,
+                                  BlobCodec codec, int level) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return upload(storage, info, file, offset, length, codec, level);
+            } catch (IOException | RuntimeException e) {
+                // StorageException, a RuntimeException, reports network and server errors
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                DuxCLI.logger.debug("upload of {} failed, retrying: {}", info.getName(), e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while uploading " + file, ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads length bytes of file, starting at offset, through codec, to a new blob described by
+     * info, in one resumable session
+     *
+     * @return how many bytes were uploaded, after compression
+     */
+    static long upload(Storage storage, BlobInfo info, Path file, long offset, long length,
+                       BlobCodec codec, int level) throws IOException {
+        WriteChannel writer = storage.writer(info);
+        writer.setChunkSize(WRITE_CHUNK_SIZE);
+        CountingOutputStream counter = new CountingOutputStream(Channels.newOutputStream(writer));
+        OutputStream out = codec.compress(counter, level);
+        // if copying fails, the writer is deliberately left open: closing it would create the blob
+        // from whatever was written so far, while abandoning it creates nothing
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = ByteStreams.limit(Channels.newInputStream(channel.position(offset)), length)) {
+            long copied = ByteStreams.copy(in, out);
+            if (copied != length) {
+                throw new IOException(file + " shrank while it was being uploaded");
+            }
+        }
+        out.close();
+        return counter.getCount();
+    }
+
+    /**
+     * Deletes whichever of the part blobs exist. Failing to delete one only wastes space, so it is
+     * logged rather than reported.
+     */
+    private void deleteParts(List<String> partNames) {
+        List<BlobId> ids = new ArrayList<>(partNames.size());
+        for (String name : partNames) {
+            ids.add(BlobId.of(target.getBucket(), name));
+        }
+        try {
+            storage.delete(ids);
+        } catch (RuntimeException e) {
+            DuxCLI.logger.warn("could not delete the temporary parts of {}: {}", target.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.dux.backingstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits files into chunks at boundaries chosen by their content, using a gear rolling hash
+ * with normalized chunk sizes (the FastCDC scheme).
+ * <p>
+ * Because a boundary depends only on the few dozen bytes before it, an edit to a file only
+ * changes the chunks around the edit; the chunks before and after it, and so their hashes, stay
+ * the same. Storing chunks by hash then means a new version of a large file only adds the few
+ * chunks that changed.
+ * <p>
+ * The gear table and the size parameters decide where every boundary falls, so changing them
+ * changes every chunk. They must stay fixed for as long as stored chunks should be reused.
+ */
+final class ContentDefinedChunker {
+    static final int MIN_SIZE = 256 * 1024;
+    static final int AVERAGE_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int AVERAGE_BITS = 20;
+    // below the average size, cut less often; above it, more often
+    private static final long MASK_SMALL = topBits(AVERAGE_BITS + 2);
+    private static final long MASK_LARGE = topBits(AVERAGE_BITS - 2);
+
+    private static final long[] GEAR = gearTable();
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ContentDefinedChunker() {
+    }
+
+    /**
+     * A piece of a file, and the SHA-256 hash of its contents
+     */
+    static final class Chunk {
+        final long offset;
+        final int length;
+        final byte[] hash;
+
+        Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The chunks of a file, and the SHA-256 hash of the whole file
+     */
+    static final class ChunkedFile {
+        final List<Chunk> chunks;
+        final long size;
+        final byte[] hash;
+
+        ChunkedFile(List<Chunk> chunks, long size, byte[] hash) {
+            this.chunks = chunks;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Reads the file at path once, splitting it into chunks and hashing each chunk and the whole file
+     */
+    static ChunkedFile chunk(Path path) throws IOException {
+        MessageDigest fileDigest = sha256();
+        MessageDigest chunkDigest = sha256();
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+
+        long position = 0;
+        long chunkStart = 0;
+        int chunkLength = 0;
+        long hash = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                if (read == 0) {
+                    continue;
+                }
+                fileDigest.update(bytes, 0, read);
+                int segmentStart = 0;
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                    chunkLength++;
+                    if (isBoundary(hash, chunkLength)) {
+                        chunkDigest.update(bytes, segmentStart, i + 1 - segmentStart);
+                        chunks.add(new Chunk(chunkStart, chunkLength, chunkDigest.digest()));
+                        segmentStart = i + 1;
+                        chunkStart += chunkLength;
+                        chunkLength = 0;
+                        hash = 0;
+                    }
+                }
+                chunkDigest.update(bytes, segmentStart, read - segmentStart);
+                position += read;
+                buffer.clear();
+            }
+        }
+        if (chunkLength > 0) {
+            chunks.add(new Chunk(chunkStart, chunkLength, chunkDigest.digest()));
+        }
+        return new ChunkedFile(chunks, position, fileDigest.digest());
+    }
+
+    private static boolean isBoundary(long hash, int length) {
+        if (length < MIN_SIZE) {
+            return false;
+        }
+        if (length >= MAX_SIZE) {
+            return true;
+        }
+        long mask = length < AVERAGE_SIZE ? MASK_SMALL : MASK_LARGE;
+        return (hash & mask) == 0;
+    }
+
+    /**
+     * @return a mask of the top n bits of a long. The top bits of a gear hash depend on the most
+     * bytes, so they make the best boundary test.
+     */
+    private static long topBits(int n) {
+        return -1L << (64 - n);
+    }
+
+    /**
+     * @return 256 pseudo-random values from a fixed seed, so that every dux installation chunks
+     * the same file the same way
+     */
+    private static long[] gearTable() {
+        long[] table = new long[256];
+        long state = 0x6475782d63686e6bL; // "dux-chnk"
+        for (int i = 0; i < table.length; i++) {
+            // splitmix64
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+}
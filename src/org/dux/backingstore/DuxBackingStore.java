@@ -1,10 +1,20 @@
 package org.dux.backingstore;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Represents a backing store for a dux instance.
  *
  * A dux backing store needs to be able to store and retrieve files, indexed by a hash of that file.
  * Implementations of this interface should use a concrete API to interface with some external server.
+ *
+ * Besides the blocking, single-file methods every implementation must provide, the interface offers
+ * asynchronous and batch variants. Their default implementations run the single-file methods
+ * concurrently; implementations whose server has a native batch API should override them.
  */
 public interface DuxBackingStore {
     /**
@@ -22,4 +32,63 @@ public interface DuxBackingStore {
      * @return whether the store succeeded
      */
     boolean storeFile(String key, String filePath);
+
+    /**
+     * Checks whether a file is already stored under key, without transferring its contents
+     * @param key a hash into a dux server
+     * @return whether the server holds a file under key
+     */
+    boolean containsFile(String key);
+
+    /**
+     * Starts fetching the file hashed by key from server to target, without waiting for it
+     * @return a future that completes with whether the fetch succeeded
+     */
+    default CompletableFuture<Boolean> fetchFileAsync(String key, String target) {
+        return CompletableFuture.supplyAsync(() -> fetchFile(key, target), Transfers.asyncExecutor());
+    }
+
+    /**
+     * Starts storing the file located at filePath under the key on server, without waiting for it
+     * @return a future that completes with whether the store succeeded
+     */
+    default CompletableFuture<Boolean> storeFileAsync(String key, String filePath) {
+        return CompletableFuture.supplyAsync(() -> storeFile(key, filePath), Transfers.asyncExecutor());
+    }
+
+    /**
+     * Checks which of keys are already stored on server
+     * @return whether each key is stored, in the iteration order of keys
+     */
+    default Map<String, Boolean> containsFiles(Collection<String> keys) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            result.put(key, containsFile(key));
+        }
+        return result;
+    }
+
+    /**
+     * Fetches each transfer's key to its path
+     * @param parallelism how many fetches to run at once
+     * @return whether each fetch succeeded, in the order of transfers
+     */
+    default List<Boolean> fetchFiles(List<DuxTransfer> transfers, int parallelism) {
+        return Transfers.runAll(transfers, parallelism, this::fetchFile);
+    }
+
+    /**
+     * Stores each transfer's path under its key
+     * @param parallelism how many stores to run at once
+     * @return whether each store succeeded, in the order of transfers
+     */
+    default List<Boolean> storeFiles(List<DuxTransfer> transfers, int parallelism) {
+        return Transfers.runAll(transfers, parallelism, this::storeFile);
+    }
+
+    /**
+     * Logs statistics about the transfers made so far, for stores that keep any
+     */
+    default void logStatistics() {
+    }
 }
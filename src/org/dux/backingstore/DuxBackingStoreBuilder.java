@@ -8,9 +8,18 @@ import org.dux.cli.DuxCLI;
 public class DuxBackingStoreBuilder {
     private String type = null;
     private String bucket = null;
+    private String root = null;
+    private boolean linkFetched = false;
+    private String codec = null;
+    private int codecLevel = BlobCodec.DEFAULT_LEVEL;
+    private String cacheDir = null;
+    private long cacheBytes = 0;
+    private long chunkThreshold = 0;
+    private int transferThreads = GoogleBackingStore.DEFAULT_TRANSFER_THREADS;
 
     private final String GOOGLE_CLOUD_STORAGE = "google";
-    private final String[] SUPPORTED_STORAGE_TYPES = new String[] {GOOGLE_CLOUD_STORAGE};
+    private final String LOCAL_DIRECTORY = "local";
+    private final String[] SUPPORTED_STORAGE_TYPES = new String[] {GOOGLE_CLOUD_STORAGE, LOCAL_DIRECTORY};
 
     public DuxBackingStoreBuilder type(String type) {
         this.type = type;
@@ -22,7 +31,73 @@ public class DuxBackingStoreBuilder {
         return this;
     }
 
+    public DuxBackingStoreBuilder root(String root) {
+        this.root = root;
+        return this;
+    }
+
+    /**
+     * Has a local store hard-link fetched files to its stored files instead of copying them.
+     * Fetched files must then never be written to, since that would change the stored file.
+     */
+    public DuxBackingStoreBuilder linkFetched(boolean linkFetched) {
+        this.linkFetched = linkFetched;
+        return this;
+    }
+
+    /**
+     * Compresses stored files with the named {@link BlobCodec}, if the store supports compression
+     */
+    public DuxBackingStoreBuilder codec(String codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public DuxBackingStoreBuilder codecLevel(int codecLevel) {
+        this.codecLevel = codecLevel;
+        return this;
+    }
+
+    /**
+     * Transfers up to transferThreads ranges of one large file at once, if the store supports it
+     */
+    public DuxBackingStoreBuilder transferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+        return this;
+    }
+
+    /**
+     * Keeps a local copy of every fetched file in cacheDir, evicting the least recently
+     * used files once the copies take up more than maxBytes.
+     */
+    public DuxBackingStoreBuilder cache(String cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.cacheBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Stores files of at least threshold bytes as content-defined chunks, or, if threshold is 0,
+     * stores every file whole. Chunked files can be fetched either way.
+     */
+    public DuxBackingStoreBuilder chunkThreshold(long threshold) {
+        this.chunkThreshold = threshold;
+        return this;
+    }
+
     public DuxBackingStore build() {
+        DuxBackingStore store = buildStore();
+        if (store == null) {
+            return null;
+        }
+        if (cacheDir != null) {
+            store = new CachingBackingStore(store, cacheDir, cacheBytes);
+        }
+        // outermost, so that the cache also keeps chunks
+        return new ChunkedBackingStore(store, chunkThreshold);
+    }
+
+    private DuxBackingStore buildStore() {
         if (type == null) {
             throw new UnsupportedOperationException("cannot create a backing store with specifying the type");
         }
@@ -32,7 +107,13 @@ public class DuxBackingStoreBuilder {
                     DuxCLI.logger.error("tried to build a google backing store without specifying a bucket!");
                     return null;
                 }
-                return new GoogleBackingStore(bucket);
+                return new GoogleBackingStore(bucket, buildCodec(), codecLevel, transferThreads);
+            case LOCAL_DIRECTORY:
+                if (root == null) {
+                    DuxCLI.logger.error("tried to build a local backing store without specifying a root directory!");
+                    return null;
+                }
+                return new LocalBackingStore(root, linkFetched);
             default:
                 String msg = "unsupported backing store type: " + type + ". Supported types: ";
                 for (String supported : SUPPORTED_STORAGE_TYPES) {
@@ -42,4 +123,17 @@ public class DuxBackingStoreBuilder {
                 throw new UnsupportedOperationException(msg);
         }
     }
+
+    private BlobCodec buildCodec() {
+        try {
+            return BlobCodec.forName(codec);
+        } catch (IllegalArgumentException e) {
+            String msg = "unsupported codec: " + codec + ". Supported codecs: ";
+            for (BlobCodec supported : BlobCodec.values()) {
+                msg += supported.getName() + ", ";
+            }
+            msg = msg.substring(0, msg.length() - 2);
+            throw new UnsupportedOperationException(msg);
+        }
+    }
 }
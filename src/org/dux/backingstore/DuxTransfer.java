@@ -0,0 +1,30 @@
+package org.dux.backingstore;
+
+/**
+ * One file to move between the local filesystem and a backing store, as part of a batch
+ * (see {@link DuxBackingStore#fetchFiles} and {@link DuxBackingStore#storeFiles}).
+ */
+public final class DuxTransfer {
+    /**
+     * The key of the file in the backing store
+     */
+    public final String key;
+
+    /**
+     * The local path of the file: the target of a fetch, or the source of a store
+     */
+    public final String path;
+
+    public DuxTransfer(String key, String path) {
+        this.key = key;
+        this.path = path;
+    }
+
+    @Override
+    public String toString() {
+        return "DuxTransfer{" +
+                "key='" + key + '\'' +
+                ", path='" + path + '\'' +
+                '}';
+    }
+}
@@ -1,45 +1,116 @@
 package org.dux.backingstore;
 
-import com.google.cloud.ReadChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
 import com.google.cloud.storage.StorageOptions;
+import com.google.common.io.ByteStreams;
 import org.dux.cli.DuxCLI;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
-import java.nio.ByteBuffer;
+import java.io.OutputStream;
 import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  *  An implementation of {@link DuxBackingStore} that uses Google Cloud Storage as the backing store.
+ *
+ *  Batch operations look up the metadata of up to {@link #MAX_BATCH_SIZE} blobs in a single
+ *  request, and transfer each distinct key only once.
  */
 public class GoogleBackingStore implements DuxBackingStore {
 
     /**
-     * The default storage instance available, based on the credentials available to the running application.
+     * The most operations Google Cloud Storage accepts in one batch request.
      */
-    private final Storage storage = StorageOptions.getDefaultInstance().getService();
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * How many ranges of one large blob to transfer at once, unless configured otherwise.
+     */
+    static final int DEFAULT_TRANSFER_THREADS = 8;
+
+    /**
+     * Blobs smaller than this are downloaded in one request.
+     */
+    private static final long SMALL_BLOB_SIZE = 1_000_000;
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    /**
+     * Files at least this large are uploaded as parts in parallel.
+     */
+    private static final long COMPOSITE_UPLOAD_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The storage instance in use: by default, the one available based on the credentials
+     * available to the running application.
+     */
+    private final Storage storage;
 
     /**
      * The name of the bucket in Google Cloud Storage that this instance will interact with.
      */
     private final String BUCKET_NAME;
 
+    /**
+     * The codec with which stored files are compressed, and its level.
+     */
+    private final BlobCodec codec;
+    private final int level;
+
+    /**
+     * How many ranges of one large blob to transfer at once.
+     */
+    private final int transferThreads;
+
     /**
      * Creates a backing store instance
      * @param bucketName the name of a bucket in Google Cloud Storage. This instance will store and retreive files
      *                   from this bucket.
      */
     GoogleBackingStore(String bucketName) {
+        this(bucketName, BlobCodec.IDENTITY, BlobCodec.DEFAULT_LEVEL, DEFAULT_TRANSFER_THREADS);
+    }
+
+    /**
+     * Creates a backing store instance that compresses the files it stores
+     * @param bucketName the name of a bucket in Google Cloud Storage
+     * @param codec the codec to compress stored files with. Files that do not look compressible
+     *              are stored uncompressed regardless.
+     * @param level the compression level to use
+     * @param transferThreads how many ranges of one large blob to transfer at once
+     */
+    GoogleBackingStore(String bucketName, BlobCodec codec, int level, int transferThreads) {
+        this(StorageOptions.getDefaultInstance().getService(), bucketName, codec, level, transferThreads);
+    }
+
+    /**
+     * Creates a backing store instance that talks to the given storage, e.g. a local stand-in
+     * for Google Cloud Storage
+     */
+    GoogleBackingStore(Storage storage, String bucketName, BlobCodec codec, int level, int transferThreads) {
+        this.storage = storage;
         BUCKET_NAME = bucketName;
+        this.codec = codec;
+        this.level = level;
+        this.transferThreads = Math.max(1, transferThreads);
     }
 
     /**
@@ -55,56 +126,107 @@ public class GoogleBackingStore implements DuxBackingStore {
     @Override
     public boolean fetchFile(String key, String target) {
         DuxCLI.logger.debug("Fetching hash {} from Google Cloud Storage", key);
-        Blob blob = storage.get(BUCKET_NAME, key);
-        if (blob == null) {
-            DuxCLI.logger.debug("GCS reports it could not find the file");
-            return false;
-        }
-        PrintStream writeTo;
+        return StoreMetrics.FETCH.time(() -> {
+            Blob blob = storage.get(BUCKET_NAME, key);
+            if (blob == null) {
+                DuxCLI.logger.debug("GCS reports it could not find the file");
+                return false;
+            }
+            return fetchBlob(blob, target);
+        });
+    }
+
+    /**
+     * Downloads the contents of blob to target, decompressing them with the codec recorded in
+     * the blob's metadata.
+     *
+     * The blob is downloaded to a partial file next to target, which only replaces target (by an
+     * atomic rename) once it is complete, so target is never left truncated. If the download is
+     * interrupted, the next fetch of the same blob to the same target resumes it.
+     */
+    private boolean fetchBlob(Blob blob, String target) {
         File targetFile = new File(target);
         if (targetFile.getParentFile() == null || !targetFile.getParentFile().mkdirs()) {
             DuxCLI.logger.debug("could not create directories needed to write to {}.", target);
         }
+        BlobCodec blobCodec;
         try {
-            writeTo = new PrintStream(new FileOutputStream(targetFile));
-        } catch (IOException ioe) {
-            DuxCLI.logger.error("target file {} could not be opened for writing. Do you need to run as root?", target);
+            Map<String, String> metadata = blob.getMetadata();
+            blobCodec = BlobCodec.forName(metadata == null ? null : metadata.get(BlobCodec.METADATA_KEY));
+        } catch (IllegalArgumentException e) {
+            DuxCLI.logger.error("{} was stored in a format this version of dux cannot read: {}", blob.getName(), e.getMessage());
             return false;
         }
-        if (blob.getSize() < 1_000_000) {
-            // Blob is small read all its content in one request
-            byte[] content = blob.getContent();
-            try {
-                writeTo.write(content);
-            } catch (IOException ioe) {
-                DuxCLI.logger.error("failed to write to target file {}", target);
-                return false;
-            }
-        } else {
-            // When Blob size is big or unknown use the blob's channel reader.
-            try (ReadChannel reader = blob.reader()) {
-                WritableByteChannel channel = Channels.newChannel(writeTo);
-                ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
-                try {
-                    while (reader.read(bytes) > 0) {
-                        bytes.flip();
-                        channel.write(bytes);
-                        bytes.clear();
-                    }
-                } catch (IOException ioe) {
-                    DuxCLI.logger.debug("failed to write (large) to target file {}", target);
-                    return false;
+
+        Path targetPath = targetFile.toPath().toAbsolutePath();
+        Path partial = targetPath.resolveSibling(targetPath.getFileName() + PARTIAL_SUFFIX);
+        Path decompressed = targetPath.resolveSibling(targetPath.getFileName() + ".dux-tmp");
+        try {
+            downloadRaw(blob, partial);
+            Path complete = partial;
+            if (blobCodec != BlobCodec.IDENTITY) {
+                try (InputStream in = blobCodec.decompress(Files.newInputStream(partial));
+                     OutputStream out = Files.newOutputStream(decompressed)) {
+                    ByteStreams.copy(in, out);
                 }
+                Files.delete(partial);
+                complete = decompressed;
             }
+            // bad TODO pls fix
+            File completeFile = complete.toFile();
+            completeFile.setExecutable(true);
+            completeFile.setReadable(true);
+            completeFile.setWritable(true);
+            Files.move(complete, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AccessDeniedException ade) {
+            DuxCLI.logger.error("target file {} could not be opened for writing. Do you need to run as root?", target);
+            return false;
+        } catch (IOException | StorageException e) {
+            // the partial file is kept, so that the next attempt can resume
+            DuxCLI.logger.error("failed to download {} to {}: {}", blob.getName(), target, e);
+            return false;
+        } finally {
+            LocalBackingStore.deleteQuietly(decompressed);
         }
-        writeTo.close();
-        // bad TODO pls fix
-        targetFile.setExecutable(true);
-        targetFile.setReadable(true);
-        targetFile.setWritable(true);
         return true;
     }
 
+    /**
+     * Downloads the bytes of blob, as stored, into partial: small blobs in one request, and larger
+     * ones as ranges read in parallel
+     */
+    private void downloadRaw(Blob blob, Path partial) throws IOException {
+        Long size = blob.getSize();
+        if (size != null && size < SMALL_BLOB_SIZE) {
+            // Blob is small read all its content in one request
+            Files.deleteIfExists(RangedDownload.stateFile(partial));
+            Files.write(partial, blob.getContent());
+            return;
+        }
+        if (size == null) {
+            // the size is unknown, so the blob cannot be split into ranges
+            try (InputStream in = Channels.newInputStream(blob.reader())) {
+                Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
+        new RangedDownload(storage, BlobId.of(BUCKET_NAME, blob.getName(), blob.getGeneration()),
+                size, partial, transferThreads).run();
+    }
+
+    /**
+     * Checks whether a file is already stored under key. Only asks for the
+     * blob's metadata, so no contents are transferred.
+     *
+     * @param key a hash into a dux server
+     * @return whether the bucket holds a blob named key
+     */
+    @Override
+    public boolean containsFile(String key) {
+        return StoreMetrics.CONTAINS.time(
+                () -> storage.get(BUCKET_NAME, key, Storage.BlobGetOption.fields()) != null);
+    }
+
     /**
      * Stores the file located at filePath under the key on server
      *
@@ -114,15 +236,193 @@ public class GoogleBackingStore implements DuxBackingStore {
      */
     @Override
     public boolean storeFile(String key, String filePath) {
+        return StoreMetrics.STORE.time(() -> storeBlob(key, filePath));
+    }
+
+    /**
+     * Uploads the file at filePath, through the codec chosen for it, to a blob named key. Large
+     * files are uploaded as parallel parts composed on the server; others in one resumable session.
+     */
+    private boolean storeBlob(String key, String filePath) {
         DuxCLI.logger.debug("Storing file {} in Google Cloud Storage", filePath);
+        BlobCodec blobCodec = chooseCodec(filePath);
+        BlobInfo.Builder info = BlobInfo.newBuilder(BUCKET_NAME, key);
+        if (blobCodec != BlobCodec.IDENTITY) {
+            info.setMetadata(Collections.singletonMap(BlobCodec.METADATA_KEY, blobCodec.getName()));
+        }
+        Path file = Paths.get(filePath);
+        try {
+            long size = Files.size(file);
+            long uploaded;
+            if (size >= COMPOSITE_UPLOAD_SIZE && blobCodec.isConcatenable()) {
+                uploaded = new CompositeUpload(storage, info.build(), file, size, blobCodec, level,
+                        transferThreads).run();
+            } else {
+                uploaded = CompositeUpload.uploadWithRetries(storage, info.build(), file, 0, size, blobCodec, level);
+            }
+            DuxCLI.logger.debug("file stored successfully, {} bytes as {} bytes of {}",
+                    size, uploaded, blobCodec.getName());
+            return true;
+        } catch (IOException | StorageException e) {
+            DuxCLI.logger.debug("Exception occured while trying to store file: {}", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the codec to store the file at filePath with: the configured one, unless the file
+     * does not look like it would compress
+     */
+    private BlobCodec chooseCodec(String filePath) {
+        if (codec == BlobCodec.IDENTITY) {
+            return codec;
+        }
+        try {
+            return BlobCodec.looksCompressible(filePath) ? codec : BlobCodec.IDENTITY;
+        } catch (IOException ioe) {
+            // the upload will report the problem
+            return BlobCodec.IDENTITY;
+        }
+    }
+
+    /**
+     * Checks which of keys are stored, looking up the metadata of many blobs per request
+     *
+     * @return whether each key is stored, in the iteration order of keys
+     */
+    @Override
+    public Map<String, Boolean> containsFiles(Collection<String> keys) {
+        Map<String, Blob> blobs = getBlobs(keys);
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            result.put(key, blobs.get(key) != null);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches each transfer's key to its path. The metadata of all the blobs is looked up in
+     * batches, and a key wanted at several paths is downloaded once and copied to the others.
+     *
+     * @param parallelism how many downloads to run at once
+     * @return whether each fetch succeeded, in the order of transfers
+     */
+    @Override
+    public List<Boolean> fetchFiles(List<DuxTransfer> transfers, int parallelism) {
+        Map<String, List<Integer>> indicesByKey = groupByKey(transfers);
+        final Map<String, Blob> blobs = getBlobs(indicesByKey.keySet());
+
+        List<DuxTransfer> downloads = new ArrayList<>();
+        for (List<Integer> indices : indicesByKey.values()) {
+            downloads.add(transfers.get(indices.get(0)));
+        }
+        List<Boolean> downloaded = Transfers.runAll(downloads, parallelism, (key, target) -> {
+            Blob blob = blobs.get(key);
+            if (blob == null) {
+                DuxCLI.logger.debug("GCS reports it could not find the file {}", key);
+                return false;
+            }
+            return StoreMetrics.FETCH.time(() -> fetchBlob(blob, target));
+        });
+
+        Boolean[] results = new Boolean[transfers.size()];
+        int i = 0;
+        for (List<Integer> indices : indicesByKey.values()) {
+            boolean ok = downloaded.get(i++);
+            String source = transfers.get(indices.get(0)).path;
+            results[indices.get(0)] = ok;
+            for (int j = 1; j < indices.size(); j++) {
+                results[indices.get(j)] = ok && copyLocally(source, transfers.get(indices.get(j)).path);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stores each transfer's path under its key. A key given more than once is uploaded once. Unlike {@link #storeFile}, this
+     * does not check whether a key is already stored; callers that want to skip stored keys
+     * should check them all at once with {@link #containsFiles}.
+     *
+     * @param parallelism how many uploads to run at once
+     * @return whether each store succeeded, in the order of transfers
+     */
+    @Override
+    public List<Boolean> storeFiles(List<DuxTransfer> transfers, int parallelism) {
+        Map<String, List<Integer>> indicesByKey = groupByKey(transfers);
+
+        List<DuxTransfer> uploads = new ArrayList<>();
+        for (List<Integer> indices : indicesByKey.values()) {
+            uploads.add(transfers.get(indices.get(0)));
+        }
+        List<Boolean> uploaded = Transfers.runAll(uploads, parallelism,
+                (key, filePath) -> StoreMetrics.STORE.time(() -> storeBlob(key, filePath)));
+
+        Boolean[] results = new Boolean[transfers.size()];
+        int i = 0;
+        for (List<Integer> indices : indicesByKey.values()) {
+            boolean ok = uploaded.get(i++);
+            for (int index : indices) {
+                results[index] = ok;
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Looks up the metadata of the blobs named by keys, {@link #MAX_BATCH_SIZE} per request
+     *
+     * @return the blob for each key that is stored. Keys that are not stored are absent.
+     */
+    private Map<String, Blob> getBlobs(Collection<String> keys) {
+        Map<String, Blob> result = new HashMap<>();
+        List<BlobId> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        for (String key : keys) {
+            batch.add(BlobId.of(BUCKET_NAME, key));
+            if (batch.size() == MAX_BATCH_SIZE) {
+                addBlobs(batch, result);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            addBlobs(batch, result);
+        }
+        return result;
+    }
+
+    private void addBlobs(List<BlobId> ids, Map<String, Blob> result) {
+        long start = System.nanoTime();
+        List<Blob> blobs = storage.get(ids);
+        StoreMetrics.LOOKUP_BATCH.recordSince(start);
+        for (int i = 0; i < ids.size(); i++) {
+            // the batch response holds null for each blob that does not exist
+            if (blobs.get(i) != null) {
+                result.put(ids.get(i).getName(), blobs.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return the indices of transfers, grouped by key in order of first appearance
+     */
+    private static Map<String, List<Integer>> groupByKey(List<DuxTransfer> transfers) {
+        Map<String, List<Integer>> result = new LinkedHashMap<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            List<Integer> indices = result.get(transfers.get(i).key);
+            if (indices == null) {
+                indices = new ArrayList<>();
+                result.put(transfers.get(i).key, indices);
+            }
+            indices.add(i);
+        }
+        return result;
+    }
+
+    private static boolean copyLocally(String source, String target) {
         try {
-            InputStream fileInputStream = new FileInputStream(filePath);
-            Bucket bucket = storage.get(BUCKET_NAME);
-            bucket.create(key, fileInputStream);
-            DuxCLI.logger.debug("file stored successfully");
+            LocalBackingStore.placeAtomically(Paths.get(source), Paths.get(target), false);
             return true;
         } catch (IOException ioe) {
-            DuxCLI.logger.debug("IOException occured while trying to read file");
+            DuxCLI.logger.error("failed to copy {} to {}: {}", source, target, ioe);
             return false;
         }
     }
@@ -0,0 +1,231 @@
+package org.dux.backingstore;
+
+import org.dux.cli.DuxCLI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An implementation of {@link DuxBackingStore} that keeps files in a directory on the local
+ * filesystem, such as a large local disk or a shared NFS volume.
+ * <p>
+ * Each file is stored under its key in a subdirectory named after the first characters of the
+ * key (e.g. {@code root/ab/cd/abcd...}), so no single directory grows too large. Files are
+ * written to a temporary file first and then renamed into place, so a reader never sees a
+ * partially written file, even with several dux processes sharing the store.
+ * <p>
+ * Fetched files are private, writable copies by default. A store can instead hard-link them to
+ * the stored files, which saves space and time, but then a fetched file must never be written
+ * to: a write through the link changes the stored file for every configuration that uses it.
+ */
+public class LocalBackingStore implements DuxBackingStore {
+
+    /**
+     * The directory under which files are stored.
+     */
+    private final Path root;
+
+    /**
+     * Whether fetched files may be hard links to the stored files.
+     */
+    private final boolean linkFetched;
+
+    /**
+     * Creates a backing store instance whose fetched files are copies
+     * @param root the directory in which to store files. It is created if it does not exist.
+     */
+    LocalBackingStore(String root) {
+        this(root, false);
+    }
+
+    /**
+     * Creates a backing store instance
+     * @param root        the directory in which to store files. It is created if it does not exist.
+     * @param linkFetched whether a fetched file on the same filesystem as the store is hard-linked
+     *                    to the stored file rather than copied
+     */
+    LocalBackingStore(String root, boolean linkFetched) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.linkFetched = linkFetched;
+    }
+
+    /**
+     * @return the path at which the file stored under key is kept
+     */
+    Path blobPath(String key) {
+        String name = key.replace('/', '_').replace('\\', '_');
+        if (name.length() < 4) {
+            return root.resolve(name);
+        }
+        return root.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+
+    /**
+     * Fetches the file stored under key and places it at target. If this store links fetched
+     * files and target is on the same filesystem as the store, it is hard-linked to the stored
+     * file instead of being copied.
+     *
+     * @param key    a hash into a dux server
+     * @param target the path to which the file should be saved
+     * @return whether the fetch succeeded
+     */
+    @Override
+    public boolean fetchFile(String key, String target) {
+        return StoreMetrics.FETCH.time(() -> fetch(key, target));
+    }
+
+    private boolean fetch(String key, String target) {
+        DuxCLI.logger.debug("Fetching hash {} from local store {}", key, root);
+        Path blob = blobPath(key);
+        if (!Files.isRegularFile(blob)) {
+            DuxCLI.logger.debug("local store has no file {}", key);
+            return false;
+        }
+
+        try {
+            placeAtomically(blob, Paths.get(target), linkFetched);
+            return true;
+        } catch (IOException ioe) {
+            DuxCLI.logger.error("failed to fetch {} to {}: {}", key, target, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the file located at filePath under the key. Storing a key that is already present
+     * does nothing, since keys are hashes of the file contents.
+     *
+     * @param key      a key into a dux server. Must be a hash of filePath
+     * @param filePath the path from which the file should be read
+     * @return whether the store succeeded
+     */
+    @Override
+    public boolean storeFile(String key, String filePath) {
+        return StoreMetrics.STORE.time(() -> store(key, filePath));
+    }
+
+    private boolean store(String key, String filePath) {
+        DuxCLI.logger.debug("Storing file {} in local store {}", filePath, root);
+        Path blob = blobPath(key);
+        if (Files.isRegularFile(blob)) {
+            DuxCLI.logger.debug("file already stored");
+            return true;
+        }
+
+        Path tmp = null;
+        try {
+            Files.createDirectories(blob.getParent());
+            tmp = Files.createTempFile(blob.getParent(), blob.getFileName().toString(), ".tmp");
+            copy(Paths.get(filePath), tmp);
+            moveIntoStore(tmp, key);
+            DuxCLI.logger.debug("file stored successfully");
+            return true;
+        } catch (IOException ioe) {
+            DuxCLI.logger.debug("IOException occured while trying to store file: {}", ioe);
+            return false;
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    @Override
+    public boolean containsFile(String key) {
+        return StoreMetrics.CONTAINS.time(() -> Files.isRegularFile(blobPath(key)));
+    }
+
+    /**
+     * Moves a complete file, which must be on the same filesystem as the store, into place
+     * as the file stored under key.
+     */
+    void moveIntoStore(Path file, String key) throws IOException {
+        Path blob = blobPath(key);
+        Files.createDirectories(blob.getParent());
+        // stored files may be hard-linked into place by fetches, so they must not be modified
+        File f = file.toFile();
+        f.setReadable(true, false);
+        f.setExecutable(true, false);
+        f.setWritable(false, false);
+        Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Puts a link to or a copy of source at target, through a temporary file next to target
+     * that is renamed into place, so that target never exists in a partially written state.
+     *
+     * @param allowLink whether target may be a hard link to source
+     */
+    static void placeAtomically(Path source, Path target, boolean allowLink) throws IOException {
+        Path targetPath = target.toAbsolutePath();
+        Files.createDirectories(targetPath.getParent());
+        Path tmp = targetPath.resolveSibling(targetPath.getFileName() + ".dux-tmp");
+        try {
+            Files.deleteIfExists(tmp);
+            if (!allowLink || !link(source, tmp)) {
+                copy(source, tmp);
+                // a private copy, so make it usable the same way a downloaded file is
+                File tmpFile = tmp.toFile();
+                tmpFile.setExecutable(true);
+                tmpFile.setReadable(true);
+                tmpFile.setWritable(true);
+            }
+            Files.move(tmp, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    /**
+     * Hard-links target to source, if they are on the same filesystem.
+     *
+     * @return whether the link was created
+     */
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // most likely a different filesystem
+            DuxCLI.logger.debug("cannot link {} to {}, copying instead: {}", target, source, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies source to target with FileChannel.transferTo, which lets the kernel move the bytes
+     * without passing them through the JVM. Java has no way to ask for a reflink (a copy that
+     * shares blocks until either file is written), so this is always a full copy.
+     */
+    static void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    // the source shrank while it was being copied
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    static void deleteQuietly(Path p) {
+        if (p == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException ioe) {
+            DuxCLI.logger.debug("could not clean up {}: {}", p, ioe);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.dux.backingstore;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.cli.DuxCLI;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads one blob from Google Cloud Storage as several byte ranges read in parallel, each
+ * written at its offset into a preallocated partial file.
+ * <p>
+ * A failed range is retried on its own, from where it stopped. Each finished range is recorded
+ * in a state file next to the partial file, so when a download is interrupted, the next attempt
+ * at the same generation of the blob only downloads the ranges that were not finished.
+ */
+final class RangedDownload {
+    static final int RANGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int STATE_MAGIC = 0x44555850; // "DUXP"
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 500;
+    private static final int READ_CHUNK_SIZE = 2 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Storage storage;
+    private final BlobId blob;
+    private final long generation;
+    private final long size;
+    private final Path partial;
+    private final Path stateFile;
+    private final int threads;
+
+    private BitSet finished;
+
+    /**
+     * @param blob       the blob to download, which must include its generation, so that every
+     *                   range comes from the same version of the blob
+     * @param size       the size of the blob
+     * @param partial    the file to download into
+     * @param threads    how many ranges to download at once
+     */
+    RangedDownload(Storage storage, BlobId blob, long size, Path partial, int threads) {
+        this.storage = storage;
+        this.blob = blob;
+        this.generation = blob.getGeneration() == null ? 0 : blob.getGeneration();
+        this.size = size;
+        this.partial = partial;
+        this.stateFile = stateFile(partial);
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return the file in which the progress of a download into partial is recorded
+     */
+    static Path stateFile(Path partial) {
+        return partial.resolveSibling(partial.getFileName() + ".state");
+    }
+
+    /**
+     * Downloads whatever ranges of the blob are not in the partial file yet. When this returns,
+     * the partial file holds the whole blob and the state file is gone; when it throws, both are
+     * left in place for the next attempt.
+     */
+    void run() throws IOException {
+        int ranges = (int) Math.max(1, (size + RANGE_SIZE - 1) / RANGE_SIZE);
+        finished = resumeState(ranges);
+        if (finished == null) {
+            finished = new BitSet(ranges);
+            try (RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw")) {
+                file.setLength(size);
+            }
+            saveState();
+        } else {
+            DuxCLI.logger.debug("resuming download of {}: {} of {} ranges already done",
+                    blob.getName(), finished.cardinality(), ranges);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, ranges));
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < ranges; i++) {
+                if (!finished.get(i)) {
+                    final int range = i;
+                    results.add(pool.submit(() -> {
+                        downloadRange(range, out);
+                        return null;
+                    }));
+                }
+            }
+
+            IOException failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ?
+                                (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while downloading " + blob.getName(), e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Files.deleteIfExists(stateFile);
+    }
+
+    private void downloadRange(int range, FileChannel out) throws IOException {
+        long start = (long) range * RANGE_SIZE;
+        long end = Math.min(size, start + RANGE_SIZE);
+        long position = start;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        for (int attempt = 1; ; attempt++) {
+            try (ReadChannel reader = blob.getGeneration() == null ? storage.reader(blob)
+                    : storage.reader(blob, Storage.BlobSourceOption.generationMatch())) {
+                reader.setChunkSize(READ_CHUNK_SIZE);
+                reader.seek(position);
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    if (reader.read(buffer) < 0) {
+                        throw new IOException(blob.getName() + " ended at " + position + ", expected " + size + " bytes");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                }
+                break;
+            } catch (IOException | RuntimeException e) {
+                // StorageException, a RuntimeException, reports network and server errors
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                DuxCLI.logger.debug("range {} of {} failed at byte {}, retrying: {}", range, blob.getName(), position, e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while downloading " + blob.getName(), ie);
+                }
+            }
+        }
+
+        // the range must be on disk before the state file says it is
+        out.force(false);
+        synchronized (this) {
+            finished.set(range);
+            saveState();
+        }
+    }
+
+    /**
+     * @return the finished ranges recorded by an earlier attempt at the same download, or null if
+     * there was none or it was for a different version of the blob
+     */
+    private @Nullable BitSet resumeState(int ranges) {
+        if (!Files.exists(stateFile) || !Files.exists(partial)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            if (in.readInt() != STATE_MAGIC || in.readLong() != generation || in.readLong() != size
+                    || in.readInt() != RANGE_SIZE || Files.size(partial) != size) {
+                return null;
+            }
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            BitSet result = BitSet.valueOf(bits);
+            return result.length() <= ranges ? result : null;
+        } catch (IOException ioe) {
+            DuxCLI.logger.debug("could not read download state {}, starting over: {}", stateFile, ioe);
+            return null;
+        }
+    }
+
+    private void saveState() throws IOException {
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeLong(generation);
+            out.writeLong(size);
+            out.writeInt(RANGE_SIZE);
+            byte[] bits = finished.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
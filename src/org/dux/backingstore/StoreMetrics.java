@@ -0,0 +1,55 @@
+package org.dux.backingstore;
+
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+import org.dux.metrics.Histogram;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * The latencies of the operations that backing stores make against their servers, whichever
+ * store makes them and whether they are made one at a time or as part of a batch. Stores that
+ * only wrap another store, such as {@link CachingBackingStore}, do not record them again.
+ */
+final class StoreMetrics {
+    static final Operation FETCH = new Operation("fetch");
+    static final Operation STORE = new Operation("store");
+    static final Operation CONTAINS = new Operation("contains");
+    // one request for the metadata of many blobs
+    static final Operation LOOKUP_BATCH = new Operation("lookup_batch");
+
+    private StoreMetrics() {
+    }
+
+    /**
+     * One kind of operation, reported as store.name.nanos, and store.name.false for the
+     * operations that returned false: failed fetches and stores, and keys that are not stored
+     */
+    static final class Operation {
+        private final Histogram nanos;
+        private final Counter falses;
+
+        private Operation(String name) {
+            nanos = DuxMetrics.histogram("store." + name + ".nanos");
+            falses = DuxMetrics.counter("store." + name + ".false");
+        }
+
+        boolean time(BooleanSupplier operation) {
+            long start = System.nanoTime();
+            boolean result = false;
+            try {
+                result = operation.getAsBoolean();
+                return result;
+            } finally {
+                nanos.recordSince(start);
+                if (!result) {
+                    falses.increment();
+                }
+            }
+        }
+
+        void recordSince(long startNanos) {
+            nanos.recordSince(startNanos);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.dux.backingstore;
+
+import org.dux.cli.DuxCLI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for running the transfers of a {@link DuxBackingStore} concurrently.
+ */
+final class Transfers {
+    /**
+     * How many transfers started with the async methods of {@link DuxBackingStore} may run at once.
+     */
+    private static final int ASYNC_THREADS = 16;
+
+    private static volatile ExecutorService asyncExecutor;
+
+    private Transfers() {
+    }
+
+    /**
+     * A single transfer, e.g. {@link DuxBackingStore#fetchFile}.
+     */
+    interface Operation {
+        boolean transfer(String key, String path);
+    }
+
+    /**
+     * @return the executor shared by the async methods of every backing store. Its threads are
+     * daemons, so pending transfers do not keep the JVM alive.
+     */
+    static Executor asyncExecutor() {
+        if (asyncExecutor == null) {
+            synchronized (Transfers.class) {
+                if (asyncExecutor == null) {
+                    asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS, daemonThreads("dux-transfer-"));
+                }
+            }
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Runs op on every transfer, at most parallelism at a time.
+     *
+     * @return whether each transfer succeeded, in the order of transfers
+     */
+    static List<Boolean> runAll(List<DuxTransfer> transfers, int parallelism, final Operation op) {
+        if (transfers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int threads = Math.max(1, Math.min(parallelism, transfers.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, daemonThreads("dux-batch-"));
+        List<Future<Boolean>> futures = new ArrayList<>(transfers.size());
+        List<Boolean> results = new ArrayList<>(transfers.size());
+        try {
+            for (final DuxTransfer t : transfers) {
+                futures.add(pool.submit(() -> op.transfer(t.key, t.path)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    DuxCLI.logger.error("transfer of {} failed: {}", transfers.get(i), e.getCause());
+                    results.add(false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // whatever has not finished yet counts as failed
+                    while (results.size() < transfers.size()) {
+                        results.add(false);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
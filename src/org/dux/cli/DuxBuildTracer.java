@@ -2,116 +2,219 @@ package org.dux.cli;
 
 import com.google.common.hash.HashCode;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+import org.dux.stracetool.CallFilter;
 import org.dux.stracetool.StraceCall;
+import org.dux.stracetool.StraceCallHandler;
 import org.dux.stracetool.StraceParser;
+import org.dux.stracetool.SyscallKind;
 import org.dux.stracetool.Tracer;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-
-import static org.dux.cli.DuxFileHasher.hashFile;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An object responsible for invoking the appropriate build tracer
  * and running the build tool. It parses the traced output and dumps
  * to a config file.
  * <p>
+ * A trace can be kept and later replayed, which records the configuration from it again
+ * without running the build, e.g. to measure the stages after the build.
+ * <p>
  * Currently depends on having strace available
  */
 public class DuxBuildTracer {
     private static final String TMP_FILE = ".trace.out";
-    private Tracer t;
+
+    private static final Counter KEPT = DuxMetrics.counter("tracer.calls.kept");
+
+    /**
+     * The reasons a traced call is not recorded, each counted as tracer.calls.dropped.reason
+     */
+    private enum Drop {
+        IGNORED_CALL, FAILED, NO_PATH, WINDOWS_DIRECTORY, BLACKLISTED, NOT_REGULAR_FILE, IN_PROJECT, DUPLICATE;
+
+        private final Counter calls = DuxMetrics.counter("tracer.calls.dropped." + name().toLowerCase(Locale.ROOT));
+    }
+    private @Nullable Tracer t;
+    private boolean streaming;
+    private @Nullable String keepTrace;
+    private @Nullable String firstExec;
 
     private Map<Path, HashCode> fileHashes;
+    private int hashThreads;
+    private DuxParallelHasher hasher;
 
     private Map<Path, Path> links;
-    private Map<Path, String> envPaths;
-    private Set<String> envVarsWithPathSep;
+    private Path currentDir;
+    private DuxEnvRoots envRoots;
 
     private Set<DuxConfigurationVar> varsToSave;
 
-    public DuxBuildTracer(List<String> args) {
-        t = new Tracer.Builder(TMP_FILE, args).
-                traceSubprocesses().filterCalls().build();
+    /**
+     * @param hashThreads how many files to hash at once, or 0 for one per available processor
+     * @param keepTrace where to keep the raw trace once it has been parsed, or null to delete it
+     */
+    public DuxBuildTracer(List<String> args, boolean streaming, int hashThreads, @Nullable String keepTrace) {
+        this(hashThreads);
+        Tracer.Builder builder = new Tracer.Builder(TMP_FILE, args).
+                traceSubprocesses().filterCalls();
+        if (streaming) {
+            // parse and hash calls while the build runs, rather than after it has finished
+            builder.streaming();
+            if (keepTrace != null) {
+                builder.keepTrace(keepTrace);
+            }
+        }
+        t = builder.build();
+        this.streaming = streaming;
+        this.keepTrace = keepTrace;
+    }
 
-        fileHashes = new HashMap<>();
+    /**
+     * Creates a tracer that can only {@link #replay} traces
+     *
+     * @param hashThreads how many files to hash at once, or 0 for one per available processor
+     */
+    public DuxBuildTracer(int hashThreads) {
+        fileHashes = new ConcurrentHashMap<>();
+        this.hashThreads = hashThreads;
         links = new HashMap<>();
-        envPaths = new HashMap<>();
-        envVarsWithPathSep = new HashSet<>();
         varsToSave = new HashSet<>();
 
-        // initialize the map of environment variable values (as paths) to the names of the variables
-        String pathSeparator = System.getProperty("path.separator");
-        for (Map.Entry<String, String> var : System.getenv().entrySet()) {
-            String value = var.getValue();
-            String[] values = value.split(pathSeparator);
-            if (values.length > 1) {
-                envVarsWithPathSep.add(var.getKey());
-            }
-            for (String path : values) {
-                try {
-                    Path p = Paths.get(path).normalize();
-                    envPaths.put(p, var.getKey());
-                    DuxCLI.logger.debug("path: {} | variable: {}", p, var.getKey());
-                    // As a temp measure, save all environment variables. TODO be more precise.
-                    // varsToSave.add(new DuxConfigurationVar(var.getKey(), p.toString(), values.length > 1));
-                } catch (InvalidPathException e) {
-                    // an environment variable had an invalid path as its value. This is fine.
-                }
-            }
-        }
+        // index the paths named by environment variables, so that dependencies can be
+        // attributed to them
+        currentDir = Paths.get("").toAbsolutePath().normalize();
+        envRoots = new DuxEnvRoots(System.getenv(), currentDir);
+        DuxCLI.logger.debug("indexed {} paths named by environment variables", envRoots.size());
     }
 
-    private static boolean pathInSubdirectory(Path parent, Path candidate)
-            throws IOException {
-        String canonicalParent = parent.toFile().getCanonicalPath();
-        String canonicalCandidate = candidate.toFile().getCanonicalPath();
-        return canonicalCandidate.startsWith(canonicalParent);
+    public void trace(boolean includeProjDir, boolean includeDefaultBlacklist, DuxStageTimings timings)
+            throws IOException, InterruptedException {
+        if (t == null) {
+            throw new IllegalStateException("this tracer can only replay traces");
+        }
+        record(includeProjDir, includeDefaultBlacklist, timings, null);
+        // a streamed trace was copied while it was parsed, and its pipe is gone
+        if (keepTrace != null && new File(TMP_FILE).isFile()) {
+            DuxCLI.logger.debug("keeping strace file as {}", keepTrace);
+            Files.move(Paths.get(TMP_FILE), Paths.get(keepTrace), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            DuxCLI.logger.debug("deleting strace file");
+            // get rid of strace TMP file once we're done
+            File f = new File(TMP_FILE);
+            f.delete();
+        }
     }
 
-    private static boolean pathsSharePrefix(Path p1, Path p2, int minPrefixLength) {
-        Path absolute1 = p1.toAbsolutePath().normalize();
-        Path absolute2 = p2.toAbsolutePath().normalize();
-
-        int nameCount1 = absolute1.getNameCount();
-        int nameCount2 = absolute2.getNameCount();
+    /**
+     * Records the calls in traceFile, a trace kept by an earlier run in the format of the current
+     * OS' tracer, as if the build had just been traced. The files the trace names are hashed as
+     * they are now.
+     */
+    public void replay(String traceFile, boolean includeProjDir, boolean includeDefaultBlacklist,
+                       DuxStageTimings timings) throws IOException, InterruptedException {
+        DuxCLI.logger.debug("replaying trace file: {}", traceFile);
+        record(includeProjDir, includeDefaultBlacklist, timings, traceFile);
+    }
 
-        int indices = Math.min(nameCount1, nameCount2);
-        // paths too short
-        if (indices < minPrefixLength) {
-            return false;
+    /**
+     * Runs the build and parses its trace, or parses replayFile if it is not null, and records
+     * every call, timing each stage into timings
+     */
+    private void record(boolean includeProjDir, boolean includeDefaultBlacklist, DuxStageTimings timings,
+                        @Nullable String replayFile) throws IOException, InterruptedException {
+        DuxCLI.logger.debug("trace params: {}, {}", includeProjDir, includeDefaultBlacklist);
+        DuxCLI.logger.debug("Loading trace blacklist");
+        DuxTraceBlacklist blacklist = new DuxTraceBlacklist(includeDefaultBlacklist);
+        DuxPathResolver resolver = new DuxPathResolver(blacklist, includeProjDir);
+        DuxCLI.logger.debug("tracing and parsing strace output");
+        // files hashed while the build runs may still be written to or deleted by it
+        hasher = new DuxParallelHasher(hashThreads, fileHashes, streaming && replayFile == null);
+        CallFilter filter = callFilter(blacklist);
+        StraceCallHandler handler = c -> recordCall(c, resolver);
+        long start = System.nanoTime();
+        try {
+            if (replayFile != null) {
+                StraceParser.parse(replayFile, filter, handler);
+                start = timings.record("parse", start);
+            } else if (streaming) {
+                t.trace(filter, handler);
+                start = timings.record("build_and_parse", start);
+            } else {
+                t.trace();
+                start = timings.record("build", start);
+                StraceParser.parse(TMP_FILE, filter, handler);
+                start = timings.record("parse", start);
+            }
+        } catch (Throwable e) {
+            // still stop the hashing threads, but report why the trace failed, not how hashing did
+            try {
+                hasher.awaitCompletion();
+            } catch (IOException | RuntimeException hashFailure) {
+                e.addSuppressed(hashFailure);
+            } catch (InterruptedException interrupted) {
+                e.addSuppressed(interrupted);
+                Thread.currentThread().interrupt();
+            }
+            throw e;
         }
+        DuxCLI.logger.debug("waiting for hashing to finish");
+        hasher.awaitCompletion();
+        // hashing overlaps parsing, so this is only the hashing that was left when parsing ended
+        timings.record("hash", start);
+        DuxCLI.logger.info("parser dropped {} calls of other kinds, {} failed calls, {} repeats of a path "
+                        + "and {} calls on ignored paths",
+                filter.dropped(CallFilter.Drop.KIND), filter.dropped(CallFilter.Drop.FAILED),
+                filter.dropped(CallFilter.Drop.REPEATED), filter.dropped(CallFilter.Drop.IGNORED));
+        blacklist.logStatistics();
+        resolver.logStatistics();
+        DuxCLI.logger.debug("completed recording of calls");
+    }
 
-        int sharedPrefixLength = 0;
-        for (int i = 0; i < indices; i++) {
-            Path elt1 = absolute1.getName(i);
-            Path elt2 = absolute2.getName(i);
-            if (!elt1.equals(elt2)) {
-                break;
+    /**
+     * Builds the filter that drops, while the trace is parsed, what {@link #recordCall} would
+     * drop anyway: calls it does not record, failed calls, paths that the blacklist holds and
+     * paths that an earlier call already brought to it. The rest of recordCall's checks need
+     * the filesystem, and so are made once per path, downstream.
+     */
+    private static CallFilter callFilter(DuxTraceBlacklist blacklist) {
+        Set<SyscallKind> kinds = EnumSet.noneOf(SyscallKind.class);
+        for (SyscallKind kind : SyscallKind.values()) {
+            if (kind.isOpen() || kind.isExec() || kind.isReadLink()) {
+                kinds.add(kind);
             }
-            sharedPrefixLength++;
         }
-
-        return sharedPrefixLength >= minPrefixLength;
+        return new CallFilter.Builder()
+                .kinds(kinds)
+                .dropFailed()
+                .dropRepeats()
+                .ignore(path -> {
+                    try {
+                        return blacklist.contains(Paths.get(path).normalize());
+                    } catch (InvalidPathException e) {
+                        // recordCall will find that there is no such file
+                        return false;
+                    }
+                })
+                .build();
     }
 
-    public void trace(boolean includeProjDir, boolean includeDefaultBlacklist) throws IOException, InterruptedException {
-        DuxCLI.logger.debug("trace params: {}, {}", includeProjDir, includeDefaultBlacklist);
-        t.trace();
-        DuxCLI.logger.debug("Loading trace blacklist");
-        DuxTraceBlacklist blacklist = new DuxTraceBlacklist(includeDefaultBlacklist);
-        DuxCLI.logger.debug("parsing strace file");
-        parseStraceFile(includeProjDir, blacklist);
-        DuxCLI.logger.debug("deleting strace file");
-        // get rid of strace TMP file once we're done
-        File f = new File(TMP_FILE);
-        f.delete();
+    /**
+     * @return the path of the first program the trace executed, which is the traced command
+     * itself unless the trace is partial, or null if it executed none
+     */
+    public @Nullable String getFirstExec() {
+        return firstExec;
     }
 
     public void dumpToConfiguration(DuxConfiguration config) {
@@ -133,164 +236,142 @@ public class DuxBuildTracer {
         }
     }
 
-    private void parseStraceFile(boolean includeProjDir, DuxTraceBlacklist blacklist) throws IOException, FileNotFoundException {
-        List<StraceCall> calls = StraceParser.parse(TMP_FILE);
-
-        DuxCLI.logger.debug("created strace call list");
+    /**
+     * Records a single traced call. Depending on the tracer's mode, this is called either while
+     * the build is still running or afterwards, once for each call in the strace file.
+     */
+    private void recordCall(StraceCall c, DuxPathResolver resolver) {
+        DuxCLI.logger.debug("recording a call: {}", c);
+
+        // disregard everything but open, exec, and readlink calls, for now
+        DuxCLI.logger.debug("checking if the call is an open or exec");
+        boolean fOpenOrExec = c.isOpen() || c.isExec();
+        boolean fReadlink = c.isReadLink();
+        if (firstExec == null && c.isExec() && c.knownReturn && c.returnValue == 0) {
+            firstExec = c.getPath();
+        }
+        if (!fOpenOrExec && !fReadlink) {
+            Drop.IGNORED_CALL.calls.increment();
+            return;
+        }
 
-        for (StraceCall c : calls) {
-            DuxCLI.logger.debug("recording a call: {}", c);
+        // disregard if return value unknown or indicated failure
+        DuxCLI.logger.debug("checking if the call succeeded");
+        if (!c.knownReturn || c.returnValue == -1) {
+            Drop.FAILED.calls.increment();
+            return;
+        }
 
-            // disregard everything but open, exec, and readlink calls, for now
-            DuxCLI.logger.debug("checking if the call is an open or exec");
-            boolean fOpenOrExec = c.isOpen() || c.isExec();
-            boolean fReadlink = c.isReadLink();
-            boolean fStat = c.isStat();
-            if (!fOpenOrExec && !fReadlink) {
-                continue;
-            }
+        // the path the call was made on, resolved against its directory fd for the *at calls
+        String path = c.getPath();
+        DuxCLI.logger.debug("got path: {}", path);
+        if (path == null) {
+            Drop.NO_PATH.calls.increment();
+            return;
+        }
 
-            // disregard if return value unknown or indicated failure
-            DuxCLI.logger.debug("checking if the call succeeded");
-            if (!c.knownReturn || c.returnValue == -1) {
-                continue;
+        // if this file is in the C:\Windows directory, don't need to store
+        String os = System.getProperty("os.name");
+        if (os.startsWith("Windows")) {
+            String[] parts = path.split(":"); // ["C", "\Windows\..."]
+            if (parts.length <= 1) {
+                // the file is "C:" -> ["C"]; nothing to do
+                Drop.NO_PATH.calls.increment();
+                return;
             }
-
-            // need to get first argument, which is absolute path surrounded in quotes
-            DuxCLI.logger.debug("getting rawpath");
-            String rawPath = c.args[0];
-            DuxCLI.logger.debug("getting path from this rawpath: {}", rawPath);
-            String path = rawPath.substring(1, rawPath.length() - 1);
-            DuxCLI.logger.debug("got path: {}", path);
-
-            // if this file is in the C:\Windows directory, don't need to store
-            String os = System.getProperty("os.name");
-            if (os.startsWith("Windows")) {
-                String[] parts = path.split(":"); // ["C", "\Windows\..."]
-                if (parts.length <= 1) {
-                    // the file is "C:" -> ["C"]; nothing to do
-                    continue;
-                }
-                if (parts[1].length() > 8) {
-                    String pathNoVolume = parts[1];
-                    if (pathNoVolume.substring(1, 8).equalsIgnoreCase("Windows")) {
-                        DuxCLI.logger.debug("skipping file in Windows directory: {}", path);
-                        continue;
-                    }
+            if (parts[1].length() > 8) {
+                String pathNoVolume = parts[1];
+                if (pathNoVolume.substring(1, 8).equalsIgnoreCase("Windows")) {
+                    DuxCLI.logger.debug("skipping file in Windows directory: {}", path);
+                    Drop.WINDOWS_DIRECTORY.calls.increment();
+                    return;
                 }
             }
+        }
 
-            Path p = Paths.get(path).normalize();
+        Path p = Paths.get(path).normalize();
 
-            if (fOpenOrExec || fStat) {
-                if ((p = canHashPath(p, blacklist, includeProjDir)) != null) {
-                    DuxCLI.logger.debug("generating hash");
-                    try {
-                        HashCode hash = hashFile(path);
-                        fileHashes.put(p, hash);
-                    } catch (FileNotFoundException e) {
-                        // must be a file created and deleted during the build
-                        DuxCLI.logger.debug("skipping temp file: {}", path);
-                        continue;
-                    }
-                }
-            } else if (fReadlink) {
-                // readlink calls are treated differently. We need to record the two paths into the
-                // configuration file - assuming they pass all our regular tests - as a special pair
-                // that's turned into a symbolic link by the config checker.
-
-                // p is the symbolic link, and now we need to read the actual file.
-
-                DuxCLI.logger.debug("getting rawpath for link target");
-                String rawPathTarget = c.args[1];
-                DuxCLI.logger.debug("getting path from this rawpath: {} for link target", rawPathTarget);
-                String pathTarget = rawPathTarget.substring(1, rawPathTarget.length() - 1);
-                DuxCLI.logger.debug("got path: {} for link target", pathTarget);
-
-                Path pTarget = Paths.get(pathTarget).normalize();
-                // if we can't or don't want to hash the target, then don't include this symbolic link.
-                if ((p =canHashPath(pTarget, blacklist, includeProjDir)) != null) {
-                    links.put(p, pTarget);
-                }
+        if (fOpenOrExec) {
+            if ((p = canHashPath(p, resolver)) != null) {
+                DuxCLI.logger.debug("queueing for hashing");
+                KEPT.increment();
+                hasher.submit(p, path);
+            }
+        } else if (fReadlink) {
+            // readlink calls are treated differently. We need to record the two paths into the
+            // configuration file - assuming they pass all our regular tests - as a special pair
+            // that's turned into a symbolic link by the config checker.
+
+            // p is the symbolic link, and now we need to read the actual file.
+
+            String pathTarget = c.getLinkTarget();
+            DuxCLI.logger.debug("got path: {} for link target", pathTarget);
+            if (pathTarget == null) {
+                Drop.NO_PATH.calls.increment();
+                return;
+            }
 
+            Path pTarget = Paths.get(pathTarget).normalize();
+            // if we can't or don't want to hash the target, then don't include this symbolic link.
+            if ((p =canHashPath(pTarget, resolver)) != null) {
+                KEPT.increment();
+                links.put(p, pTarget);
             }
-        }
 
-        DuxCLI.logger.debug("completed recording of calls");
+        }
     }
 
     /**
      * null return indicates failure. You must check the return value.
      */
-    private Path canHashPath(Path p, DuxTraceBlacklist blacklist, boolean includeProjDir) throws IOException{
-
-        // check for blacklisted files
-        if (blacklist.contains(p)) {
-            DuxCLI.logger.debug("{} is blacklisted, ignoring", p.toString());
-            return null;
-        }
-
-        // we only want to hash regular files
-        DuxCLI.logger.debug("checking if file is a regular file");
-        if (!Files.isRegularFile(p)) {
-            DuxCLI.logger.debug("{} is not a regular file", p.toString());
-            return null;
-        }
-
-        Path currentDir = Paths.get(".").toAbsolutePath().normalize();
-
-        // disregard project files (heuristic: they're not dependencies)
-        if (!includeProjDir && pathInSubdirectory(currentDir, p)) {
-            DuxCLI.logger.debug("{} is in the current project directory", p.toString());
-            return null;
-        }
-
-        // we want to relativize the path if it seems like it could be user-specific
-        // (don't want absolute paths to go down user-specific directories if another
-        //  user might run the build with the same directory structure)
-        // Probably some cases where this is insufficient but it's a start
-
-        // Min prefix length of 1 ==> they share a prefix that isn't root
-        DuxCLI.logger.debug("checking if file shares prefix with the current working directory");
-        if (p.isAbsolute() && pathsSharePrefix(p, currentDir, 1)) {
-            DuxCLI.logger.debug("{} shares prefix with the current directory", p.toString());
-            p = currentDir.relativize(p).normalize();
+    private Path canHashPath(Path p, DuxPathResolver resolver) {
+        DuxPathResolver.Resolution resolution = resolver.resolve(p);
+        switch (resolution.verdict) {
+            case BLACKLISTED:
+                DuxCLI.logger.debug("{} is blacklisted, ignoring", p);
+                Drop.BLACKLISTED.calls.increment();
+                return null;
+            case NOT_REGULAR_FILE:
+                // we only want to hash regular files
+                DuxCLI.logger.debug("{} is not a regular file", p);
+                Drop.NOT_REGULAR_FILE.calls.increment();
+                return null;
+            case IN_PROJECT:
+                // disregard project files (heuristic: they're not dependencies)
+                DuxCLI.logger.debug("{} is in the current project directory", p);
+                Drop.IN_PROJECT.calls.increment();
+                return null;
+            default:
+                break;
         }
+        p = resolution.key;
+        Path absolute = resolution.absolute;
 
-        // don't hash if it's already present
+        // don't hash if it's already present or on its way
         DuxCLI.logger.debug("checking if file already hashed");
-        if (fileHashes.containsKey(p)) {
+        if (hasher.isQueued(p)) {
+            Drop.DUPLICATE.calls.increment();
             return null;
         }
 
-        // We need to save both variables that include a file that's being referenced
-        // and those that include a directory that contains such a file.
-        // This is a heuristic, but the latter is useful for e.g. the PATH
-
-        saveVarFromPath(p, p);
-        saveVarFromPath(p.toAbsolutePath().normalize(), p);
-
-        saveVarFromPath(p.getParent(), p.getParent());
-        saveVarFromPath(p.toAbsolutePath().normalize().getParent(), p.getParent());
+        saveVarsForPath(p, absolute);
 
         return p;
     }
 
-    private void saveVarFromPath(Path p, Path toSave) {
-        // does this path contain an environment variable that we want to save the value of?
-
-        DuxCLI.logger.debug("checking whether {} is a key into the envPaths map", p);
-
-        // nothing to do if nothing to save! this can happen when p is root and toSave is its parent
-        if (toSave == null) {
-            return;
-        }
-
-        if (envPaths.containsKey(p)) {
-            String name = envPaths.get(p);
-            DuxCLI.logger.debug("it is - to env var {}", name);
-            DuxConfigurationVar var = new DuxConfigurationVar(name, toSave.toString(), envVarsWithPathSep.contains(name));
-            varsToSave.add(var);
+    /**
+     * Saves the environment variables that name the file at absolute, recorded as key, or the
+     * deepest directory above it. The variables are saved with the path in the same form as key,
+     * so that they can be relocated with it. This is a heuristic, but the directories are useful
+     * for e.g. the PATH, or for JAVA_HOME and other roots of whole SDK trees.
+     */
+    private void saveVarsForPath(Path key, Path absolute) {
+        for (DuxEnvRoots.Root root : envRoots.rootsOf(absolute)) {
+            Path toSave = key.isAbsolute() ? root.path : currentDir.relativize(root.path);
+            for (String name : root.variables) {
+                DuxCLI.logger.debug("{} is under {}, the value of env var {}", key, root.path, name);
+                varsToSave.add(new DuxConfigurationVar(name, toSave.toString(), envRoots.hasPathSeparator(name)));
+            }
         }
     }
 }
@@ -4,11 +4,17 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import com.google.devtools.common.options.OptionsParser;
 import org.dux.backingstore.DuxBackingStore;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.dux.backingstore.DuxBackingStoreBuilder;
+import org.dux.metrics.DuxMetrics;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The driver for the Dux build orchestration system.
@@ -29,17 +35,62 @@ public class DuxCLI {
         logger = (Logger) LoggerFactory.getLogger(DuxCLI.class);
         logger.setLevel(Level.toLevel(options.level));
 
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int status = 1;
+        try {
+            status = run(parser, options);
+        } finally {
+            writeMetrics(options, startMillis, startNanos, status);
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * @return the exit status of dux
+     */
+    private static int run(OptionsParser parser, DuxOptions options) {
         if (options.help) {
             printUsage(parser);
-            return;
+            return 0;
         }
 
-        DuxBackingStore backingStore = new DuxBackingStoreBuilder()
+        // queries and rewrites only use the configuration file, so they skip setting up the backing store
+        if (isQuery(options)) {
+            return query(options) ? 0 : 1;
+        }
+        if (options.rewrite) {
+            return rewrite(options) ? 0 : 1;
+        }
+
+        String storeRoot = options.storeRoot.equals("NOT SET") ?
+                Paths.get(System.getProperty("user.home"), ".dux", "store").toString() : options.storeRoot;
+        DuxBackingStoreBuilder storeBuilder = new DuxBackingStoreBuilder()
                 .type(options.storeType)
                 .bucket(options.bucketName)
-                .build();
+                .root(storeRoot)
+                .linkFetched(options.storeLinks)
+                .codec(options.codec)
+                .codecLevel(options.codecLevel)
+                .transferThreads(options.rangeThreads)
+                .chunkThreshold(options.chunkThresholdMb * 1024L * 1024L);
+        if (!options.cacheDir.equals("NOT SET")) {
+            storeBuilder.cache(options.cacheDir, options.cacheSizeMb * 1024L * 1024L);
+        }
+        DuxBackingStore backingStore = storeBuilder.build();
+
+        DuxHashCache hashCache = null;
+        if (options.useHashCache) {
+            Path cacheFile = options.hashCacheFile.equals("NOT SET") ?
+                    DuxHashCache.defaultLocation() : Paths.get(options.hashCacheFile);
+            logger.debug("opening hash cache: {}", cacheFile);
+            hashCache = DuxHashCache.open(cacheFile, options.hashCacheSize);
+            DuxFileHasher.setCache(hashCache);
+        }
 
-        if (options.command.equals("NOT SET")) {
+        if (options.command.equals("NOT SET") && !isReplay(options)) {
             // This means no command was specified. Read and print the specified dux file.
             logger.debug("reading configuration file: {}", options.file);
             DuxConfiguration config = DuxConfigurationIO.read(options.file);
@@ -53,50 +104,194 @@ public class DuxCLI {
             // if we've been set to check the config, we'll do that now
             if (options.checkConfig) {
                 logger.debug("checking configuration...");
-                DuxConfigChecker checker = new DuxConfigChecker(backingStore);
+                DuxConfigChecker checker = new DuxConfigChecker(backingStore,
+                        options.checkThreads, options.fetchThreads);
                 try {
                     checker.checkConfig(config, options.launch);
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
-                    return;
+                    return 1;
                 }
                 logger.debug("finished checking");
+                DuxFileHasher.logStatistics();
+                backingStore.logStatistics();
+                saveHashCache(hashCache);
             }
         } else {
-            // A command was specified, so execute and trace it, and print the results to
-            // the specified config file.
+            // A command was specified, so execute and trace it, or replay a trace of it, and
+            // print the results to the specified config file.
+            DuxStageTimings timings = new DuxStageTimings();
             logger.debug("creating build tracer");
-            DuxBuildTracer tracer = new DuxBuildTracer(Collections.singletonList(options.command));
-            logger.debug("beginning trace of this program: {}", options.command);
+            DuxBuildTracer tracer;
             try {
-                tracer.trace(options.includeProjDir, options.includeDefaultBlacklist);
+                if (isReplay(options)) {
+                    tracer = new DuxBuildTracer(options.hashThreads);
+                    tracer.replay(options.replay, options.includeProjDir, options.includeDefaultBlacklist, timings);
+                } else {
+                    String keepTrace = options.keepTrace.equals("NOT SET") ? null : options.keepTrace;
+                    tracer = new DuxBuildTracer(Collections.singletonList(options.command),
+                            options.streamTrace, options.hashThreads, keepTrace);
+                    logger.debug("beginning trace of this program: {}", options.command);
+                    tracer.trace(options.includeProjDir, options.includeDefaultBlacklist, timings);
+                }
             } catch (IOException ioe) {
                 ioe.printStackTrace();
-                return;
+                return 1;
             } catch (InterruptedException ie) {
                 ie.printStackTrace();
-                return;
+                return 1;
             }
             logger.debug("tracing complete");
+            DuxFileHasher.logStatistics();
+            saveHashCache(hashCache);
             String displayName = options.displayName.equals("NOT SET") ? null : options.displayName;
             logger.debug("display name computed: {}", displayName);
-            DuxConfiguration config = new DuxConfiguration(displayName, options.command);
+            String command = options.command;
+            if (command.equals("NOT SET")) {
+                // a replay without --command; the trace starts by running the command
+                command = tracer.getFirstExec();
+                if (command == null) {
+                    logger.warn("{} does not run any program; recording an empty command", options.replay);
+                    command = "";
+                }
+            }
+            DuxConfiguration config = new DuxConfiguration(displayName, command);
             logger.debug("new configuration created");
+            long start = System.nanoTime();
             tracer.dumpToConfiguration(config);
+            start = timings.record("dump", start);
             logger.debug("finished dumping trace to configuration");
-            boolean result = config.sendToBackingStore(backingStore);
+            boolean result = config.sendToBackingStore(backingStore, options.uploadThreads);
+            start = timings.record("upload", start);
+            backingStore.logStatistics();
             if (result) {
                 logger.debug("finished sending to backing store");
             } else {
                 logger.debug("at least one send failed. See the log.");
             }
-            DuxConfigurationIO.write(options.file, config);
+            if (!DuxConfigurationIO.write(options.file, config)) {
+                logger.error("could not write the configuration file: {}", options.file);
+                return 1;
+            }
+            timings.record("write", start);
             logger.debug("wrote configuration file: {}", options.file);
+            timings.log();
         }
 
         if (options.fSaveConfig) {
             backingStore.storeFile(options.file, options.file);
         }
+        return 0;
+    }
+
+    private static boolean isQuery(DuxOptions options) {
+        return !options.query.equals("NOT SET") || !options.queryPrefix.equals("NOT SET");
+    }
+
+    private static boolean isReplay(DuxOptions options) {
+        return !options.replay.equals("NOT SET");
+    }
+
+    /**
+     * Writes the metrics report, if one was asked for. The report describes the run with its
+     * mode, command, configuration file, start time, duration and exit status.
+     */
+    private static void writeMetrics(DuxOptions options, long startMillis, long startNanos, int status) {
+        if (options.metricsFile.equals("NOT SET")) {
+            return;
+        }
+        String mode;
+        if (options.help) {
+            mode = "help";
+        } else if (isQuery(options)) {
+            mode = "query";
+        } else if (options.rewrite) {
+            mode = "rewrite";
+        } else if (isReplay(options)) {
+            mode = "replay";
+        } else if (!options.command.equals("NOT SET")) {
+            mode = "trace";
+        } else {
+            mode = options.checkConfig ? "check" : "read";
+        }
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("mode", mode);
+        run.put("command", options.command.equals("NOT SET") ? null : options.command);
+        run.put("file", options.file);
+        run.put("started_at_millis", startMillis);
+        run.put("elapsed_nanos", System.nanoTime() - startNanos);
+        run.put("exit_status", status);
+        try {
+            DuxMetrics.writeReport(Paths.get(options.metricsFile), run);
+            logger.debug("wrote metrics report: {}", options.metricsFile);
+        } catch (IOException ioe) {
+            // the report is for monitoring, so failing to write it does not fail the run
+            logger.warn("could not write the metrics report {}: {}", options.metricsFile, ioe);
+        }
+    }
+
+    /**
+     * Prints the entries that match the query options to standard output, one per line, as their
+     * hash and path.
+     *
+     * @return whether any entry matched
+     */
+    private static boolean query(DuxOptions options) {
+        DuxConfigurationIndex index;
+        try {
+            index = DuxConfigurationIndex.open(Paths.get(options.file));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        }
+        logger.debug("opened index of {}, with {} entries", options.file, index.size());
+
+        boolean found = false;
+        if (!options.query.equals("NOT SET")) {
+            DuxConfigurationEntry entry = index.lookup(options.query);
+            if (entry != null) {
+                System.out.println(entry.hashCode + " " + entry.path);
+                found = true;
+            }
+        }
+        if (!options.queryPrefix.equals("NOT SET")) {
+            for (DuxConfigurationEntry entry : index.entriesUnder(options.queryPrefix)) {
+                System.out.println(entry.hashCode + " " + entry.path);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the configuration file, in whichever format it was written, and writes it back in
+     * the current one.
+     *
+     * @return whether the file could be read and written. If it could not, it is left as it was.
+     */
+    private static boolean rewrite(DuxOptions options) {
+        DuxConfiguration config = DuxConfigurationIO.read(options.file);
+        if (config == null) {
+            return false;
+        }
+        if (!DuxConfigurationIO.write(options.file, config)) {
+            return false;
+        }
+        logger.debug("rewrote configuration file: {}", options.file);
+        return true;
+    }
+
+    private static void saveHashCache(@Nullable DuxHashCache hashCache) {
+        if (hashCache == null) {
+            return;
+        }
+        hashCache.logStatistics();
+        try {
+            hashCache.save();
+        } catch (IOException ioe) {
+            // the cache only saves time, so failing to save it is not fatal
+            logger.warn("could not save the hash cache: {}", ioe);
+        }
     }
 
     private static void printUsage(OptionsParser parser) {
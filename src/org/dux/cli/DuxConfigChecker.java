@@ -1,57 +1,63 @@
 package org.dux.cli;
 
 import com.google.common.hash.HashCode;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.dux.backingstore.DuxBackingStore;
+import org.dux.backingstore.DuxTransfer;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.dux.cli.DuxFileHasher.hashFile;
 
 /**
  * An object responsible for checking the current system against
  * the dependencies logged in the Dux config and attempts to correct.
+ * <p>
+ * Entries are checked concurrently: files that are present are re-hashed
+ * on a pool of threads sized for the CPU, while missing files are fetched
+ * from the store as one batch, with as many fetches in flight as suits the
+ * network.
  */
 public class DuxConfigChecker {
+    private static final int DEFAULT_FETCH_THREADS = 8;
+
     private DuxBackingStore store;
+    private int verifyThreads;
+    private int fetchThreads;
 
     public DuxConfigChecker(DuxBackingStore store) {
+        this(store, 0, DEFAULT_FETCH_THREADS);
+    }
+
+    /**
+     * @param verifyThreads how many present files to re-hash at once, or 0 for one per available processor
+     * @param fetchThreads how many missing files to fetch from the store at once
+     */
+    public DuxConfigChecker(DuxBackingStore store, int verifyThreads, int fetchThreads) {
         this.store = store;
+        this.verifyThreads = verifyThreads > 0 ? verifyThreads : Runtime.getRuntime().availableProcessors();
+        this.fetchThreads = Math.max(1, fetchThreads);
     }
 
     /**
-     * For the given config, iterate through and check that each file is present. 
-     * If the file is missing, download it from the store to the desired location. 
+     * For the given config, iterate through and check that each file is present.
+     * If the file is missing, download it from the store to the desired location.
      * If the file is present but the hash does not match, print a warning.
      *
      * @throws FileNotFoundException    if a fetch fails
      */
     public void checkConfig(DuxConfiguration config, boolean launch) throws IOException, FileNotFoundException {
-        for (DuxConfigurationEntry entry : config.entries()) {
-            // if file does not exist, try to fetch it
-            DuxCLI.logger.debug("Checking if file {} exists", entry.path.toString());
-            if (!entry.path.exists()) {
-                DuxCLI.logger.info("File {} does not exist, pulling", entry.path.toString());
-                if (!store.fetchFile(entry.hashCode.toString(),
-                        entry.path.toString())) {
-                    DuxCLI.logger.error("Failed to download entry {} to location {}", entry.hashCode.toString(), entry.path);
-                    throw new FileNotFoundException(entry.hashCode.toString());
-                }
-                DuxCLI.logger.info("Successfully fetched file {}", entry.path.toString());
-                continue;
-            }
-
-            // file exists so let's compare the hash code to the entry's
-            DuxCLI.logger.debug("Computing hash for {}", entry.path);
-            HashCode hash = hashFile(entry.path.toString());
-            if (!hash.equals(entry.hashCode)) {
-                DuxCLI.logger.debug("Hash does not match, printing a warning");
-                DuxCLI.logger.warn("Hash for {} does not match stored config.\nExpected: {}\nObtained: {}", entry.path.toString(), entry.hashCode.toString(), hash.toString());
-                continue;
-            }
-
-            DuxCLI.logger.debug("{} exists and hash matches", entry.path.toString());
-        }
+        checkEntries(config);
 
         for (DuxConfigurationLink link : config.links()) {
             DuxCLI.logger.debug("reading a link: {}", link);
@@ -73,4 +79,124 @@ public class DuxConfigChecker {
             pb.start();
         }
     }
+
+    private void checkEntries(DuxConfiguration config) throws IOException, FileNotFoundException {
+        final Progress progress = new Progress();
+        ExecutorService verifyPool = Executors.newFixedThreadPool(verifyThreads);
+        List<Future<Void>> results = new ArrayList<>();
+        List<DuxConfigurationEntry> missing = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try {
+            for (final DuxConfigurationEntry entry : config.entries()) {
+                // if file does not exist, fetch it along with the other missing files
+                DuxCLI.logger.debug("Checking if file {} exists", entry.path.toString());
+                if (!entry.path.exists()) {
+                    DuxCLI.logger.info("File {} does not exist, pulling", entry.path.toString());
+                    missing.add(entry);
+                } else {
+                    results.add(verifyPool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            verify(entry, progress);
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            // fetch while the present files are being verified
+            IOException failure = fetch(missing, progress);
+
+            // wait for everything, then report the first failure
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ?
+                                (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while checking configuration", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            verifyPool.shutdownNow();
+        }
+
+        progress.log(System.nanoTime() - start);
+    }
+
+    /**
+     * Fetches all of the missing entries from the store in one batch
+     *
+     * @return a FileNotFoundException for the first entry that could not be fetched, or null
+     */
+    private @Nullable FileNotFoundException fetch(List<DuxConfigurationEntry> missing, Progress progress) {
+        if (missing.isEmpty()) {
+            return null;
+        }
+        List<DuxTransfer> transfers = new ArrayList<>(missing.size());
+        for (DuxConfigurationEntry entry : missing) {
+            transfers.add(new DuxTransfer(entry.hashCode.toString(), entry.path.toString()));
+        }
+        List<Boolean> fetched = store.fetchFiles(transfers, fetchThreads);
+
+        FileNotFoundException failure = null;
+        for (int i = 0; i < missing.size(); i++) {
+            DuxConfigurationEntry entry = missing.get(i);
+            if (!fetched.get(i)) {
+                DuxCLI.logger.error("Failed to download entry {} to location {}", entry.hashCode.toString(), entry.path);
+                if (failure == null) {
+                    failure = new FileNotFoundException(entry.hashCode.toString());
+                }
+                continue;
+            }
+            progress.filesFetched.increment();
+            progress.bytesFetched.add(entry.path.length());
+            DuxCLI.logger.info("Successfully fetched file {}", entry.path.toString());
+        }
+        return failure;
+    }
+
+    private void verify(DuxConfigurationEntry entry, Progress progress) throws IOException {
+        // file exists so let's compare the hash code to the entry's
+        DuxCLI.logger.debug("Computing hash for {}", entry.path);
+        HashCode hash = hashFile(entry.path.toString());
+        progress.filesVerified.increment();
+        progress.bytesVerified.add(entry.path.length());
+        if (!hash.equals(entry.hashCode)) {
+            DuxCLI.logger.debug("Hash does not match, printing a warning");
+            progress.mismatches.increment();
+            DuxCLI.logger.warn("Hash for {} does not match stored config.\nExpected: {}\nObtained: {}", entry.path.toString(), entry.hashCode.toString(), hash.toString());
+            return;
+        }
+
+        DuxCLI.logger.debug("{} exists and hash matches", entry.path.toString());
+    }
+
+    /**
+     * Counts of the work done by a check, shared by all of its threads and
+     * reported as metrics.
+     */
+    private static class Progress {
+        final Counter filesVerified = DuxMetrics.counter("checker.files_verified");
+        final Counter bytesVerified = DuxMetrics.counter("checker.bytes_verified");
+        final Counter filesFetched = DuxMetrics.counter("checker.files_fetched");
+        final Counter bytesFetched = DuxMetrics.counter("checker.bytes_fetched");
+        final Counter mismatches = DuxMetrics.counter("checker.mismatches");
+
+        void log(long elapsedNanos) {
+            double seconds = Math.max(1, elapsedNanos) / 1e9;
+            DuxCLI.logger.info("checked {} files in {} s: verified {} files ({} bytes, {} bytes/sec), fetched {} files ({} bytes, {} bytes/sec)",
+                    filesVerified.get() + filesFetched.get(), String.format("%.2f", seconds),
+                    filesVerified.get(), bytesVerified.get(), (long) (bytesVerified.get() / seconds),
+                    filesFetched.get(), bytesFetched.get(), (long) (bytesFetched.get() / seconds));
+        }
+    }
 }
@@ -11,8 +11,9 @@ import org.dux.backingstore.DuxBackingStore;
 
 /**
  * An object representing a Dux configuration file.
- * These files are stored as binary objects, and so
- * must implement java.io.Serializable.
+ * These files are written by {@link DuxConfigurationFormat};
+ * files written by older versions of dux are serialized
+ * objects, so this class stays java.io.Serializable.
  * <p>
  * Each DuxConfiguration contains the information
  * about dependencies needed to build a project.
@@ -22,6 +23,10 @@ import org.dux.backingstore.DuxBackingStore;
  * about when it was created.
  */
 public class DuxConfiguration implements Serializable {
+    // this and the other configuration classes pin the serialVersionUID their
+    // original versions had, so that legacy serialized .dux files stay readable
+    private static final long serialVersionUID = 7190828938733954401L;
+
     @Nullable
     final String projectName;
     final String command;
@@ -60,17 +65,15 @@ public class DuxConfiguration implements Serializable {
 
 
     /**
-     * Sends all configuration entry to the backing store. Does not filter.
+     * Sends all configuration entries to the backing store. Entries with the same hash
+     * are sent once, and entries the store already holds are not sent again.
      *
      * @param store a backing store, such as a google cloud storage bucket
+     * @param threads how many entries to send at once
      * @return whether all entries were successfully stored
      */
-    public boolean sendToBackingStore(DuxBackingStore store) {
-        boolean allSucceeded = true;
-        for (DuxConfigurationEntry entry : entries) {
-            allSucceeded &= entry.sendToBackingStore(store);
-        }
-        return allSucceeded;
+    public boolean sendToBackingStore(DuxBackingStore store, int threads) {
+        return new DuxUploader(store, threads).upload(entries);
     }
 
     /**
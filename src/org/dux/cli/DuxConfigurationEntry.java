@@ -17,6 +17,8 @@ import java.io.Serializable;
  * and an optional display name.
  */
 public class DuxConfigurationEntry implements Serializable {
+    private static final long serialVersionUID = 5921188232235422816L;
+
     @Nullable final String displayName;
     final HashCode hashCode;
     final boolean isRelativePath;
@@ -0,0 +1,396 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.UnsignedBytes;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The binary format of .dux configuration files.
+ * <p>
+ * A file starts with the magic bytes {@code DUXF} and a format version. The rest is:
+ * <ul>
+ *   <li>the project name (if any), the command that was traced, the length of the hashes and the
+ *   number of entries</li>
+ *   <li>the entries, sorted by the UTF-8 bytes of their paths. Each is the length of the prefix
+ *   its path shares with the previous entry's path, the rest of its path, a flags byte, an
+ *   optional display name and the raw bytes of its hash. Every {@link #RESTART_INTERVAL}th entry
+ *   is a restart point, which stores its whole path.</li>
+ *   <li>the offsets of the restart points, as 4-byte big-endian integers</li>
+ *   <li>the links and the environment variables</li>
+ *   <li>a trailer: the offset of the restart points, as an 8-byte big-endian integer, and the
+ *   magic bytes {@code DUXI}</li>
+ * </ul>
+ * Every other count and length is an unsigned LEB128 varint, and every string is UTF-8 with a
+ * varint length.
+ * <p>
+ * Reading and writing stream through the file once. The restart points make the entries
+ * searchable without reading them all: {@link DuxConfigurationIndex} binary searches them in a
+ * memory-mapped file and then decodes at most one run of entries.
+ * <p>
+ * Version 1 kept every distinct path once, in a shared table that entries and links referred to
+ * by index. Version 2 gives that table up so that entries can be searched in place: an entry's
+ * path is compressed against its neighbour instead, and a link stores its two paths inline. A
+ * link whose path or target is also an entry's path therefore stores it twice. Configurations
+ * have few links next to their entries, so this costs little space.
+ */
+final class DuxConfigurationFormat {
+    static final byte[] MAGIC = {'D', 'U', 'X', 'F'};
+    static final int VERSION = 2;
+
+    static final int RESTART_INTERVAL = 16;
+    static final int TRAILER_MAGIC = 0x44555849; // "DUXI"
+    static final int TRAILER_SIZE = 12;
+
+    static final int FLAG_RELATIVE = 1;
+    static final int FLAG_DISPLAY_NAME = 2;
+
+    private static final int DEFAULT_HASH_BYTES = 32;
+
+    static final Comparator<byte[]> BYTE_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private DuxConfigurationFormat() {
+    }
+
+    /**
+     * @return whether start, the first bytes of a file, are the magic bytes of this format
+     */
+    static boolean hasMagic(byte[] start) {
+        return start.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(start, MAGIC.length), MAGIC);
+    }
+
+    static void write(DuxConfiguration config, OutputStream os) throws IOException {
+        Encoder out = new Encoder(os);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.writeVarint(VERSION);
+        out.writeNullableString(config.projectName);
+        out.writeString(config.command);
+
+        List<DuxConfigurationEntry> entries = new ArrayList<>();
+        for (DuxConfigurationEntry entry : config.entries()) {
+            entries.add(entry);
+        }
+        final byte[][] paths = new byte[entries.size()][];
+        Integer[] byPath = new Integer[entries.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = entries.get(i).path.toString().getBytes(StandardCharsets.UTF_8);
+            byPath[i] = i;
+        }
+        Arrays.sort(byPath, (a, b) -> BYTE_ORDER.compare(paths[a], paths[b]));
+
+        int hashBytes = entries.isEmpty() ? DEFAULT_HASH_BYTES : entries.get(0).hashCode.bits() / 8;
+        out.writeVarint(hashBytes);
+        out.writeVarint(entries.size());
+        int[] restarts = new int[(entries.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        byte[] previous = new byte[0];
+        for (int i = 0; i < byPath.length; i++) {
+            DuxConfigurationEntry entry = entries.get(byPath[i]);
+            byte[] path = paths[byPath[i]];
+            int shared;
+            if (i % RESTART_INTERVAL == 0) {
+                restarts[i / RESTART_INTERVAL] = offset(out);
+                shared = 0;
+            } else {
+                shared = sharedPrefix(previous, path);
+            }
+            out.writeVarint(shared);
+            out.writeVarint(path.length - shared);
+            out.write(path, shared, path.length - shared);
+            previous = path;
+
+            int flags = (entry.isRelativePath ? FLAG_RELATIVE : 0)
+                    | (entry.displayName != null ? FLAG_DISPLAY_NAME : 0);
+            out.writeByte(flags);
+            if (entry.displayName != null) {
+                out.writeString(entry.displayName);
+            }
+            if (entry.hashCode.bits() != hashBytes * 8) {
+                throw new IOException("entries with hashes of different lengths: " + entry);
+            }
+            out.write(entry.hashCode.asBytes(), 0, hashBytes);
+        }
+
+        long restartsOffset = offset(out);
+        for (int restart : restarts) {
+            out.writeInt(restart);
+        }
+
+        List<DuxConfigurationLink> links = new ArrayList<>();
+        for (DuxConfigurationLink link : config.links()) {
+            links.add(link);
+        }
+        out.writeVarint(links.size());
+        for (DuxConfigurationLink link : links) {
+            out.writeString(link.getLink().toString());
+            out.writeString(link.getTarget().toString());
+        }
+
+        List<DuxConfigurationVar> vars = new ArrayList<>();
+        for (DuxConfigurationVar var : config.vars()) {
+            vars.add(var);
+        }
+        out.writeVarint(vars.size());
+        for (DuxConfigurationVar var : vars) {
+            out.writeString(var.getName());
+            out.writeString(var.getValue());
+            out.writeByte(var.isAppendWithPathSeparator() ? 1 : 0);
+        }
+
+        out.writeLong(restartsOffset);
+        out.writeInt(TRAILER_MAGIC);
+        out.flush();
+    }
+
+    /**
+     * @return the offset of the next byte out writes, which restart points store in 4 bytes
+     */
+    private static int offset(Encoder out) throws IOException {
+        if (out.written() > Integer.MAX_VALUE) {
+            throw new IOException("the configuration is too large to index");
+        }
+        return (int) out.written();
+    }
+
+    /**
+     * Reads a configuration from in, which must start with the magic bytes
+     */
+    static DuxConfiguration read(InputStream is) throws IOException {
+        Decoder in = new Decoder(is);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic, 0, magic.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a dux configuration file");
+        }
+        checkVersion(in.readVarint());
+        DuxConfiguration config = new DuxConfiguration(in.readNullableString(), in.readString());
+
+        int hashBytes = in.readVarint();
+        int entryCount = in.readVarint();
+        byte[] path = new byte[256];
+        int previousLength = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int shared = in.readVarint();
+            int suffix = in.readVarint();
+            if (shared > previousLength) {
+                throw new IOException("corrupt configuration at entry " + i);
+            }
+            if (shared + suffix > path.length) {
+                path = Arrays.copyOf(path, Math.max(shared + suffix, path.length * 2));
+            }
+            in.readFully(path, shared, suffix);
+            previousLength = shared + suffix;
+
+            int flags = in.readByte();
+            String displayName = (flags & FLAG_DISPLAY_NAME) != 0 ? in.readString() : null;
+            byte[] hash = new byte[hashBytes];
+            in.readFully(hash, 0, hashBytes);
+            config.add(new DuxConfigurationEntry(displayName, HashCode.fromBytes(hash),
+                    (flags & FLAG_RELATIVE) != 0,
+                    new File(new String(path, 0, previousLength, StandardCharsets.UTF_8))));
+        }
+
+        // the restart points are only needed for searching
+        in.skip(4L * ((entryCount + RESTART_INTERVAL - 1) / RESTART_INTERVAL));
+
+        int linkCount = in.readVarint();
+        for (int i = 0; i < linkCount; i++) {
+            String link = in.readString();
+            String target = in.readString();
+            config.addLink(new DuxConfigurationLink(Paths.get(link), Paths.get(target)));
+        }
+
+        int varCount = in.readVarint();
+        for (int i = 0; i < varCount; i++) {
+            config.addVar(new DuxConfigurationVar(in.readString(), in.readString(), in.readByte() != 0));
+        }
+        return config;
+    }
+
+    static void checkVersion(int version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("unsupported dux configuration version " + version
+                    + "; this version of dux reads version " + VERSION);
+        }
+    }
+
+    static int sharedPrefix(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Buffers the encoded file, so that writing a varint costs a few array stores rather than a
+     * call through a stream per byte
+     */
+    private static final class Encoder {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private long flushed;
+
+        Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - position) {
+                flush();
+                if (length > buffer.length) {
+                    out.write(bytes, offset, length);
+                    flushed += length;
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeInt(int value) throws IOException {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(int value) throws IOException {
+            if (value < 0) {
+                throw new IOException("cannot write a negative varint: " + value);
+            }
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeNullableString(@Nullable String s) throws IOException {
+            writeByte(s != null ? 1 : 0);
+            if (s != null) {
+                writeString(s);
+            }
+        }
+
+        /**
+         * @return how many bytes have been written so far
+         */
+        long written() {
+            return flushed + position;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            flushed += position;
+            position = 0;
+            out.flush();
+        }
+    }
+
+    private static final class Decoder {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        int readByte() throws IOException {
+            if (position == limit) {
+                fill();
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        void readFully(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                int n = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("varint out of range");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("varint is too long");
+        }
+
+        String readString() throws IOException {
+            byte[] bytes = new byte[readVarint()];
+            readFully(bytes, 0, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Nullable String readNullableString() throws IOException {
+            return readByte() != 0 ? readString() : null;
+        }
+
+        void skip(long length) throws IOException {
+            while (length > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                int n = (int) Math.min(length, limit - position);
+                position += n;
+                length -= n;
+            }
+        }
+
+        private void fill() throws IOException {
+            int n = in.read(buffer);
+            if (n <= 0) {
+                throw new EOFException("the configuration file ends unexpectedly");
+            }
+            position = 0;
+            limit = n;
+        }
+    }
+}
@@ -2,11 +2,17 @@ package org.dux.cli;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /**
  * A reader for Dux configuration files.
@@ -15,16 +21,32 @@ import java.io.ObjectOutputStream;
  * {@code DuxConfiguration config = DuxConfigurationIO.read(config_file)},
  * where {@code config_file} is a String that contains a path to a file with
  * Dux configuration code (i.e. ends in {@code .dux}).
+ * <p>
+ * Files are written in the format described by {@link DuxConfigurationFormat}.
+ * Files written by older versions of dux, which are Java serialized objects,
+ * can still be read.
  */
 public class DuxConfigurationIO {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     public static @Nullable DuxConfiguration read(final String filePath) {
-        final DuxConfiguration config;
-        try {
-            FileInputStream fileIn = new FileInputStream(filePath);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            config = (DuxConfiguration) in.readObject();
-            in.close();
-            fileIn.close();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filePath), BUFFER_SIZE)) {
+            in.mark(DuxConfigurationFormat.MAGIC.length);
+            byte[] start = new byte[DuxConfigurationFormat.MAGIC.length];
+            int read = 0;
+            while (read < start.length) {
+                int n = in.read(start, read, start.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            in.reset();
+            if (DuxConfigurationFormat.hasMagic(start)) {
+                return DuxConfigurationFormat.read(in);
+            }
+            DuxCLI.logger.debug("{} is not in the current format, reading it as a legacy configuration", filePath);
+            return (DuxConfiguration) new ObjectInputStream(in).readObject();
         } catch (IOException i) {
             i.printStackTrace();
             return null;
@@ -32,20 +54,36 @@ public class DuxConfigurationIO {
             c.printStackTrace();
             return null;
         }
-        return config;
     }
 
-    public static void write(final String filePath, final DuxConfiguration config) {
+    /**
+     * Writes config to a temporary file next to filePath, and moves it into place once it is
+     * complete, so that a failed write leaves whatever was at filePath as it was.
+     *
+     * @return whether config was written
+     */
+    public static boolean write(final String filePath, final DuxConfiguration config) {
+        Path file = Paths.get(filePath).toAbsolutePath();
+        Path tmp = null;
         try {
-            FileOutputStream fileOut =
-                    new FileOutputStream(filePath);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(config);
-            out.close();
-            fileOut.close();
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE)) {
+                DuxConfigurationFormat.write(config, out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             DuxCLI.logger.debug("saved configuration to {}", filePath);
+            return true;
         } catch (IOException i) {
             i.printStackTrace();
+            return false;
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException i) {
+                    DuxCLI.logger.warn("could not delete {}: {}", tmp, i);
+                }
+            }
         }
     }
 }
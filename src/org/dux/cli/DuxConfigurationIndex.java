@@ -0,0 +1,300 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Answers queries about the entries of a .dux file without reading the whole file.
+ * <p>
+ * The file is memory-mapped, and a query binary searches its restart points (see
+ * {@link DuxConfigurationFormat}) and then decodes at most {@link
+ * DuxConfigurationFormat#RESTART_INTERVAL} entries to find the first one it wants. Only the
+ * entries a query returns are materialized, so a point lookup costs O(log n) no matter how large
+ * the configuration is.
+ * <p>
+ * Queries only read the mapped file, so an index can be shared between threads.
+ */
+public final class DuxConfigurationIndex {
+    private final ByteBuffer file;
+    private final int hashBytes;
+    private final int entryCount;
+    private final int restartsOffset;
+    private final int restartCount;
+
+    private DuxConfigurationIndex(ByteBuffer file, int hashBytes, int entryCount,
+                                  int restartsOffset, int restartCount) {
+        this.file = file;
+        this.hashBytes = hashBytes;
+        this.entryCount = entryCount;
+        this.restartsOffset = restartsOffset;
+        this.restartCount = restartCount;
+    }
+
+    /**
+     * Maps the configuration file at path
+     *
+     * @throws IOException if the file cannot be read, or is not in the current format
+     */
+    public static DuxConfigurationIndex open(Path path) throws IOException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map");
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        byte[] magic = new byte[DuxConfigurationFormat.MAGIC.length];
+        if (file.limit() < magic.length + DuxConfigurationFormat.TRAILER_SIZE) {
+            throw new IOException(path + " is not a dux configuration file");
+        }
+        file.get(magic);
+        if (!Arrays.equals(magic, DuxConfigurationFormat.MAGIC)) {
+            throw new IOException(path + " is not a dux configuration file in the current format;"
+                    + " rewrite files written by older versions of dux with --rewrite to query them");
+        }
+        int trailer = file.limit() - DuxConfigurationFormat.TRAILER_SIZE;
+        if (file.getInt(trailer + 8) != DuxConfigurationFormat.TRAILER_MAGIC) {
+            throw new IOException(path + " is truncated");
+        }
+
+        Cursor header = new Cursor(file, magic.length, 0, 0);
+        DuxConfigurationFormat.checkVersion(header.readVarint());
+        if (file.get(header.position++) != 0) {
+            header.skipString(); // the project name
+        }
+        header.skipString(); // the command
+        int hashBytes = header.readVarint();
+        int entryCount = header.readVarint();
+
+        long restartsOffset = file.getLong(trailer);
+        int restartCount = (entryCount + DuxConfigurationFormat.RESTART_INTERVAL - 1)
+                / DuxConfigurationFormat.RESTART_INTERVAL;
+        if (restartsOffset < header.position || restartsOffset + 4L * restartCount > trailer) {
+            throw new IOException(path + " is corrupt: its restart points are out of bounds");
+        }
+        return new DuxConfigurationIndex(file, hashBytes, entryCount, (int) restartsOffset, restartCount);
+    }
+
+    /**
+     * @return the number of entries in the configuration
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * @return the entry for path, exactly as it is written in the configuration, or null if there
+     * is none. If the configuration has several entries for path, returns the first.
+     */
+    public @Nullable DuxConfigurationEntry lookup(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        Cursor cursor = seek(key);
+        return cursor != null && cursor.keyEquals(key) ? cursor.entry() : null;
+    }
+
+    /**
+     * @return the entries for directory itself and for every path below it, in path order
+     */
+    public List<DuxConfigurationEntry> entriesUnder(String directory) {
+        List<DuxConfigurationEntry> result = new ArrayList<>();
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        String self = prefix.substring(0, prefix.length() - 1);
+
+        // "dir-x" sorts between "dir" and "dir/", so the two ranges are searched separately
+        byte[] selfKey = self.getBytes(StandardCharsets.UTF_8);
+        if (selfKey.length > 0) {
+            for (Cursor cursor = seek(selfKey); cursor != null && cursor.keyEquals(selfKey); cursor = cursor.next()) {
+                result.add(cursor.entry());
+            }
+        }
+        byte[] prefixKey = prefix.getBytes(StandardCharsets.UTF_8);
+        for (Cursor cursor = seek(prefixKey); cursor != null && cursor.keyStartsWith(prefixKey); cursor = cursor.next()) {
+            result.add(cursor.entry());
+        }
+        return result;
+    }
+
+    /**
+     * @return a cursor at the first entry whose path is not less than key, or null if there is
+     * none
+     */
+    private @Nullable Cursor seek(byte[] key) {
+        if (entryCount == 0) {
+            return null;
+        }
+        // find the last restart point whose path is less than key; the first entry not less than
+        // key is in its run, or is the first entry of the next run
+        int low = 0;
+        int high = restartCount - 1;
+        int start = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compareRestart(middle, key) < 0) {
+                start = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        Cursor cursor = new Cursor(file, file.getInt(restartsOffset + 4 * start), entryCount, hashBytes);
+        cursor.index = start * DuxConfigurationFormat.RESTART_INTERVAL - 1;
+        cursor = cursor.next();
+        while (cursor != null && cursor.compareKey(key) < 0) {
+            cursor = cursor.next();
+        }
+        return cursor;
+    }
+
+    /**
+     * Compares the path of a restart point, which is stored whole, with key, without decoding it
+     */
+    private int compareRestart(int restart, byte[] key) {
+        Cursor cursor = new Cursor(file, file.getInt(restartsOffset + 4 * restart), entryCount, hashBytes);
+        cursor.readVarint(); // no shared prefix at a restart point
+        int length = cursor.readVarint();
+        int position = cursor.position;
+        int shared = Math.min(length, key.length);
+        for (int i = 0; i < shared; i++) {
+            int c = (file.get(position + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Walks forward through the entries, decoding one at a time. The path of the current entry is
+     * kept in key, and its flags, display name and hash are decoded only when asked for.
+     */
+    private static final class Cursor {
+        private final ByteBuffer buffer;
+        private final int entryCount;
+        private final int hashBytes;
+        private int position;
+
+        private int index;
+        private byte[] key = new byte[0];
+        private int keyLength;
+        private int valuePosition;
+
+        Cursor(ByteBuffer buffer, int position, int entryCount, int hashBytes) {
+            this.buffer = buffer;
+            this.position = position;
+            this.entryCount = entryCount;
+            this.hashBytes = hashBytes;
+        }
+
+        /**
+         * @return this cursor, moved to the next entry, or null if the current entry is the last
+         */
+        @Nullable Cursor next() {
+            if (index + 1 >= entryCount) {
+                return null;
+            }
+            index++;
+            int shared = readVarint();
+            int suffix = readVarint();
+            if (shared > keyLength) {
+                throw new IllegalStateException("corrupt configuration at entry " + index);
+            }
+            if (shared + suffix > key.length) {
+                key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+            }
+            for (int i = 0; i < suffix; i++) {
+                key[shared + i] = buffer.get(position + i);
+            }
+            position += suffix;
+            keyLength = shared + suffix;
+
+            valuePosition = position;
+            int flags = buffer.get(position++);
+            if ((flags & DuxConfigurationFormat.FLAG_DISPLAY_NAME) != 0) {
+                skipString();
+            }
+            position += hashBytes;
+            return this;
+        }
+
+        int compareKey(byte[] other) {
+            int shared = Math.min(keyLength, other.length);
+            for (int i = 0; i < shared; i++) {
+                int c = (key[i] & 0xff) - (other[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return keyLength - other.length;
+        }
+
+        boolean keyEquals(byte[] other) {
+            return keyLength == other.length && compareKey(other) == 0;
+        }
+
+        boolean keyStartsWith(byte[] prefix) {
+            if (keyLength < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (key[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        DuxConfigurationEntry entry() {
+            int saved = position;
+            position = valuePosition;
+            int flags = buffer.get(position++);
+            String displayName = null;
+            if ((flags & DuxConfigurationFormat.FLAG_DISPLAY_NAME) != 0) {
+                byte[] name = new byte[readVarint()];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = buffer.get(position + i);
+                }
+                position += name.length;
+                displayName = new String(name, StandardCharsets.UTF_8);
+            }
+            byte[] hash = new byte[hashBytes];
+            for (int i = 0; i < hashBytes; i++) {
+                hash[i] = buffer.get(position + i);
+            }
+            position = saved;
+            return new DuxConfigurationEntry(displayName, HashCode.fromBytes(hash),
+                    (flags & DuxConfigurationFormat.FLAG_RELATIVE) != 0,
+                    new File(new String(key, 0, keyLength, StandardCharsets.UTF_8)));
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = buffer.get(position++);
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("corrupt configuration: varint is too long");
+        }
+
+        void skipString() {
+            int length = readVarint();
+            position += length;
+        }
+    }
+}
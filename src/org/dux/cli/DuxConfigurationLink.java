@@ -9,6 +9,7 @@ import java.nio.file.Path;
  * Data class representing a symbolic link.
  */
 public class DuxConfigurationLink implements Serializable {
+    private static final long serialVersionUID = 4868058457415610594L;
 
     public Path getLink() {
         return link;
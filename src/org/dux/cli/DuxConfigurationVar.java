@@ -8,6 +8,8 @@ import java.nio.file.Paths;
  * Data class representing an environment variable that Dux believes is relevant to a build.
  */
 public class DuxConfigurationVar implements Serializable {
+    private static final long serialVersionUID = -8397528455362550606L;
+
     private final String name;
     private final String value;
     private final boolean appendWithPathSeparator;
@@ -23,6 +25,18 @@ public class DuxConfigurationVar implements Serializable {
         this.appendWithPathSeparator = appendWithPathSeparator;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public boolean isAppendWithPathSeparator() {
+        return appendWithPathSeparator;
+    }
+
     @Override
     public String toString() {
         return "DuxConfigurationVar{" +
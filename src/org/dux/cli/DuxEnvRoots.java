@@ -0,0 +1,149 @@
+package org.dux.cli;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The paths named by environment variables, such as {@code JAVA_HOME} or each directory on the
+ * {@code PATH}, kept in a trie of path components so that the variables naming a file, or any
+ * directory above it, can be found in one walk down the file's path.
+ */
+final class DuxEnvRoots {
+    /**
+     * Variables whose values are paths, but which describe the user's session rather than where
+     * something the build uses is installed. A dependency under one of them must not record it,
+     * since replaying the configuration would then overwrite the variable, e.g. set HOME to a
+     * directory under the new working directory.
+     */
+    private static final Set<String> NOT_ROOTS = new HashSet<>(Arrays.asList(
+            "HOME", "PWD", "OLDPWD", "_", "SHELL", "TMPDIR", "TMP", "TEMP", "MAIL",
+            "XDG_RUNTIME_DIR"));
+
+    /**
+     * A path named by at least one environment variable
+     */
+    static final class Root {
+        final Path path;
+        final List<String> variables = new ArrayList<>();
+
+        Root(Path path) {
+            this.path = path;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        @Nullable Root root;
+    }
+
+    private final Node top = new Node();
+    private final Map<String, Boolean> hasPathSeparator = new HashMap<>();
+    private int size;
+
+    /**
+     * Indexes every path in variables, which maps names to values, except for the variables in
+     * {@link #NOT_ROOTS}. Values are split at the path separator. Relative paths are resolved
+     * against currentDir, and filesystem roots, which every path is under, are skipped.
+     */
+    DuxEnvRoots(Map<String, String> variables, Path currentDir) {
+        String pathSeparator = System.getProperty("path.separator");
+        // in name order, so that the variables of a root are always in the same order
+        for (Map.Entry<String, String> var : new TreeMap<>(variables).entrySet()) {
+            if (NOT_ROOTS.contains(var.getKey())) {
+                continue;
+            }
+            String[] values = var.getValue().split(pathSeparator);
+            hasPathSeparator.put(var.getKey(), values.length > 1);
+            for (String value : values) {
+                if (value.isEmpty()) {
+                    continue;
+                }
+                try {
+                    add(currentDir.resolve(value).normalize(), var.getKey());
+                } catch (InvalidPathException e) {
+                    // an environment variable had an invalid path as its value. This is fine.
+                }
+            }
+        }
+    }
+
+    private void add(Path path, String variable) {
+        if (path.getRoot() == null || path.getNameCount() == 0) {
+            return;
+        }
+        Node node = top.children.computeIfAbsent(path.getRoot().toString(), k -> new Node());
+        for (Path name : path) {
+            node = node.children.computeIfAbsent(name.toString(), k -> new Node());
+        }
+        if (node.root == null) {
+            node.root = new Root(path);
+            size++;
+        }
+        if (!node.root.variables.contains(variable)) {
+            node.root.variables.add(variable);
+            DuxCLI.logger.debug("path: {} | variable: {}", path, variable);
+        }
+    }
+
+    /**
+     * @return how many distinct paths are indexed
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the value of variable is a list of paths
+     */
+    boolean hasPathSeparator(String variable) {
+        return hasPathSeparator.getOrDefault(variable, false);
+    }
+
+    /**
+     * Finds the roots that file is attributed to: the file itself, if a variable names it, and
+     * the deepest directory above it that a variable names. Shallower directories are not
+     * returned; recording the deepest one is enough to relocate the file.
+     *
+     * @param file an absolute, normalized path
+     * @return at most two roots, the file's own first
+     */
+    List<Root> rootsOf(Path file) {
+        if (file.getRoot() == null) {
+            return Collections.emptyList();
+        }
+        Node node = top.children.get(file.getRoot().toString());
+        Root deepest = null;
+        int depth = 0;
+        int names = file.getNameCount();
+        while (node != null && depth < names) {
+            if (node.root != null) {
+                deepest = node.root;
+            }
+            node = node.children.get(file.getName(depth).toString());
+            depth++;
+        }
+        Root own = node != null && depth == names ? node.root : null;
+
+        if (own == null) {
+            return deepest == null ? Collections.<Root>emptyList() : Collections.singletonList(deepest);
+        }
+        List<Root> roots = new ArrayList<>(2);
+        roots.add(own);
+        if (deepest != null) {
+            roots.add(deepest);
+        }
+        return roots;
+    }
+}
@@ -1,41 +1,250 @@
 package org.dux.cli;
 
 import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+import org.dux.metrics.Histogram;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 
 /**
  * Class that implements shared code for hashing a file for use in
  * both tracing builds and checking configurations
+ * <p>
+ * How a file is read depends on its size: small files are read in a
+ * single call, medium files are streamed through a large direct buffer
+ * that each thread reuses, and large files are memory-mapped a region
+ * at a time, so that the kernel pages them in without any copying.
  */
 public class DuxFileHasher {
-    private static final int FILE_BUF_SIZE = 1024;
+    // files up to this size are read with a single read call
+    private static final int SMALL_FILE_SIZE = 64 * 1024;
+    // files larger than this are memory-mapped
+    private static final long LARGE_FILE_SIZE = 16 * 1024 * 1024;
+    // the size of the direct buffer used for medium files
+    private static final int DIRECT_BUF_SIZE = 1024 * 1024;
+    // how much of a large file to map at once
+    private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> heapBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            // one extra byte so that a file still being appended to is read to its end
+            return ByteBuffer.allocate(SMALL_FILE_SIZE + 1);
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIRECT_BUF_SIZE);
+        }
+    };
+
+    @Nullable
+    private static volatile DuxHashCache cache = null;
+
+    private static final Histogram FILE_NANOS = DuxMetrics.histogram("hasher.file.nanos");
+    static {
+        DuxMetrics.gauge("hasher.bytes_per_second", DuxFileHasher::bytesPerSecond);
+    }
+
+    /**
+     * Has every later hashFile call consult cache before reading a file, and record
+     * hashes in it afterwards. Passing null turns caching back off.
+     */
+    public static void setCache(@Nullable DuxHashCache cache) {
+        DuxFileHasher.cache = cache;
+    }
+
+    /**
+     * The ways a file can be read, with the bytes and time spent in each,
+     * so that their throughput can be compared on a given machine. They are
+     * reported as the metrics hasher.strategy.files, .bytes and .nanos.
+     */
+    enum Strategy {
+        SINGLE_READ, DIRECT_BUFFER, MEMORY_MAPPED;
+
+        private final String metric = "hasher." + name().toLowerCase(Locale.ROOT);
+        private final Counter files = DuxMetrics.counter(metric + ".files");
+        private final Counter bytes = DuxMetrics.counter(metric + ".bytes");
+        private final Counter nanos = DuxMetrics.counter(metric + ".nanos");
+
+        private void record(long size, long elapsedNanos) {
+            files.increment();
+            bytes.add(size);
+            nanos.add(elapsedNanos);
+            FILE_NANOS.record(elapsedNanos);
+        }
+    }
 
     public static HashCode hashFile(String path)
             throws IOException, FileNotFoundException {
 
         DuxCLI.logger.debug("hashing this path: {}", path);
 
-        HashFunction hf = Hashing.sha256();
-        Hasher hasher = hf.newHasher();
-
-        try (FileInputStream fs = new FileInputStream(path)) {
-            byte[] buf = new byte[FILE_BUF_SIZE];
-            while (true) {
-                int len = fs.read(buf);
-                if (len == -1) {
-                    break;
-                }
-                hasher.putBytes(buf, 0, len);
+        DuxHashCache cache = DuxFileHasher.cache;
+        if (cache == null) {
+            return readAndHash(path);
+        }
+
+        try {
+            Path p = Paths.get(path);
+            DuxHashCache.Key key = cache.keyFor(p);
+            if (key == null) {
+                return readAndHash(path);
+            }
+            HashCode cached = cache.get(key);
+            if (cached != null) {
+                DuxCLI.logger.debug("found cached hash for path: {}", path);
+                return cached;
+            }
+            HashCode hash = readAndHash(path);
+            // only trust the hash if the file did not change while it was being read
+            if (key.equals(cache.keyFor(p))) {
+                cache.put(key, hash);
+            }
+            return hash;
+        } catch (FileSystemException e) {
+            throw notFound(path, e);
+        }
+    }
+
+    private static HashCode readAndHash(String path) throws IOException, FileNotFoundException {
+        MessageDigest digest = newDigest();
+        long start = System.nanoTime();
+        long size;
+        Strategy strategy;
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (FileSystemException e) {
+            throw notFound(path, e);
+        }
+
+        try {
+            size = channel.size();
+            if (size <= SMALL_FILE_SIZE) {
+                strategy = Strategy.SINGLE_READ;
+                hashSmall(channel, digest);
+            } else if (size <= LARGE_FILE_SIZE) {
+                strategy = Strategy.DIRECT_BUFFER;
+                hashMedium(channel, digest);
+            } else {
+                strategy = Strategy.MEMORY_MAPPED;
+                hashLarge(channel, size, digest);
+            }
+        } catch (IOException e) {
+            // a directory opens fine on Linux, and only fails once it is read
+            if (Files.isDirectory(Paths.get(path))) {
+                throw notFound(path, e);
             }
+            throw e;
+        } finally {
+            channel.close();
         }
 
+        strategy.record(size, System.nanoTime() - start);
         DuxCLI.logger.debug("hashing complete for path: {}", path);
-        return hasher.hash();
+        return HashCode.fromBytes(digest.digest());
+    }
+
+    /**
+     * Callers rely on FileNotFoundException to tell that a file cannot be hashed at all, as
+     * FileInputStream reported it: for files that have gone away, files that cannot be read,
+     * and directories.
+     */
+    private static FileNotFoundException notFound(String path, IOException cause) {
+        FileNotFoundException e = new FileNotFoundException(path + " (" + cause.getMessage() + ")");
+        e.initCause(cause);
+        return e;
+    }
+
+    private static void hashSmall(FileChannel channel, MessageDigest digest)
+            throws IOException {
+        // small files usually fit in one read, but pseudo-files (e.g. under /proc)
+        // report a size of 0 and have to be read until end of file
+        ByteBuffer buf = heapBuffer.get();
+        buf.clear();
+        while (channel.read(buf) > 0) {
+            if (!buf.hasRemaining()) {
+                digest.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        digest.update(buf.array(), 0, buf.position());
+    }
+
+    private static void hashMedium(FileChannel channel, MessageDigest digest)
+            throws IOException {
+        ByteBuffer buf = directBuffer.get();
+        buf.clear();
+        while (channel.read(buf) != -1) {
+            buf.flip();
+            digest.update(buf);
+            buf.clear();
+        }
+    }
+
+    private static void hashLarge(FileChannel channel, long size, MessageDigest digest)
+            throws IOException {
+        for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+            long length = Math.min(MAP_REGION_SIZE, size - position);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            digest.update(region);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            // the same function as Guava's Hashing.sha256(), fed directly from NIO buffers
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("every Java platform is required to support SHA-256", e);
+        }
+    }
+
+    /**
+     * @return the bytes hashed per second of hashing, over every strategy. Since files are
+     * hashed in parallel, this is the throughput of a single hashing thread.
+     */
+    private static long bytesPerSecond() {
+        long bytes = 0;
+        long nanos = 0;
+        for (Strategy strategy : Strategy.values()) {
+            bytes += strategy.bytes.get();
+            nanos += strategy.nanos.get();
+        }
+        return (long) (bytes / (Math.max(1, nanos) / 1e9));
+    }
+
+    /**
+     * Logs how many bytes were hashed with each strategy, and how fast.
+     */
+    public static void logStatistics() {
+        for (Strategy strategy : Strategy.values()) {
+            long files = strategy.files.get();
+            if (files == 0) {
+                continue;
+            }
+            long bytes = strategy.bytes.get();
+            double seconds = Math.max(1, strategy.nanos.get()) / 1e9;
+            DuxCLI.logger.info("hashed {} files ({} bytes) with {}: {} bytes/sec",
+                    files, bytes, strategy, (long) (bytes / seconds));
+        }
     }
 }
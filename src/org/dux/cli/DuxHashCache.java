@@ -0,0 +1,276 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent cache of file hashes, shared by every dux run on a machine.
+ * <p>
+ * Entries are keyed by the identity and metadata of a file (device, inode,
+ * size, modification time and change time) rather than by its path, so a
+ * hit only costs a stat. Any write to a file changes its change time, so a
+ * modified file simply misses the cache.
+ * <p>
+ * The cache is loaded into memory when opened and written back by
+ * {@link #save()}, which takes a file lock, merges in whatever other dux
+ * processes saved in the meantime, evicts the least recently used entries
+ * beyond the size bound, and atomically replaces the cache file.
+ */
+public class DuxHashCache {
+    private static final int MAGIC = 0x44555848; // "DUXH"
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final String UNIX_ATTRIBUTES = "unix:dev,ino,size,lastModifiedTime,ctime";
+
+    // files changed this recently might change again without their timestamps
+    // moving, on filesystems with coarse timestamps, so they are not cached
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final Path file;
+    private final int maxEntries;
+    private final Map<Key, Entry> entries;
+    private final Counter hits = DuxMetrics.counter("hashcache.hits");
+    private final Counter misses = DuxMetrics.counter("hashcache.misses");
+
+    private DuxHashCache(Path file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens the cache stored at file, which need not exist yet.
+     *
+     * @param maxEntries the most entries to keep when saving
+     */
+    public static DuxHashCache open(Path file, int maxEntries) {
+        DuxHashCache cache = new DuxHashCache(file, maxEntries);
+        try {
+            cache.entries.putAll(readEntries(file));
+            DuxCLI.logger.debug("loaded {} cached hashes from {}", cache.entries.size(), file);
+        } catch (IOException ioe) {
+            DuxCLI.logger.warn("could not read hash cache {}, starting with an empty one: {}", file, ioe);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the default location of the cache, in the user's home directory
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".dux", "hashcache");
+    }
+
+    /**
+     * Reads the identity and metadata of the file at path.
+     *
+     * @return the key for the file, or null if this platform does not expose the needed attributes
+     */
+    @Nullable Key keyFor(Path path) throws IOException {
+        Map<String, Object> attrs;
+        try {
+            attrs = Files.readAttributes(path, UNIX_ATTRIBUTES);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+        return new Key((Long) attrs.get("dev"), (Long) attrs.get("ino"), (Long) attrs.get("size"),
+                ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * @return the cached hash of the file identified by key, or null on a miss
+     */
+    @Nullable HashCode get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.lastUsed = System.currentTimeMillis();
+        return HashCode.fromBytes(entry.hash);
+    }
+
+    /**
+     * Records hash for the file identified by key, unless the file changed too recently to be trusted.
+     */
+    void put(Key key, HashCode hash) {
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - Math.max(key.mtime, key.ctime) < RACY_WINDOW_NANOS) {
+            return;
+        }
+        entries.put(key, new Entry(hash.asBytes(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Writes the cache back to disk, merged with any entries saved by other processes since it was opened.
+     */
+    public void save() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path lockFile = dir.resolve(file.getFileName() + ".lock");
+        try (FileChannel lockChannel = FileChannel.open(lockFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                saveLocked(dir);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Does the work of {@link #save}, while holding the lock on the cache file.
+     */
+    private void saveLocked(Path dir) throws IOException {
+        Map<Key, Entry> merged = readEntries(file);
+        for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+            Entry theirs = merged.get(e.getKey());
+            if (theirs == null || theirs.lastUsed < e.getValue().lastUsed) {
+                merged.put(e.getKey(), e.getValue());
+            }
+        }
+
+        List<Map.Entry<Key, Entry>> sorted = new ArrayList<>(merged.entrySet());
+        if (sorted.size() > maxEntries) {
+            // keep the most recently used entries
+            Collections.sort(sorted, new Comparator<Map.Entry<Key, Entry>>() {
+                @Override
+                public int compare(Map.Entry<Key, Entry> a, Map.Entry<Key, Entry> b) {
+                    return Long.compare(b.getValue().lastUsed, a.getValue().lastUsed);
+                }
+            });
+            sorted = sorted.subList(0, maxEntries);
+        }
+
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            writeEntries(tmp, sorted);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        DuxCLI.logger.debug("saved {} cached hashes to {}", sorted.size(), file);
+    }
+
+    /**
+     * Logs how often the cache spared a file from being hashed.
+     */
+    public void logStatistics() {
+        DuxCLI.logger.info("hash cache: {} hits, {} misses", hits.get(), misses.get());
+    }
+
+    private static Map<Key, Entry> readEntries(Path file) throws IOException {
+        Map<Key, Entry> result = new HashMap<>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                DuxCLI.logger.warn("ignoring hash cache {} in an unknown format", file);
+                return result;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                long lastUsed = in.readLong();
+                byte[] hash = new byte[HASH_BYTES];
+                in.readFully(hash);
+                result.put(key, new Entry(hash, lastUsed));
+            }
+        } catch (EOFException e) {
+            DuxCLI.logger.warn("hash cache {} is truncated, keeping the entries read so far", file);
+        }
+        return result;
+    }
+
+    private static void writeEntries(Path file, List<Map.Entry<Key, Entry>> entries) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<Key, Entry> e : entries) {
+                Key key = e.getKey();
+                out.writeLong(key.dev);
+                out.writeLong(key.inode);
+                out.writeLong(key.size);
+                out.writeLong(key.mtime);
+                out.writeLong(key.ctime);
+                out.writeLong(e.getValue().lastUsed);
+                out.write(e.getValue().hash);
+            }
+        }
+    }
+
+    /**
+     * The identity and metadata of a file at the time it was hashed.
+     */
+    static final class Key {
+        private final long dev, inode, size, mtime, ctime;
+
+        Key(long dev, long inode, long size, long mtime, long ctime) {
+            this.dev = dev;
+            this.inode = inode;
+            this.size = size;
+            this.mtime = mtime;
+            this.ctime = ctime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key that = (Key) o;
+            return dev == that.dev && inode == that.inode && size == that.size
+                    && mtime == that.mtime && ctime == that.ctime;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(dev);
+            result = 31 * result + Long.hashCode(inode);
+            result = 31 * result + Long.hashCode(size);
+            result = 31 * result + Long.hashCode(mtime);
+            result = 31 * result + Long.hashCode(ctime);
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] hash;
+        private volatile long lastUsed;
+
+        Entry(byte[] hash, long lastUsed) {
+            this.hash = hash;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package org.dux.cli;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of ignore rules, in the style of .gitignore, compiled so that checking a path costs one
+ * walk over its components.
+ * <p>
+ * Each rule is one of:
+ * <ul>
+ *   <li>a literal path, such as {@code /usr/bin/make} or {@code build/..}. Relative paths are
+ *   resolved against the base directory and normalized. The rule matches the path and
+ *   everything under it. Literal rules are kept in a trie of path components.</li>
+ *   <li>a glob without a slash, such as {@code *.pyc}, which matches any path with a component
+ *   that matches it</li>
+ *   <li>a glob with a slash, such as {@code /opt/*}{@code /doc} or {@code **}{@code /__pycache__},
+ *   which matches paths whose leading components match it, component by component. {@code **}
+ *   matches any number of components. Relative globs are anchored at the base directory, except
+ *   those that start with {@code **}.</li>
+ * </ul>
+ * A rule is a glob if it has a {@code *}, {@code ?} or {@code [...]}; globs also support
+ * {@code \} escapes. A glob that ends in {@code /} only matches directories that have something
+ * under them. A rule that starts with {@code !} re-includes the paths it matches. As in .gitignore, the last rule that matches a
+ * path decides whether it is ignored, and a rule that matches a directory matches everything
+ * under it.
+ * <p>
+ * Unlike .gitignore, a literal without a slash, such as {@code keep.pyc}, is still a path relative
+ * to the base directory, as it was before globs were supported, and does not match at any depth.
+ * So after {@code *.pyc}, {@code !keep.pyc} only re-includes the base directory's keep.pyc; to
+ * re-include it everywhere, write {@code !**}{@code /keep.pyc}.
+ */
+final class DuxIgnoreMatcher {
+    private static final String ANY_DEPTH = "**";
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        int rule = -1;
+    }
+
+    private final Node root = new Node();
+    private final List<Boolean> negated = new ArrayList<>();
+    private final List<Glob> nameGlobs = new ArrayList<>();
+    private final List<AnchoredGlob> anchoredGlobs = new ArrayList<>();
+    private boolean hasNegation;
+
+    private DuxIgnoreMatcher() {
+    }
+
+    /**
+     * Compiles rules, in order. Blank lines and lines starting with # are skipped.
+     *
+     * @param base the absolute, normalized directory that relative rules are resolved against
+     */
+    static DuxIgnoreMatcher compile(List<String> rules, Path base) {
+        DuxIgnoreMatcher matcher = new DuxIgnoreMatcher();
+        for (String rule : rules) {
+            matcher.add(rule, base);
+        }
+        return matcher;
+    }
+
+    private void add(String line, Path base) {
+        String rule = stripTrailingSpace(line);
+        if (rule.isEmpty() || rule.startsWith("#")) {
+            return;
+        }
+        boolean negate = rule.startsWith("!");
+        if (negate) {
+            rule = rule.substring(1);
+        } else if (rule.startsWith("\\!") || rule.startsWith("\\#")) {
+            rule = rule.substring(1);
+        }
+        if (rule.isEmpty()) {
+            return;
+        }
+
+        int index = negated.size();
+        negated.add(negate);
+        hasNegation |= negate;
+
+        if (!Glob.isGlob(rule)) {
+            // literal rules keep their original meaning: a path, normalized, and its descendants
+            Path path = base.resolve(rule).normalize();
+            Node node = root.children.computeIfAbsent(path.getRoot().toString(), k -> new Node());
+            for (Path name : path) {
+                node = node.children.computeIfAbsent(name.toString(), k -> new Node());
+            }
+            node.rule = index;
+            return;
+        }
+
+        boolean directoryOnly = rule.length() > 1 && rule.endsWith("/");
+        if (directoryOnly) {
+            rule = rule.substring(0, rule.length() - 1);
+        }
+        if (rule.indexOf('/') < 0) {
+            nameGlobs.add(new Glob(rule, index, directoryOnly));
+            return;
+        }
+
+        List<String> components = new ArrayList<>();
+        if (rule.startsWith(ANY_DEPTH + "/")) {
+            components.add(ANY_DEPTH);
+            rule = rule.substring(ANY_DEPTH.length() + 1);
+        } else if (rule.startsWith("/")) {
+            components.add(base.getRoot().toString());
+            rule = rule.substring(1);
+        } else {
+            components.add(base.getRoot().toString());
+            for (Path name : base) {
+                components.add(name.toString());
+            }
+        }
+        for (String component : rule.split("/")) {
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            if (component.equals("..") && components.size() > 1
+                    && !Glob.isGlob(components.get(components.size() - 1))) {
+                components.remove(components.size() - 1);
+                continue;
+            }
+            components.add(component);
+        }
+        Glob[] globs = new Glob[components.size()];
+        for (int i = 0; i < globs.length; i++) {
+            String component = components.get(i);
+            globs[i] = component.equals(ANY_DEPTH) ? null : new Glob(component, index, false);
+        }
+        anchoredGlobs.add(new AnchoredGlob(globs, index, directoryOnly));
+    }
+
+    private static String stripTrailingSpace(String line) {
+        int end = line.length();
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))
+                && !(end > 1 && line.charAt(end - 2) == '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    /**
+     * @param path an absolute, normalized path
+     * @return whether path is ignored
+     */
+    boolean matches(Path path) {
+        String text = path.toString();
+        String rootName = path.getRoot() == null ? "" : path.getRoot().toString();
+        char separator = File.separatorChar;
+
+        // split the path into components once, as offsets into its text
+        int[] bounds = new int[2 * (path.getNameCount() + 1)];
+        bounds[0] = 0;
+        bounds[1] = rootName.length();
+        int count = 1;
+        int start = rootName.length();
+        while (start < text.length()) {
+            int end = text.indexOf(separator, start);
+            if (end < 0) {
+                end = text.length();
+            }
+            if (end > start) {
+                if (2 * count + 1 >= bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                bounds[2 * count] = start;
+                bounds[2 * count + 1] = end;
+                count++;
+            }
+            start = end + 1;
+        }
+
+        // literal rules: every rule on the walk down the trie matches an ancestor of path
+        int best = -1;
+        Node node = root.children.get(rootName);
+        for (int i = 1; node != null; i++) {
+            if (node.rule > best) {
+                if (!hasNegation) {
+                    return true;
+                }
+                best = node.rule;
+            }
+            if (i >= count) {
+                break;
+            }
+            node = node.children.get(text.substring(bounds[2 * i], bounds[2 * i + 1]));
+        }
+
+        for (Glob glob : nameGlobs) {
+            if (glob.rule <= best) {
+                continue;
+            }
+            // the root is not a name, and a directory-only glob cannot match the last component
+            int last = glob.directoryOnly ? count - 1 : count;
+            for (int i = 1; i < last; i++) {
+                if (glob.matches(text, bounds[2 * i], bounds[2 * i + 1])) {
+                    best = glob.rule;
+                    break;
+                }
+            }
+        }
+
+        for (AnchoredGlob glob : anchoredGlobs) {
+            if (glob.rule > best && glob.matchesPrefix(text, bounds, count, 0, 0)) {
+                best = glob.rule;
+            }
+        }
+
+        return best >= 0 && !negated.get(best);
+    }
+
+    /**
+     * A glob with a slash, as one glob per component, in which null stands for {@code **}
+     */
+    private static final class AnchoredGlob {
+        final Glob[] components;
+        final int rule;
+        final boolean directoryOnly;
+
+        AnchoredGlob(Glob[] components, int rule, boolean directoryOnly) {
+            this.components = components;
+            this.rule = rule;
+            this.directoryOnly = directoryOnly;
+        }
+
+        /**
+         * @return whether components from glob onwards match components of the path from
+         * component onwards, with at least one component of the path left over if this glob is
+         * directory-only
+         */
+        boolean matchesPrefix(String text, int[] bounds, int count, int glob, int component) {
+            if (glob == components.length) {
+                return directoryOnly ? component < count : component > 0;
+            }
+            if (components[glob] == null) {
+                for (int i = component; i <= count; i++) {
+                    if (matchesPrefix(text, bounds, count, glob + 1, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return component < count
+                    && components[glob].matches(text, bounds[2 * component], bounds[2 * component + 1])
+                    && matchesPrefix(text, bounds, count, glob + 1, component + 1);
+        }
+    }
+
+    /**
+     * A glob for a single path component
+     */
+    private static final class Glob {
+        final String pattern;
+        final int rule;
+        final boolean directoryOnly;
+
+        /**
+         * For globs of the form {@code *literal}, which are the most common, the literal
+         */
+        private final String suffix;
+
+        Glob(String pattern, int rule, boolean directoryOnly) {
+            this.pattern = pattern;
+            this.rule = rule;
+            this.directoryOnly = directoryOnly;
+            this.suffix = pattern.startsWith("*") && !isGlob(pattern.substring(1))
+                    && pattern.indexOf('\\') < 0 ? pattern.substring(1) : null;
+        }
+
+        static boolean isGlob(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return whether this glob matches the characters of text from start to end
+         */
+        boolean matches(String text, int start, int end) {
+            if (suffix != null) {
+                return end - start >= suffix.length()
+                        && text.regionMatches(end - suffix.length(), suffix, 0, suffix.length());
+            }
+            // the usual backtracking match, which only ever needs to return to the latest *
+            int p = 0;
+            int t = start;
+            int starP = -1;
+            int starT = -1;
+            while (t < end) {
+                if (p < pattern.length()) {
+                    char c = pattern.charAt(p);
+                    if (c == '*') {
+                        starP = ++p;
+                        starT = t;
+                        continue;
+                    }
+                    int next = matchOne(c, p, text.charAt(t));
+                    if (next >= 0) {
+                        p = next;
+                        t++;
+                        continue;
+                    }
+                }
+                if (starP < 0) {
+                    return false;
+                }
+                p = starP;
+                t = ++starT;
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        /**
+         * @return the index in the pattern after the element at p, which starts with c, if it
+         * matches ch, or -1 if it does not
+         */
+        private int matchOne(char c, int p, char ch) {
+            if (c == '?') {
+                return p + 1;
+            }
+            if (c == '\\' && p + 1 < pattern.length()) {
+                return pattern.charAt(p + 1) == ch ? p + 2 : -1;
+            }
+            if (c == '[') {
+                int close = pattern.indexOf(']', p + 2);
+                if (close < 0) {
+                    // an unclosed bracket is an ordinary character
+                    return ch == '[' ? p + 1 : -1;
+                }
+                int i = p + 1;
+                boolean negate = pattern.charAt(i) == '!' || pattern.charAt(i) == '^';
+                if (negate) {
+                    i++;
+                }
+                boolean found = false;
+                for (; i < close; i++) {
+                    char low = pattern.charAt(i);
+                    if (i + 2 < close && pattern.charAt(i + 1) == '-') {
+                        if (low <= ch && ch <= pattern.charAt(i + 2)) {
+                            found = true;
+                        }
+                        i += 2;
+                    } else if (low == ch) {
+                        found = true;
+                    }
+                }
+                return found != negate ? close + 1 : -1;
+            }
+            return c == ch ? p + 1 : -1;
+        }
+    }
+}
@@ -72,10 +72,31 @@ public class DuxOptions extends OptionsBase {
     )
     public String file;
 
+    @Option(
+            name = "query",
+            help = "Print the hash of this path in the configuration file, without loading the whole file. Exits with status 1 if the path is not in it.",
+            defaultValue = "NOT SET"
+    )
+    public String query;
+
+    @Option(
+            name = "queryprefix",
+            help = "Print the hash and path of every entry of the configuration file under this directory, without loading the whole file",
+            defaultValue = "NOT SET"
+    )
+    public String queryPrefix;
+
+    @Option(
+            name = "rewrite",
+            help = "Read the configuration file and write it back in the current format, e.g. so that a file written by an older version of dux can be queried",
+            defaultValue = "false"
+    )
+    public boolean rewrite;
+
     @Option(
             name = "store",
             abbrev = 's',
-            help = "The type of backing store in use. Must be one of: google",
+            help = "The type of backing store in use. Must be one of: google, local",
             defaultValue = "google"
     )
     public String storeType;
@@ -88,6 +109,62 @@ public class DuxOptions extends OptionsBase {
     )
     public String bucketName;
 
+    @Option(
+            name = "storeroot",
+            help = "If using a local backing store (-s local), the directory to store dependencies in. Defaults to ~/.dux/store",
+            defaultValue = "NOT SET"
+    )
+    public String storeRoot;
+
+    @Option(
+            name = "storelinks",
+            help = "If using a local backing store (-s local), hard-link fetched files to the stored files instead of copying them. Fetched files must then never be modified, since that would also modify the stored file.",
+            defaultValue = "false"
+    )
+    public boolean storeLinks;
+
+    @Option(
+            name = "codec",
+            help = "The codec with which to compress files uploaded to the backing store. Must be one of: identity, gzip, deflate. Files that do not look compressible are uploaded uncompressed.",
+            defaultValue = "gzip"
+    )
+    public String codec;
+
+    @Option(
+            name = "codeclevel",
+            help = "The compression level for --codec, from 1 (fastest) to 9 (smallest)",
+            defaultValue = "6"
+    )
+    public int codecLevel;
+
+    @Option(
+            name = "rangethreads",
+            help = "The number of ranges of one large file to download from the backing store in parallel",
+            defaultValue = "8"
+    )
+    public int rangeThreads;
+
+    @Option(
+            name = "cachedir",
+            help = "A local directory in which to keep copies of files fetched from the backing store, shared by every dux run on this machine. Not used if unset.",
+            defaultValue = "NOT SET"
+    )
+    public String cacheDir;
+
+    @Option(
+            name = "cachesizemb",
+            help = "The size, in megabytes, beyond which the least recently used files are evicted from the --cachedir cache",
+            defaultValue = "10240"
+    )
+    public int cacheSizeMb;
+
+    @Option(
+            name = "chunkthresholdmb",
+            help = "Upload files of at least this many megabytes as content-defined chunks, so that a new version of a large file only uploads (and, with --cachedir, only downloads) the parts that changed. 0 uploads every file whole.",
+            defaultValue = "0"
+    )
+    public int chunkThresholdMb;
+
     @Option(
             name = "saveconfig",
             abbrev = 'a',
@@ -110,4 +187,81 @@ public class DuxOptions extends OptionsBase {
             defaultValue = "true"
     )
     public boolean includeDefaultBlacklist;
+
+    @Option(
+            name = "stream",
+            help = "If this option is set, the trace is parsed and hashed through a pipe while the build is still running, instead of from a temporary file after it finishes (Linux only)",
+            defaultValue = "false"
+    )
+    public boolean streamTrace;
+
+    @Option(
+            name = "keeptrace",
+            help = "Keep the raw trace of the command in this file instead of deleting it once it has been parsed, so that it can be given to --replay",
+            defaultValue = "NOT SET"
+    )
+    public String keepTrace;
+
+    @Option(
+            name = "replay",
+            help = "Record the configuration from this trace, kept by --keeptrace, instead of running and tracing a command, and print how long each stage took. The command recorded is the one given by --command, or else the first program the trace runs",
+            defaultValue = "NOT SET"
+    )
+    public String replay;
+
+    @Option(
+            name = "hashthreads",
+            help = "The number of files to hash in parallel while tracing. 0 means one per available processor",
+            defaultValue = "0"
+    )
+    public int hashThreads;
+
+    @Option(
+            name = "usehashcache",
+            help = "If this option is set to false, then Dux will re-hash every file instead of reusing hashes saved by earlier runs for files that have not changed",
+            defaultValue = "true"
+    )
+    public boolean useHashCache;
+
+    @Option(
+            name = "hashcache",
+            help = "The file in which to cache hashes between runs. Defaults to ~/.dux/hashcache",
+            defaultValue = "NOT SET"
+    )
+    public String hashCacheFile;
+
+    @Option(
+            name = "hashcachesize",
+            help = "The maximum number of file hashes to keep in the hash cache",
+            defaultValue = "500000"
+    )
+    public int hashCacheSize;
+
+    @Option(
+            name = "checkthreads",
+            help = "When checking the configuration, the number of present files to re-hash in parallel. 0 means one per available processor",
+            defaultValue = "0"
+    )
+    public int checkThreads;
+
+    @Option(
+            name = "fetchthreads",
+            help = "When checking the configuration, the number of missing files to fetch from the backing store in parallel",
+            defaultValue = "8"
+    )
+    public int fetchThreads;
+
+    @Option(
+            name = "uploadthreads",
+            help = "After tracing, the number of dependencies to upload to the backing store in parallel",
+            defaultValue = "8"
+    )
+    public int uploadThreads;
+
+    @Option(
+            name = "metrics",
+            help = "When dux finishes, write a JSON report of its metrics (counts, throughputs and latency percentiles of each stage of the run) to this file",
+            defaultValue = "NOT SET"
+    )
+    public String metricsFile;
 }
@@ -0,0 +1,253 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.dux.cli.DuxFileHasher.hashFile;
+
+/**
+ * A hashing stage for the build tracer. Files are hashed on a bounded
+ * pool of worker threads while the tracer moves on to the next call.
+ * <p>
+ * Each path is only ever queued once. When every worker is busy and the
+ * queue is full, the submitting thread hashes the file itself, which
+ * keeps the number of pending files (and memory) bounded.
+ * <p>
+ * While the build is still running, a file can be hashed before whoever
+ * writes it has finished, or be a temporary file that is deleted later.
+ * A hasher made to recheck its files remembers each file's size and
+ * modification time as it hashes it, and once the build is done, drops
+ * the files that are gone and hashes again the ones that changed.
+ */
+public class DuxParallelHasher {
+    // how many pending files to allow per worker before the submitter has to help out
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private static final Counter RECHECK_REMOVED = DuxMetrics.counter("hasher.recheck.removed");
+    private static final Counter RECHECK_REHASHED = DuxMetrics.counter("hasher.recheck.rehashed");
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final Set<Path> queued;
+    private final Map<Path, HashCode> hashes;
+    private final AtomicReference<IOException> failure;
+
+    // for a hasher that rechecks its files, each hashed file as it was when it was hashed
+    private final @Nullable Map<Path, Observed> observed;
+
+    /**
+     * @param threads the number of worker threads, or 0 for one per available processor
+     * @param hashes the map to record hashes in; must be safe for concurrent use
+     */
+    public DuxParallelHasher(int threads, Map<Path, HashCode> hashes) {
+        this(threads, hashes, false);
+    }
+
+    /**
+     * @param threads the number of worker threads, or 0 for one per available processor
+     * @param hashes the map to record hashes in; must be safe for concurrent use
+     * @param recheck whether to check every hashed file again in {@link #awaitCompletion}, for
+     *                files that were hashed while they could still change
+     */
+    public DuxParallelHasher(int threads, Map<Path, HashCode> hashes, boolean recheck) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        DuxCLI.logger.debug("hashing with {} threads", threads);
+        this.threads = threads;
+        this.executor = newExecutor(threads);
+        this.queued = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        this.hashes = hashes;
+        this.failure = new AtomicReference<>();
+        this.observed = recheck ? new ConcurrentHashMap<Path, Observed>() : null;
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return whether key has already been submitted for hashing
+     */
+    public boolean isQueued(Path key) {
+        return queued.contains(key);
+    }
+
+    /**
+     * Queues the file at path to be hashed, and its hash recorded under key.
+     * Files that no longer exist by the time they are hashed are skipped.
+     *
+     * @return false if key had already been submitted, in which case nothing is queued
+     */
+    public boolean submit(final Path key, final String path) {
+        if (!queued.add(key)) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure.get() != null) {
+                    return;
+                }
+                try {
+                    if (observed == null) {
+                        hashes.put(key, hashFile(path));
+                        return;
+                    }
+                    // look before hashing, so that anything written while the file is read
+                    // shows up as a change
+                    Observed before = Observed.of(path);
+                    hashes.put(key, hashFile(path));
+                    observed.put(key, before);
+                } catch (FileNotFoundException e) {
+                    // must be a file created and deleted during the build
+                    DuxCLI.logger.debug("skipping temp file: {}", path);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, unexpected(path, e));
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits for every submitted file to be hashed and shuts down the workers.
+     *
+     * @throws IOException the first failure to hash a file, if there was one, wrapping any
+     *                     unchecked exception or error a worker ran into
+     */
+    public void awaitCompletion() throws IOException, InterruptedException {
+        awaitTermination(executor, "hashed");
+        if (observed != null && failure.get() == null) {
+            recheck();
+        }
+        IOException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Anything else a worker throws would be swallowed by the executor (or, when the submitting
+     * thread runs the task itself, abort the parse), and leave path out of the configuration
+     * without a word. So it is recorded as a failure to hash path, like any other.
+     */
+    private static IOException unexpected(String path, Throwable cause) {
+        return new IOException("unexpected failure hashing " + path, cause);
+    }
+
+    private static void awaitTermination(ThreadPoolExecutor executor, String what)
+            throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            DuxCLI.logger.debug("waiting on {} files still to be {}", executor.getQueue().size(), what);
+        }
+    }
+
+    /**
+     * Drops the hashes of files that no longer exist, and hashes again the files whose size or
+     * modification time has changed since they were hashed
+     */
+    private void recheck() throws InterruptedException {
+        ThreadPoolExecutor rechecker = newExecutor(threads);
+        for (final Map.Entry<Path, Observed> entry : observed.entrySet()) {
+            rechecker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    Path key = entry.getKey();
+                    String path = entry.getValue().path;
+                    try {
+                        if (entry.getValue().equals(Observed.of(path))) {
+                            return;
+                        }
+                        DuxCLI.logger.debug("{} changed after it was hashed, hashing it again", path);
+                        hashes.put(key, hashFile(path));
+                        RECHECK_REHASHED.increment();
+                    } catch (FileNotFoundException e) {
+                        DuxCLI.logger.debug("{} is gone since it was hashed, dropping it", path);
+                        hashes.remove(key);
+                        RECHECK_REMOVED.increment();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, unexpected(path, e));
+                    }
+                }
+            });
+        }
+        awaitTermination(rechecker, "rechecked");
+        DuxCLI.logger.info("rechecked {} files hashed during the build: {} were gone, {} had changed",
+                observed.size(), RECHECK_REMOVED.get(), RECHECK_REHASHED.get());
+    }
+
+    /**
+     * The size and modification time of a file
+     */
+    private static final class Observed {
+        final String path;
+        final long size;
+        final FileTime lastModified;
+
+        private Observed(String path, long size, FileTime lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @throws FileNotFoundException if path is gone or is no longer a regular file
+         */
+        static Observed of(String path) throws IOException {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+            } catch (FileSystemException e) {
+                throw new FileNotFoundException(path);
+            }
+            if (!attributes.isRegularFile()) {
+                throw new FileNotFoundException(path + " (not a regular file)");
+            }
+            return new Observed(path, attributes.size(), attributes.lastModifiedTime());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Observed)) {
+                return false;
+            }
+            Observed other = (Observed) o;
+            return size == other.size && lastModified.equals(other.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(size) + lastModified.hashCode();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.dux.cli;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides, once per path, whether a path seen during a trace should be recorded, and under
+ * which name. The same path usually appears in a trace many times, so every decision is
+ * remembered for the rest of the trace, including rejections.
+ * <p>
+ * Deciding costs one lstat for a path that is not a symbolic link: whether it is in the
+ * project directory is worked out from the canonical path of its parent directory, which is
+ * shared by many paths and so is only looked up once. A symbolic link costs a stat and a
+ * lookup of its canonical path as well.
+ * <p>
+ * Not thread safe; a trace records its calls one at a time.
+ */
+final class DuxPathResolver {
+    enum Verdict {
+        BLACKLISTED, NOT_REGULAR_FILE, IN_PROJECT, ACCEPTED
+    }
+
+    static final class Resolution {
+        final Verdict verdict;
+
+        /**
+         * For accepted paths, the path to record: relative to the current directory if the
+         * path shares a leading directory with it, and as it was traced otherwise
+         */
+        final @Nullable Path key;
+
+        /**
+         * For accepted paths, the absolute, normalized path
+         */
+        final @Nullable Path absolute;
+
+        private Resolution(Verdict verdict, @Nullable Path key, @Nullable Path absolute) {
+            this.verdict = verdict;
+            this.key = key;
+            this.absolute = absolute;
+        }
+    }
+
+    private static final Resolution BLACKLISTED = new Resolution(Verdict.BLACKLISTED, null, null);
+    private static final Resolution NOT_REGULAR_FILE = new Resolution(Verdict.NOT_REGULAR_FILE, null, null);
+    private static final Resolution IN_PROJECT = new Resolution(Verdict.IN_PROJECT, null, null);
+
+    private static final Counter UNIQUE_PATHS = DuxMetrics.counter("tracer.paths.unique");
+
+    private final DuxTraceBlacklist blacklist;
+    private final boolean includeProjDir;
+    private final Path currentDir;
+    private final Path canonicalCurrentDir;
+
+    private final Map<Path, Resolution> resolutions = new HashMap<>();
+    private final Map<Path, Path> canonicalDirectories = new HashMap<>();
+    private long lookups;
+
+    DuxPathResolver(DuxTraceBlacklist blacklist, boolean includeProjDir) {
+        this.blacklist = blacklist;
+        this.includeProjDir = includeProjDir;
+        this.currentDir = Paths.get("").toAbsolutePath().normalize();
+        this.canonicalCurrentDir = canonicalDirectory(currentDir);
+    }
+
+    /**
+     * @param p a normalized path, as it appeared in the trace
+     */
+    Resolution resolve(Path p) {
+        lookups++;
+        Resolution resolution = resolutions.get(p);
+        if (resolution == null) {
+            resolution = decide(p);
+            resolutions.put(p, resolution);
+            UNIQUE_PATHS.increment();
+        }
+        return resolution;
+    }
+
+    private Resolution decide(Path p) {
+        if (blacklist.contains(p)) {
+            return BLACKLISTED;
+        }
+
+        Path absolute = p.isAbsolute() ? p : currentDir.resolve(p).normalize();
+        BasicFileAttributes attributes;
+        boolean symbolicLink;
+        try {
+            attributes = Files.readAttributes(absolute, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            symbolicLink = attributes.isSymbolicLink();
+            if (symbolicLink) {
+                attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+            }
+        } catch (IOException ioe) {
+            return NOT_REGULAR_FILE;
+        }
+        if (!attributes.isRegularFile()) {
+            return NOT_REGULAR_FILE;
+        }
+
+        // disregard project files (heuristic: they're not dependencies)
+        if (!includeProjDir && canonicalPath(absolute, symbolicLink).startsWith(canonicalCurrentDir)) {
+            return IN_PROJECT;
+        }
+
+        // relativize the path if it seems like it could be user-specific, i.e. if it shares a
+        // directory other than the root with the current directory, so that another user with
+        // the same directory structure can run the build
+        Path key = p;
+        if (p.isAbsolute() && absolute.getNameCount() > 0 && currentDir.getNameCount() > 0
+                && absolute.getName(0).equals(currentDir.getName(0))) {
+            key = currentDir.relativize(absolute).normalize();
+        }
+        return new Resolution(Verdict.ACCEPTED, key, absolute);
+    }
+
+    /**
+     * @param absolute an absolute, normalized path to a file that exists
+     */
+    private Path canonicalPath(Path absolute, boolean symbolicLink) {
+        Path parent = absolute.getParent();
+        if (parent == null) {
+            return absolute;
+        }
+        if (symbolicLink) {
+            try {
+                return absolute.toRealPath();
+            } catch (IOException ioe) {
+                return absolute;
+            }
+        }
+        return canonicalDirectory(parent).resolve(absolute.getFileName());
+    }
+
+    private Path canonicalDirectory(Path directory) {
+        Path canonical = canonicalDirectories.get(directory);
+        if (canonical == null) {
+            try {
+                canonical = directory.toRealPath();
+            } catch (IOException ioe) {
+                canonical = directory;
+            }
+            canonicalDirectories.put(directory, canonical);
+        }
+        return canonical;
+    }
+
+    void logStatistics() {
+        int blacklisted = 0;
+        int notRegular = 0;
+        int inProject = 0;
+        for (Resolution resolution : resolutions.values()) {
+            if (resolution == BLACKLISTED) {
+                blacklisted++;
+            } else if (resolution == NOT_REGULAR_FILE) {
+                notRegular++;
+            } else if (resolution == IN_PROJECT) {
+                inProject++;
+            }
+        }
+        DuxCLI.logger.info("resolved {} distinct paths for {} traced paths: {} blacklisted, "
+                        + "{} not regular files, {} in the project directory, across {} directories",
+                resolutions.size(), lookups, blacklisted, notRegular, inProject, canonicalDirectories.size());
+    }
+}
@@ -0,0 +1,48 @@
+package org.dux.cli;
+
+import org.dux.metrics.DuxMetrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each stage of recording a configuration took: running the build, parsing its trace,
+ * hashing, and building, uploading and writing the configuration. Each stage is also recorded
+ * as the histogram pipeline.stage.nanos, so that it is in the metrics report.
+ */
+final class DuxStageTimings {
+    private final Map<String, Long> stages = new LinkedHashMap<>();
+
+    /**
+     * Records that stage ran from start, a {@link System#nanoTime} reading, until now
+     *
+     * @return now, so that the next stage can start where this one ended
+     */
+    long record(String stage, long start) {
+        long now = System.nanoTime();
+        long nanos = now - start;
+        stages.merge(stage, nanos, Long::sum);
+        DuxMetrics.histogram("pipeline." + stage + ".nanos").record(nanos);
+        return now;
+    }
+
+    /**
+     * Logs each stage, in the order they ran, with its share of the total
+     */
+    void log() {
+        long total = 0;
+        for (long nanos : stages.values()) {
+            total += nanos;
+        }
+        StringBuilder table = new StringBuilder("stage timings:");
+        for (Map.Entry<String, Long> stage : stages.entrySet()) {
+            table.append(String.format(Locale.ROOT, "%n  %-16s %10d ms %5.1f%%", stage.getKey(),
+                    TimeUnit.NANOSECONDS.toMillis(stage.getValue()),
+                    total == 0 ? 0.0 : 100.0 * stage.getValue() / total));
+        }
+        table.append(String.format(Locale.ROOT, "%n  %-16s %10d ms", "total", TimeUnit.NANOSECONDS.toMillis(total)));
+        DuxCLI.logger.info(table.toString());
+    }
+}
@@ -1,64 +1,98 @@
 package org.dux.cli;
 
-import java.io.BufferedReader;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+import org.dux.metrics.Histogram;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An object responsible for determining what files should be excluded
  * from a Dux configuration. Contains hardcoded defaults (the user can
- * choose whether to include them) and can read additional options from
+ * choose whether to include them) and can read additional rules from
  * a file. Any directory specified in the blacklist will exclude all
  * children of the directory.
+ * <p>
+ * The rules are compiled once, when the blacklist is created; see
+ * {@link DuxIgnoreMatcher} for their syntax. Rules in the file come after
+ * the defaults, so they can re-include paths the defaults exclude.
  */
 public class DuxTraceBlacklist {
     private static final String BLACKLIST_FILE_NAME = ".duxignore";
     private static final String[] DEFAULT_LIST = {
-            "/proc/meminfo" // system specs
+            "/proc", // pseudo filesystems: reading their files can be slow, or never end,
+            "/sys",  // and their contents describe this machine rather than the build
+            "/dev"
     };
 
-    private Set<Path> paths;
+    /**
+     * One lookup in this many is timed, so that timing does not cost more than the lookups
+     */
+    private static final int TIMING_SAMPLE = 64;
+
+    private final DuxIgnoreMatcher matcher;
+    private final Path currentDir;
+
+    // lookups is also what decides which lookups to time, so it is an exact count
+    private final AtomicLong lookups = new AtomicLong();
+    private final Counter ignored = DuxMetrics.counter("blacklist.ignored");
+    private final Histogram sampledNanos = DuxMetrics.histogram("blacklist.check.nanos");
 
     public DuxTraceBlacklist(boolean includeDefaults) throws IOException {
-        paths = new HashSet<Path>();
+        this(readRules(includeDefaults), Paths.get("").toAbsolutePath().normalize());
+    }
+
+    /**
+     * @param rules the rules, in order, as they would be written in the blacklist file
+     * @param currentDir the absolute, normalized directory that relative paths are resolved against
+     */
+    DuxTraceBlacklist(List<String> rules, Path currentDir) {
+        this.currentDir = currentDir;
+        matcher = DuxIgnoreMatcher.compile(rules, currentDir);
+        DuxMetrics.gauge("blacklist.checks", lookups::get);
+    }
+
+    private static List<String> readRules(boolean includeDefaults) throws IOException {
+        List<String> rules = new ArrayList<>();
 
         if (includeDefaults) {
-            for (String path : DEFAULT_LIST) {
-                paths.add(Paths.get(path).toAbsolutePath().normalize());
-            }
+            rules.addAll(Arrays.asList(DEFAULT_LIST));
         }
 
         Path blacklistPath = Paths.get(BLACKLIST_FILE_NAME);
         DuxCLI.logger.debug("Checking for blacklist file");
-        if (!blacklistPath.toFile().exists()) {
+        if (blacklistPath.toFile().exists()) {
+            rules.addAll(Files.readAllLines(blacklistPath));
+        } else {
             DuxCLI.logger.debug("Blacklist file does not exist");
-            return;
-        }
-
-        try (BufferedReader br = Files.newBufferedReader(blacklistPath)) {
-            while (br.ready()) {
-                String line = br.readLine();
-                paths.add(Paths.get(line).toAbsolutePath().normalize());
-            }
         }
+        return rules;
     }
 
     public boolean contains(Path path) {
-        // check if any parent directory of p is in the blacklist either;
-        // normalize so that if any parent directory is in the blacklist,
-        // this loop will catch it
-        for (Path p = path.toAbsolutePath().normalize(); p != null; p = p.getParent()) {
-            if (paths.contains(p)) {
-                return true;
-            }
-        }
+        // any parent directory of path being in the blacklist excludes it too;
+        // normalize so that the matcher sees each parent directory
+        long count = lookups.incrementAndGet();
+        long start = count % TIMING_SAMPLE == 0 ? System.nanoTime() : 0;
 
-        return false;
+        Path absolute = path.isAbsolute() ? path : currentDir.resolve(path);
+        boolean result = matcher.matches(absolute.normalize());
+
+        if (start != 0) {
+            sampledNanos.recordSince(start);
+        }
+        if (result) {
+            ignored.increment();
+        }
+        return result;
     }
 
     public boolean contains(String path) {
@@ -68,4 +102,9 @@ public class DuxTraceBlacklist {
     public boolean contains(File f) {
         return contains(f.toPath());
     }
+
+    public void logStatistics() {
+        DuxCLI.logger.info("blacklist: checked {} paths, ignored {}, {} ns per check",
+                lookups.get(), ignored.get(), sampledNanos.mean());
+    }
 }
@@ -0,0 +1,106 @@
+package org.dux.cli;
+
+import com.google.common.hash.HashCode;
+import org.dux.backingstore.DuxBackingStore;
+import org.dux.backingstore.DuxTransfer;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uploads the dependencies of a configuration to a backing store.
+ * <p>
+ * Entries that share a hash are only uploaded once, blobs that the store
+ * already holds (checked in one batch) are not uploaded at all, and the
+ * remaining uploads are handed to the store as one batch.
+ */
+public class DuxUploader {
+    private final DuxBackingStore store;
+    private final int threads;
+
+    private final Counter filesUploaded = DuxMetrics.counter("uploader.files_uploaded");
+    private final Counter bytesUploaded = DuxMetrics.counter("uploader.bytes_uploaded");
+    private final Counter filesSkipped = DuxMetrics.counter("uploader.files_skipped");
+
+    /**
+     * @param threads how many uploads to run at once
+     */
+    public DuxUploader(DuxBackingStore store, int threads) {
+        this.store = store;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Uploads every entry whose blob the store does not hold yet.
+     *
+     * @return whether all entries are now stored
+     */
+    public boolean upload(Iterable<DuxConfigurationEntry> entries) {
+        // collapse entries with the same contents into one upload
+        Map<HashCode, DuxConfigurationEntry> unique = new LinkedHashMap<>();
+        int total = 0;
+        for (DuxConfigurationEntry entry : entries) {
+            total++;
+            if (!unique.containsKey(entry.hashCode)) {
+                unique.put(entry.hashCode, entry);
+            }
+        }
+        DuxCLI.logger.debug("{} entries share {} distinct hashes", total, unique.size());
+
+        long start = System.nanoTime();
+        Map<String, Boolean> stored;
+        try {
+            stored = store.containsFiles(keys(unique.values()));
+        } catch (RuntimeException e) {
+            // e.g. a StorageException from a failed metadata batch; uploading a blob the store
+            // already holds only costs time, so upload everything rather than give up
+            DuxCLI.logger.warn("could not check which files are already stored, uploading all of them: {}", e);
+            stored = Collections.emptyMap();
+        }
+        List<DuxConfigurationEntry> toUpload = new ArrayList<>();
+        List<DuxTransfer> transfers = new ArrayList<>();
+        for (DuxConfigurationEntry entry : unique.values()) {
+            String key = entry.hashCode.toString();
+            if (stored.getOrDefault(key, false)) {
+                DuxCLI.logger.debug("{} is already stored as {}, skipping", entry.path, key);
+                filesSkipped.increment();
+            } else {
+                toUpload.add(entry);
+                transfers.add(new DuxTransfer(key, entry.path.toString()));
+            }
+        }
+
+        List<Boolean> results = store.storeFiles(transfers, threads);
+        boolean allSucceeded = true;
+        for (int i = 0; i < toUpload.size(); i++) {
+            DuxConfigurationEntry entry = toUpload.get(i);
+            if (!results.get(i)) {
+                DuxCLI.logger.error("failed to upload {}", entry.path);
+                allSucceeded = false;
+                continue;
+            }
+            filesUploaded.increment();
+            bytesUploaded.add(entry.path.length());
+        }
+
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        DuxCLI.logger.info("uploaded {} files ({} bytes, {} bytes/sec), skipped {} already stored, in {} s",
+                filesUploaded.get(), bytesUploaded.get(), (long) (bytesUploaded.get() / seconds),
+                filesSkipped.get(), String.format("%.2f", seconds));
+        return allSucceeded;
+    }
+
+    private static List<String> keys(Collection<DuxConfigurationEntry> entries) {
+        List<String> keys = new ArrayList<>(entries.size());
+        for (DuxConfigurationEntry entry : entries) {
+            keys.add(entry.hashCode.toString());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,166 @@
+package org.dux.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a dux run: named counters, histograms and gauges, which any part of dux can
+ * register and update, and a JSON report of all of them.
+ * <p>
+ * Names are dotted and lower case, starting with the component that owns the metric, e.g.
+ * {@code parser.lines} or {@code store.fetch.nanos}; latencies end in {@code .nanos}. Looking
+ * a metric up by name takes a map lookup, so components look up their metrics once and keep
+ * them in fields. Updating a metric never takes a lock.
+ */
+public final class DuxMetrics {
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private DuxMetrics() {
+    }
+
+    /**
+     * @return the counter named name, which is created the first time it is asked for
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * @return the histogram named name, which is created the first time it is asked for
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Reports the value of value under name. Gauges are for values that a component already
+     * keeps, or that are derived from other metrics, and are only read when a report is made.
+     * A later gauge with the same name replaces an earlier one.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Writes a report of every metric to file, as a JSON object with the members "run" (the
+     * entries of run, which describe the run), "counters", "gauges" and "histograms". Each
+     * histogram is an object with its count, sum, min, mean, p50, p90, p99 and max.
+     */
+    public static void writeReport(Path file, Map<String, ?> run) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(report(run));
+            }
+            // a dashboard collecting reports never sees half of one
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the report that {@link #writeReport} writes
+     */
+    public static String report(Map<String, ?> run) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"run\": {");
+        String separator = "\n";
+        for (Map.Entry<String, ?> entry : new TreeMap<>(run).entrySet()) {
+            json.append(separator).append("    ");
+            appendString(json, entry.getKey());
+            json.append(": ");
+            if (entry.getValue() instanceof Number || entry.getValue() instanceof Boolean) {
+                json.append(entry.getValue());
+            } else if (entry.getValue() == null) {
+                json.append("null");
+            } else {
+                appendString(json, entry.getValue().toString());
+            }
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"counters\": {");
+
+        separator = "\n";
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            json.append(separator).append("    ");
+            appendString(json, entry.getKey());
+            json.append(": ").append(entry.getValue().get());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"gauges\": {");
+
+        separator = "\n";
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            json.append(separator).append("    ");
+            appendString(json, entry.getKey());
+            json.append(": ").append(entry.getValue().getAsLong());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"histograms\": {");
+
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            json.append(separator).append("    ");
+            appendString(json, entry.getKey());
+            json.append(": {\"count\": ").append(histogram.count())
+                    .append(", \"sum\": ").append(histogram.sum())
+                    .append(", \"min\": ").append(histogram.min())
+                    .append(", \"mean\": ").append(histogram.mean());
+            for (double percentile : PERCENTILES) {
+                json.append(", \"p").append(Math.round(percentile * 100)).append("\": ")
+                        .append(histogram.percentile(percentile));
+            }
+            json.append(", \"max\": ").append(histogram.max()).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
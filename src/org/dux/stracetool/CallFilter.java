@@ -0,0 +1,262 @@
+package org.dux.stracetool;
+
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Decides, while a trace is being parsed, which calls are worth handing on, so that the calls
+ * that are not never become objects. The Linux parser applies each stage as soon as it has
+ * scanned what the stage needs, in this order:
+ * <ol>
+ *   <li>the kind of call, from its name, before its args are even split</li>
+ *   <li>whether the call failed, from its return value</li>
+ *   <li>whether a call of the same kind already succeeded on the same path, which is checked
+ *   against the path as strace printed it, in a set that keeps the characters of every path
+ *   seen so far and nothing else</li>
+ *   <li>the ignore rule, which is only asked about a path the first time it is seen</li>
+ * </ol>
+ * Every call that is dropped is counted under the stage that dropped it, in the metrics
+ * {@code parser.dropped.stage}.
+ * <p>
+ * A filter remembers the paths it has seen, so it can only be used for one trace, by one parser
+ * at a time.
+ */
+public final class CallFilter {
+    public enum Drop {
+        KIND, FAILED, REPEATED, IGNORED;
+
+        private final Counter calls = DuxMetrics.counter("parser.dropped." + name().toLowerCase(Locale.ROOT));
+    }
+
+    public static class Builder {
+        private Set<SyscallKind> kinds = EnumSet.allOf(SyscallKind.class);
+        private boolean dropFailed = false;
+        private boolean dropRepeats = false;
+        private Predicate<String> ignore = null;
+
+        // Only keep the calls of these kinds.
+        public Builder kinds(Set<SyscallKind> kinds) {
+            this.kinds = EnumSet.copyOf(kinds);
+            return this;
+        }
+
+        // Drop calls whose return value is unknown or -1.
+        public Builder dropFailed() {
+            dropFailed = true;
+            return this;
+        }
+
+        // Drop a successful call on a path that a successful call of the same kind
+        // (open or exec, or readlink) was already made on.
+        public Builder dropRepeats() {
+            dropRepeats = true;
+            return this;
+        }
+
+        // Drop calls on paths that ignore holds for. ignore is given each path
+        // as StraceCall.getPath returns it, once per path.
+        public Builder ignore(Predicate<String> ignore) {
+            this.ignore = ignore;
+            return this;
+        }
+
+        public CallFilter build() {
+            return new CallFilter(this);
+        }
+    }
+
+    private final boolean[] kinds = new boolean[SyscallKind.values().length];
+    private final boolean dropFailed;
+    private final boolean dropRepeats;
+    private final Predicate<String> ignore;
+
+    private final PathSet seen = new PathSet();
+    private char[] key = new char[256];
+
+    // counted here and added to the shared counters by flush
+    private final long[] dropped = new long[Drop.values().length];
+    private final long[] flushed = new long[Drop.values().length];
+
+    private CallFilter(Builder builder) {
+        for (SyscallKind kind : builder.kinds) {
+            kinds[kind.ordinal()] = true;
+        }
+        dropFailed = builder.dropFailed;
+        dropRepeats = builder.dropRepeats;
+        ignore = builder.ignore;
+    }
+
+    /**
+     * @return how many calls the stage drop has dropped so far
+     */
+    public long dropped(Drop drop) {
+        return dropped[drop.ordinal()];
+    }
+
+    boolean acceptsKind(SyscallKind kind) {
+        return kinds[kind.ordinal()] || drop(Drop.KIND);
+    }
+
+    boolean acceptsReturn(boolean knownReturn, long returnValue) {
+        return !dropFailed || (knownReturn && returnValue != -1) || drop(Drop.FAILED);
+    }
+
+    boolean dropsRepeats() {
+        return dropRepeats;
+    }
+
+    /**
+     * Returns the buffer that a path is written into for {@link #acceptsFirst}, which is at
+     * least length characters long
+     */
+    char[] keyBuffer(int length) {
+        if (key.length < length) {
+            key = Arrays.copyOf(key, Math.max(length, key.length * 2));
+        }
+        return key;
+    }
+
+    /**
+     * @param length how many characters of {@link #keyBuffer} hold the path of a successful
+     *               call of kind, as strace printed it
+     * @return whether no successful call of the same kind was made on the path before
+     */
+    boolean acceptsFirst(SyscallKind kind, int length) {
+        // readlinks are handled apart from the opens and execs of the same path
+        return seen.add(kind.isReadLink() ? 'L' : 'F', key, 0, length) || drop(Drop.REPEATED);
+    }
+
+    boolean acceptsPath(StraceCall call) {
+        if (ignore == null) {
+            return true;
+        }
+        String path = call.getPath();
+        return path == null || !ignore.test(path) || drop(Drop.IGNORED);
+    }
+
+    /**
+     * Applies every stage to a call that has already been made, for parsers that cannot apply
+     * them to the text of the trace
+     */
+    boolean accepts(StraceCall call) {
+        if (!acceptsKind(call.kind) || !acceptsReturn(call.knownReturn, call.returnValue)) {
+            return false;
+        }
+        if (dropRepeats && call.knownReturn && call.returnValue != -1) {
+            String path = call.getPath();
+            if (path != null) {
+                path.getChars(0, path.length(), keyBuffer(path.length()), 0);
+                if (!acceptsFirst(call.kind, path.length())) {
+                    return false;
+                }
+            }
+        }
+        return acceptsPath(call);
+    }
+
+    private boolean drop(Drop drop) {
+        dropped[drop.ordinal()]++;
+        return false;
+    }
+
+    /**
+     * Adds the calls dropped since the last flush to the shared counters
+     */
+    void flush() {
+        for (Drop drop : Drop.values()) {
+            int i = drop.ordinal();
+            drop.calls.add(dropped[i] - flushed[i]);
+            flushed[i] = dropped[i];
+        }
+    }
+
+    /**
+     * A set of strings, each kept as a tag character and the characters of the string in one
+     * shared array, and found through an open-addressed table of offsets
+     */
+    private static final class PathSet {
+        private char[] chars = new char[64 * 1024];
+        private int used;
+        private int[] starts = new int[1024];
+        private int[] lengths = new int[1024];
+        private int size;
+
+        private int[] table = new int[2048];
+
+        /**
+         * @return whether tag followed by buf from start for length characters was not in the
+         * set, in which case it is now
+         */
+        boolean add(char tag, char[] buf, int start, int length) {
+            int hash = tag;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + buf[i];
+            }
+            int mask = table.length - 1;
+            int slot = mix(hash) & mask;
+            for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+                if (equals(entry - 1, tag, buf, start, length)) {
+                    return false;
+                }
+            }
+
+            if (used + length + 1 > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, used + length + 1));
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            starts[size] = used;
+            lengths[size] = length + 1;
+            chars[used] = tag;
+            System.arraycopy(buf, start, chars, used + 1, length);
+            used += length + 1;
+            table[slot] = ++size;
+            if (2 * size > table.length) {
+                rehash();
+            }
+            return true;
+        }
+
+        private boolean equals(int n, char tag, char[] buf, int start, int length) {
+            if (lengths[n] != length + 1 || chars[starts[n]] != tag) {
+                return false;
+            }
+            int offset = starts[n] + 1;
+            for (int i = 0; i < length; i++) {
+                if (chars[offset + i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int n = 0; n < size; n++) {
+                int hash = 0;
+                for (int i = starts[n]; i < starts[n] + lengths[n]; i++) {
+                    hash = 31 * hash + chars[i];
+                }
+                int slot = mix(hash) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = n + 1;
+            }
+        }
+
+        private static int mix(int hash) {
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -2,87 +2,511 @@ package org.dux.stracetool;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * An object responsible for reading in an strace dump line by line and
  * extracting the calls.
+ *
+ * Lines are scanned by hand in a single pass over a char buffer, rather
+ * than with regular expressions and String.split, since a trace of a large
+ * build easily runs into millions of lines. A parser keeps scratch state
+ * between lines and must not be shared between threads.
+ *
+ * Given a {@link CallFilter}, the parser applies each of its stages as soon
+ * as it has scanned the part of the line the stage needs, so a call that is
+ * dropped costs no allocation at all.
  */
 public class LinuxStraceParser extends StraceParser {
-    // regex corresponds to "call(args) = return"
-    private static final String CALL_REGEX = ".*\\p{Alpha}(\\p{Alnum}|_)*\\s*\\(.*\\)\\s*\\=.*";
-
-    // expects args to be in the form "arg1, arg2, {possible, struct, literal...}, ..., argn)"
-    private String[] parseStraceArgs(String rawArgs) {
-        int length = rawArgs.length();
-
-        // handle the zero-args case right away (not sure it's possible in strace though)
-        // zero-args is whitespace followed by close paren
-        if (rawArgs.matches("\\s*\\)")) {
-            return new String[0];
-        }
-
-        ArrayList<String> args = new ArrayList<>();
-        int argStart = 0;
-        int nestingDepth = 0;
-        for (int i = 0; i < length; i++) {
-            char c = rawArgs.charAt(i);
-            if (c == '{') { // struct literal start
-                nestingDepth++;
-            }
-            if (c == '}') {
-                nestingDepth--;
-            }
-            // ignore commas inside struct literals, otherwise delimit arguments at commas
-            // close paren ==> end of args, so delimit there in all cases
-            if ((c == ',' && nestingDepth == 0) || c == ')') {
-                String arg = rawArgs.substring(argStart, i);
-                args.add(arg.trim());
-                argStart = i + 1;
+    private static final int READ_BUF_SIZE = 64 * 1024;
+    private static final int NAME_CACHE_SIZE = 64;
+    private static final String RESUMED_MARKER = "<...";
+    private static final String UNFINISHED_MARKER = "<unfinished ...>";
+
+    // call names seen so far, so that the same few names are not allocated again on every
+    // line, and their kinds, so that they are not looked up again either
+    private final String[] nameCache = new String[NAME_CACHE_SIZE];
+    private final SyscallKind[] kindCache = new SyscallKind[NAME_CACHE_SIZE];
+
+    // start and end offsets of each argument on the line being scanned
+    private int[] argStarts = new int[8];
+    private int[] argEnds = new int[8];
+
+    // with -f, strace splits a call that is interrupted by another process into an
+    // "<unfinished ...>" line and a later "<... call resumed>" line; keep the first
+    // half of each such call, by pid, until the second half shows up
+    private final Map<Integer, String> unfinished = new HashMap<>();
+
+    // counted here and added to the shared counters once per stream
+    private long lines;
+    private long calls;
+
+    public LinuxStraceParser() {
+    }
+
+    public LinuxStraceParser(@Nullable CallFilter filter) {
+        super(filter);
+    }
+
+    @Override
+    public void parseStream(Reader reader, StraceCallHandler handler)
+            throws IOException {
+        try {
+            scan(reader, handler);
+        } finally {
+            LINES.add(lines);
+            CALLS.add(calls);
+            lines = 0;
+            calls = 0;
+            if (filter != null) {
+                filter.flush();
+            }
+        }
+    }
+
+    private void scan(Reader reader, StraceCallHandler handler) throws IOException {
+        char[] buf = new char[READ_BUF_SIZE];
+        int lineStart = 0;
+        int end = 0;
+        while (true) {
+            if (end == buf.length) {
+                if (lineStart == 0) {
+                    // a single line fills the whole buffer
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                } else {
+                    System.arraycopy(buf, lineStart, buf, 0, end - lineStart);
+                    end -= lineStart;
+                    lineStart = 0;
+                }
+            }
+            int read = reader.read(buf, end, buf.length - end);
+            if (read == -1) {
+                break;
+            }
+            int scanFrom = end;
+            end += read;
+            for (int i = scanFrom; i < end; i++) {
+                if (buf[i] == '\n') {
+                    handleLine(buf, lineStart, i, handler);
+                    lineStart = i + 1;
+                }
             }
         }
+        if (lineStart < end) {
+            handleLine(buf, lineStart, end, handler);
+        }
+    }
 
-        return args.toArray(new String[args.size()]);
+    private void handleLine(char[] buf, int from, int to, StraceCallHandler handler)
+            throws IOException {
+        if (to > from && buf[to - 1] == '\r') {
+            to--;
+        }
+        lines++;
+        StraceCall call = parseLine(buf, from, to);
+        if (call != null) {
+            calls++;
+            handler.handle(call);
+        }
     }
 
     @Override
     protected @Nullable StraceCall parseLine(String line) {
-        Tracer.logger.debug("parsing this line: {}", line);
+        return parseLine(line.toCharArray(), 0, line.length());
+    }
+
+    /**
+     * Parses the line held in buf between from (inclusive) and to (exclusive).
+     * Expects the form "[pid] call(arg1, arg2, {possible, struct, literal...}, ..., argn) = return",
+     * where the pid is either absent, a bare number, or "[pid NNN]". With strace's -y, file
+     * descriptors in the args and the return value are followed by their paths, as in
+     * "3</usr/lib/libc.so.6>".
+     *
+     * @return the call on the line, or null if the line does not hold a complete call
+     */
+    protected @Nullable StraceCall parseLine(char[] buf, int from, int to) {
+        if (Tracer.logger.isDebugEnabled()) {
+            Tracer.logger.debug("parsing this line: {}", new String(buf, from, to - from));
+        }
+
+        // before the call, we may have "[pid ####]" or just a PID
+        int i = from;
+        int pid = -1;
+        if (startsWith(buf, i, to, "[pid")) {
+            i = skipSpaces(buf, i + 4, to);
+            int pidStart = i;
+            while (i < to && isDigit(buf[i])) {
+                i++;
+            }
+            pid = parsePid(buf, pidStart, i);
+            i = skipSpaces(buf, i, to);
+            if (i >= to || buf[i] != ']') {
+                return null;
+            }
+            i++;
+        } else if (i < to && isDigit(buf[i])) {
+            int pidStart = i;
+            while (i < to && isDigit(buf[i])) {
+                i++;
+            }
+            if (i >= to || !isSpace(buf[i])) {
+                return null;
+            }
+            pid = parsePid(buf, pidStart, i);
+        }
+        i = skipSpaces(buf, i, to);
+
+        if (endsWith(buf, from, to, UNFINISHED_MARKER)) {
+            // wait for the rest of this call before parsing it, unless it is of a kind that
+            // is dropped anyway, in which case the resumed half is dropped for want of this one
+            if (filter != null) {
+                int nameEnd = i;
+                while (nameEnd < to && (isAlnum(buf[nameEnd]) || buf[nameEnd] == '_')) {
+                    nameEnd++;
+                }
+                if (nameEnd > i && !filter.acceptsKind(kindCache[internName(buf, i, nameEnd)])) {
+                    return null;
+                }
+            }
+            unfinished.put(pid, new String(buf, i, to - UNFINISHED_MARKER.length() - i));
+            return null;
+        }
+        if (startsWith(buf, i, to, RESUMED_MARKER)) {
+            return parseResumed(buf, i, to, pid);
+        }
+        return parseCall(buf, i, to, pid);
+    }
+
+    /**
+     * Parses the call held in buf from i, after the pid, to to, and attributes it to pid
+     */
+    private @Nullable StraceCall parseCall(char[] buf, int i, int to, int pid) {
+        // the call name is an identifier directly followed by the open paren
+        int nameStart = i;
+        if (i >= to || !isAlpha(buf[i])) {
+            return null;
+        }
+        while (i < to && (isAlnum(buf[i]) || buf[i] == '_')) {
+            i++;
+        }
+        int nameEnd = i;
+        i = skipSpaces(buf, i, to);
+        if (i >= to || buf[i] != '(') {
+            return null;
+        }
+        i++;
+        int slot = internName(buf, nameStart, nameEnd);
+        SyscallKind kind = kindCache[slot];
+        if (filter != null && !filter.acceptsKind(kind)) {
+            return null;
+        }
+
+        // split the args on top-level commas; commas inside quoted strings, struct
+        // literals, arrays and nested parens are part of an argument
+        int argCount = 0;
+        int argStart = i;
+        int depth = 0;
+        boolean closed = false;
+        for (; i < to; i++) {
+            char c = buf[i];
+            if (c == '"') {
+                i = skipString(buf, i, to);
+                if (i >= to) {
+                    return null;
+                }
+            } else if (c == '<' && i > argStart && (isDigit(buf[i - 1]) || buf[i - 1] == 'D')) {
+                // with -y, strace follows an fd (or AT_FDCWD) with its path in angle brackets
+                i = skipDecoration(buf, i, to);
+                if (i >= to) {
+                    return null;
+                }
+            } else if (c == '{' || c == '[' || c == '(') {
+                depth++;
+            } else if (c == '}' || c == ']' || (c == ')' && depth > 0)) {
+                depth--;
+            } else if ((c == ',' && depth == 0) || c == ')') {
+                if (c == ',' || argCount > 0 || skipSpaces(buf, argStart, i) < i) {
+                    argCount = recordArg(buf, argCount, argStart, i);
+                }
+                argStart = i + 1;
+                if (c == ')') {
+                    closed = true;
+                    i++;
+                    break;
+                }
+            }
+        }
+        if (!closed) {
+            return null;
+        }
+
+        // then the return value, which may be followed by an errno and its description
+        i = skipSpaces(buf, i, to);
+        if (i >= to || buf[i] != '=') {
+            return null;
+        }
+        i = skipSpaces(buf, i + 1, to);
+        int returnStart = i;
+        while (i < to && !isSpace(buf[i]) && buf[i] != '<') {
+            i++;
+        }
+        int returnEnd = i;
+        int returnPathStart = -1;
+        int returnPathEnd = -1;
+        if (i < to && buf[i] == '<') {
+            // with -y, a returned fd is followed by the path it refers to
+            int close = skipDecoration(buf, i, to);
+            if (close < to) {
+                returnPathStart = i + 1;
+                returnPathEnd = close;
+            }
+        }
+
+        boolean knownReturn = !(returnEnd - returnStart == 1 && buf[returnStart] == '?');
+        long returnValue = knownReturn ? parseReturn(buf, returnStart, returnEnd) : 0;
+        if (returnValue < Integer.MIN_VALUE || returnValue > Integer.MAX_VALUE) {
+            // e.g. an address returned by mmap; nothing we know how to interpret
+            knownReturn = false;
+            returnValue = 0;
+        }
+        if (filter != null) {
+            if (!filter.acceptsReturn(knownReturn, returnValue)) {
+                return null;
+            }
+            if (filter.dropsRepeats() && knownReturn && returnValue != -1) {
+                int keyLength = pathKey(buf, kind, argCount, returnPathStart, returnPathEnd);
+                if (keyLength >= 0 && !filter.acceptsFirst(kind, keyLength)) {
+                    return null;
+                }
+            }
+        }
+
+        String call = nameCache[slot];
+        String[] args = new String[argCount];
+        for (int a = 0; a < argCount; a++) {
+            args[a] = new String(buf, argStarts[a], argEnds[a] - argStarts[a]);
+        }
+        String returnPath = knownReturn && returnPathStart >= 0
+                ? new String(buf, returnPathStart, returnPathEnd - returnPathStart) : null;
+        StraceCall parsed = StraceCall.parsed(pid, call, kind, args, knownReturn, (int) returnValue, returnPath);
+        return filter == null || filter.acceptsPath(parsed) ? parsed : null;
+    }
+
+    /**
+     * Writes the path of a call into the filter's key buffer as strace printed it, still
+     * escaped, so that the same path printed the same way always gives the same key. Mirrors
+     * {@link StraceCall#getPath}.
+     *
+     * @return the length of the key, or -1 if the path cannot be told from the text
+     */
+    private int pathKey(char[] buf, SyscallKind kind, int argCount, int returnPathStart, int returnPathEnd) {
+        if (kind.fdArg >= 0) {
+            if (argCount <= kind.fdArg) {
+                return -1;
+            }
+            int open = decorationStart(buf, argStarts[kind.fdArg], argEnds[kind.fdArg]);
+            return open < 0 ? -1 : copyKey(buf, open + 1, argEnds[kind.fdArg] - 1, 0);
+        }
+        if (kind.pathArg < 0) {
+            return returnPathStart < 0 ? -1 : copyKey(buf, returnPathStart, returnPathEnd, 0);
+        }
+        if (argCount <= kind.pathArg) {
+            return -1;
+        }
+        int start = argStarts[kind.pathArg];
+        int end = argEnds[kind.pathArg];
+        if (end - start < 2 || buf[start] != '"') {
+            return -1;
+        }
+        int close = skipString(buf, start, end);
+        if (close >= end) {
+            return -1;
+        }
+        start++;
+        if (kind.dirfdArg < 0 || (close > start && buf[start] == '/')) {
+            return copyKey(buf, start, close, 0);
+        }
+        int dirStart = argStarts[kind.dirfdArg];
+        int dirEnd = argEnds[kind.dirfdArg];
+        int open = decorationStart(buf, dirStart, dirEnd);
+        if (open < 0) {
+            // a bare AT_FDCWD means the current directory, as for the non-*at calls
+            return regionEquals(buf, dirStart, dirEnd, "AT_FDCWD") && close > start
+                    ? copyKey(buf, start, close, 0) : -1;
+        }
+        int length = copyKey(buf, open + 1, dirEnd - 1, 0);
+        if (close == start) {
+            // AT_EMPTY_PATH: the call operates on the directory fd itself
+            return length;
+        }
+        if (length == 0 || filter.keyBuffer(length + 1)[length - 1] != '/') {
+            filter.keyBuffer(length + 1)[length++] = '/';
+        }
+        return copyKey(buf, start, close, length);
+    }
+
+    // returns the offset of the '<' that starts the -y decoration of the fd in buf from start to end, or -1
+    private static int decorationStart(char[] buf, int start, int end) {
+        if (end - start < 2 || buf[end - 1] != '>') {
+            return -1;
+        }
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '<') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int copyKey(char[] buf, int start, int end, int offset) {
+        int length = end - start;
+        System.arraycopy(buf, start, filter.keyBuffer(offset + length), offset, length);
+        return offset + length;
+    }
 
-        if (!line.matches(CALL_REGEX)) {
+    /**
+     * Stitches "<... call resumed> rest" back onto the unfinished first half of the
+     * call made by the same pid, and parses the result.
+     */
+    private @Nullable StraceCall parseResumed(char[] buf, int from, int to, int pid) {
+        String head = unfinished.remove(pid);
+        int close = from;
+        while (close < to && buf[close] != '>') {
+            close++;
+        }
+        if (head == null || close >= to) {
             return null;
         }
+        char[] joined = new char[head.length() + to - close - 1];
+        head.getChars(0, head.length(), joined, 0);
+        System.arraycopy(buf, close + 1, joined, head.length(), to - close - 1);
+        return parseCall(joined, 0, joined.length, pid);
+    }
+
+    private int recordArg(char[] buf, int argCount, int start, int end) {
+        if (argCount == argStarts.length) {
+            argStarts = Arrays.copyOf(argStarts, argCount * 2);
+            argEnds = Arrays.copyOf(argEnds, argCount * 2);
+        }
+        // trim surrounding whitespace
+        start = skipSpaces(buf, start, end);
+        while (end > start && isSpace(buf[end - 1])) {
+            end--;
+        }
+        argStarts[argCount] = start;
+        argEnds[argCount] = end;
+        return argCount + 1;
+    }
+
+    /**
+     * @return the slot of nameCache and kindCache that holds the name in buf from start to end,
+     * which the next call may reuse
+     */
+    private int internName(char[] buf, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = hash & (NAME_CACHE_SIZE - 1);
+        String cached = nameCache[slot];
+        if (cached == null || !regionEquals(buf, start, end, cached)) {
+            nameCache[slot] = new String(buf, start, end - start);
+            kindCache[slot] = SyscallKind.of(nameCache[slot]);
+        }
+        return slot;
+    }
+
+    // returns the index of the closing quote of the string opened at start, or to if it is never closed
+    private static int skipString(char[] buf, int start, int to) {
+        for (int i = start + 1; i < to; i++) {
+            if (buf[i] == '\\') {
+                i++;
+            } else if (buf[i] == '"') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // returns the index of the '>' that closes the -y decoration opened at start, or to if there
+    // is none; strace escapes any '>' in the path itself
+    private static int skipDecoration(char[] buf, int start, int to) {
+        for (int i = start + 1; i < to; i++) {
+            if (buf[i] == '>') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static long parseReturn(char[] buf, int start, int end) {
+        boolean negative = start < end && buf[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            return Long.MAX_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            if (!isDigit(buf[i])) {
+                return Long.MAX_VALUE;
+            }
+            value = value * 10 + (buf[i] - '0');
+        }
+        return negative ? -value : value;
+    }
 
-        // before the call, we may have "[PID ####]" or just a PID
-        // so get rid of it
-        String sanitized = line;
-        if (line.startsWith("[pid")) {
-            int close = line.indexOf(']');
-            sanitized = line.substring(close + 1);
+    private static int parsePid(char[] buf, int start, int end) {
+        int pid = 0;
+        for (int i = start; i < end && i - start < 9; i++) {
+            pid = pid * 10 + (buf[i] - '0');
         }
-        if (line.matches("\\d+.*")) {
-            sanitized = sanitized.split("\\s+", 2)[1];
+        return pid;
+    }
+
+    private static int skipSpaces(char[] buf, int i, int to) {
+        while (i < to && isSpace(buf[i])) {
+            i++;
         }
+        return i;
+    }
 
-        // split on rightmost equals sign (before return value)
-        int signIdx = sanitized.lastIndexOf('=');
-        String lhs = sanitized.substring(0, signIdx).trim();
-        String rhs = sanitized.substring(signIdx + 1).trim();
+    private static boolean startsWith(char[] buf, int from, int to, String prefix) {
+        return to - from >= prefix.length() && regionEquals(buf, from, from + prefix.length(), prefix);
+    }
 
-        // split LHS on open parenthesis: the call is to the left, the args are to the right
-        String[] callTokens = lhs.split("\\(");
-        assert (callTokens.length == 2);
-        String call = callTokens[0].trim();
-        String rawArgs = callTokens[1].trim(); // leave close paren
-        String[] args = parseStraceArgs(rawArgs);
+    private static boolean endsWith(char[] buf, int from, int to, String suffix) {
+        return to - from >= suffix.length() && regionEquals(buf, to - suffix.length(), to, suffix);
+    }
 
-        // there may be an errno after the return value; split on whitespace to ignore
-        String rawReturn = rhs.split("\\s")[0];
-        if (rawReturn.equals("?")) {
-            return StraceCall.newLinuxInstanceNoReturn(call, args);
+    private static boolean regionEquals(char[] buf, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buf[i] != s.charAt(i - start)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
 
-        int returnValue = Integer.parseInt(rawReturn);
-        return StraceCall.newLinuxInstanceWithReturn(call, args, returnValue);
+    private static boolean isAlnum(char c) {
+        return isAlpha(c) || isDigit(c);
     }
 }
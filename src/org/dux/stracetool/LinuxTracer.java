@@ -1,16 +1,45 @@
 package org.dux.stracetool;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class LinuxTracer extends Tracer {
-    private static final String[] FILTER_ARGS = {
-            "-e", "trace=open,execve,readlink,fstat,stat,lstat"
-    };
+    // The calls through which a build reads files. Which of them exist depends on the
+    // architecture (aarch64 has no open, for example), and strace rejects the names it doesn't
+    // know unless they are marked with a '?'. The stat family is left out: builds make those
+    // calls more often than any other, and a stat does not read the file, so it is not recorded.
+    private static final String FILTER = "trace=openat,execve,readlinkat"
+            + ",?open,?openat2,?execveat,?readlink";
+
+    // for versions of strace older than 4.17, which don't understand '?'
+    private static final String LEGACY_FILTER = "trace=open,execve,readlink";
+
+    // with -y, strace prints the path of every fd, which resolves paths relative to the fds that
+    // the *at calls take; -s keeps it from cutting readlink's targets off at 32 characters
+    private static final String[] DECODE_ARGS = {"-y", "-s", "4096"};
+
+    private static final long PROBE_TIMEOUT_SECONDS = 10;
+
+    private static String filter;
+    private static Boolean seccompBpf;
 
     private List<String> args;
+    private String fileName;
+    private boolean streaming;
+    private String keepTrace;
 
     public LinuxTracer(Builder builder) {
         args = new ArrayList<>();
@@ -21,19 +50,230 @@ public class LinuxTracer extends Tracer {
             args.add("-f");
         }
         if (builder.isFilterCalls()) {
-            args.addAll(Arrays.asList(FILTER_ARGS));
+            args.addAll(Arrays.asList(DECODE_ARGS));
+            // with a seccomp-bpf filter, strace doesn't stop the build for the calls it isn't
+            // tracing; it only works together with -f
+            if (builder.isTraceSubprocesses() && supportsSeccompBpf()) {
+                args.add("--seccomp-bpf");
+            }
+            args.add("-e");
+            args.add(filter());
         }
         args.addAll(builder.getTraceCommand());
+        fileName = builder.getFileName();
+        streaming = builder.isStreaming();
+        keepTrace = builder.getKeepTrace();
+    }
+
+    private static synchronized String filter() {
+        if (filter == null) {
+            filter = probe("-e", FILTER) ? FILTER : LEGACY_FILTER;
+            Tracer.logger.debug("tracing calls with filter {}", filter);
+        }
+        return filter;
+    }
+
+    private static synchronized boolean supportsSeccompBpf() {
+        if (seccompBpf == null) {
+            // strace 5.3 and later, on kernels with seccomp-bpf
+            seccompBpf = probe("-f", "--seccomp-bpf", "-e", filter());
+            Tracer.logger.debug("strace {} seccomp-bpf", seccompBpf ? "supports" : "does not support");
+        }
+        return seccompBpf;
+    }
+
+    /**
+     * @return whether strace accepts args, by tracing true with them
+     */
+    private static boolean probe(String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("strace");
+        command.add("-o");
+        command.add("/dev/null");
+        command.addAll(Arrays.asList(args));
+        command.add("true");
+        try {
+            Process proc = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null"))).start();
+            if (!proc.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                proc.destroyForcibly();
+                return false;
+            }
+            return proc.exitValue() == 0;
+        } catch (IOException ioe) {
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     public void trace() throws IOException, InterruptedException {
+        // a FIFO left behind by an aborted streaming trace would block strace forever
+        new File(fileName).delete();
+        runTracedProcess();
+    }
+
+    public void trace(CallFilter filter, StraceCallHandler handler) throws IOException, InterruptedException {
+        if (!streaming) {
+            trace();
+            StraceParser.parse(fileName, filter, handler);
+            return;
+        }
+
+        // strace writes into a named pipe instead of a regular file, and the
+        // calls are parsed out of it while the build is still running
+        File fifo = new File(fileName);
+        fifo.delete();
+        Tracer.logger.debug("creating named pipe {}", fileName);
+        Process mkfifo = new ProcessBuilder("mkfifo", fileName).start();
+        if (mkfifo.waitFor() != 0) {
+            throw new IOException("could not create named pipe " + fileName);
+        }
+
+        TraceStreamReader reader = new TraceStreamReader(fifo, keepTrace, filter, handler);
+        reader.start();
+        try {
+            runTracedProcess();
+        } finally {
+            // If strace never opened the pipe (e.g. it failed to start), the reader is
+            // still blocked in open(). Opening the pipe read-write never blocks on Linux,
+            // and closing it again gives the reader the end-of-stream it is waiting for.
+            new RandomAccessFile(fifo, "rw").close();
+            Tracer.logger.debug("build finished, draining the rest of the trace");
+            reader.join();
+            fifo.delete();
+        }
+
+        reader.rethrowFailure();
+    }
+
+    private void runTracedProcess() throws IOException, InterruptedException {
         Tracer.logger.debug("beginning a trace, getting runtime");
         Runtime rt = Runtime.getRuntime();
         Tracer.logger.debug("runtime acquired, executing program");
-        Process proc = rt.exec((String[]) args.toArray(new String[args.size()]));
+        Process proc = rt.exec(args.toArray(new String[args.size()]));
         Tracer.StreamGobbler outputGobbler = new Tracer.StreamGobbler(proc.getInputStream());
         Tracer.logger.debug("waiting for build to terminate");
+        long start = System.nanoTime();
         outputGobbler.start();
         proc.waitFor();
+        BUILD_NANOS.recordSince(start);
+    }
+
+    /**
+     * Parses calls out of the named pipe that strace writes to, for as long as
+     * strace keeps it open. If handling a call fails, the rest of the pipe is
+     * still drained (and discarded) so that strace, and with it the build,
+     * never blocks on a full pipe.
+     */
+    private static class TraceStreamReader extends Thread {
+        private static final int DRAIN_BUF_SIZE = 64 * 1024;
+
+        private final File fifo;
+        private final String keepTrace;
+        private final CallFilter filter;
+        private final StraceCallHandler handler;
+        private volatile Exception failure = null;
+
+        TraceStreamReader(File fifo, String keepTrace, CallFilter filter, StraceCallHandler handler) {
+            this.fifo = fifo;
+            this.keepTrace = keepTrace;
+            this.filter = filter;
+            this.handler = handler;
+        }
+
+        private Reader open() throws IOException {
+            if (keepTrace == null) {
+                return new FileReader(fifo);
+            }
+            InputStream in = new FileInputStream(fifo);
+            try {
+                return new InputStreamReader(new CopyingInputStream(in, new FileOutputStream(keepTrace)));
+            } catch (IOException ioe) {
+                in.close();
+                throw ioe;
+            }
+        }
+
+        public void run() {
+            try (Reader fr = open()) {
+                try {
+                    new LinuxStraceParser(filter).parseStream(fr, this::handleUntilFailure);
+                } catch (RuntimeException e) {
+                    Tracer.logger.error("failed to parse the trace, discarding the rest of it: {}", e);
+                    failure = e;
+                    char[] discard = new char[DRAIN_BUF_SIZE];
+                    while (fr.read(discard) != -1) {
+                        // keep strace from blocking on a full pipe
+                    }
+                }
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+
+        private void handleUntilFailure(StraceCall call) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                handler.handle(call);
+            } catch (IOException | RuntimeException e) {
+                Tracer.logger.error("failed to handle a traced call, discarding the rest of the trace: {}", e);
+                failure = e;
+            }
+        }
+
+        void rethrowFailure() throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+
+    /**
+     * Copies every byte read from the stream to out, so that a trace read from
+     * a pipe can be kept exactly as strace wrote it
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        private final OutputStream out;
+
+        CopyingInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                out.write(b, off, n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            // skipped bytes would be missing from the copy, so they are read instead
+            int read = n <= 0 ? 0 : read(new byte[(int) Math.min(n, 8192)]);
+            return Math.max(read, 0);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                out.close();
+            }
+        }
     }
 }
@@ -1,16 +1,34 @@
 package org.dux.stracetool;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * Object that stores information parsed from strace calls
+ * <p>
+ * The kind of the call is looked up from its name once, when the call is made. Calls read
+ * back from a {@link StraceCallBatch} only keep what dux uses: their path and link target are
+ * kept already resolved, and their args are empty.
  */
 public class StraceCall {
+    private static final String[] NO_ARGS = new String[0];
+
     public final String call;
+    public final SyscallKind kind;
+    public final int pid;                // -1 if the trace did not say
     public final String[] args;
     public final boolean knownReturn;
     public final int returnValue;        // for strace
     public final String returnMessage;   // for procmon
+    public final @Nullable String returnPath; // for strace -y, the path of a returned fd
+
+    // for calls read back from a batch, the results of getPath and getLinkTarget
+    private final boolean resolved;
+    private final @Nullable String path;
+    private final @Nullable String linkTarget;
 
     /**
      * Factory method to return a new StraceCall object populated from the given
@@ -22,7 +40,23 @@ public class StraceCall {
      * @return A new StraceCall object constructed from the given parameters.
      */
     public static StraceCall newLinuxInstanceWithReturn(String call, String[] args, int returnValue) {
-        return new StraceCall(call, args, returnValue);
+        return new StraceCall(-1, call, SyscallKind.of(call), copy(args), true, returnValue, null);
+    }
+
+    /**
+     * Same as {@code StraceCall.newLinuxInstanceWithReturn} except that the
+     * return value is a file descriptor, which strace -y followed with the path
+     * it refers to.
+     * @param call The system call.
+     * @param args The arguments to the system call.
+     * @param returnValue The return value of the system call.
+     * @param returnPath The path of the returned file descriptor, as strace
+     *                   printed it, or null if strace did not print one.
+     * @return A new StraceCall object constructed from the given parameters.
+     */
+    public static StraceCall newLinuxInstanceWithReturn(String call, String[] args, int returnValue,
+                                                        @Nullable String returnPath) {
+        return new StraceCall(-1, call, SyscallKind.of(call), copy(args), true, returnValue, returnPath);
     }
 
     /**
@@ -37,7 +71,7 @@ public class StraceCall {
      * @return A new StraceCall object constructed from the given parameters.
      */
     public static StraceCall newLinuxInstanceNoReturn(String call, String args[]) {
-        return new StraceCall(call, args);
+        return new StraceCall(-1, call, SyscallKind.of(call), copy(args), false, 0, null);
     }
 
     /**
@@ -50,63 +84,292 @@ public class StraceCall {
      * @return A new StraceCall object constructed from the given parameters.
      */
     public static StraceCall newWindowsInstance(String call, String[] args, String returnMessage) {
-        return new StraceCall(call, args, returnMessage);
+        return new StraceCall(call, copy(args), returnMessage);
     }
 
-    private StraceCall(String call, String[] args, int returnValue) {
-        this.call = call;
-        this.args = Arrays.<String>copyOf(args, args.length);
-        this.knownReturn = true;
-        this.returnValue = returnValue;
-        this.returnMessage = null;
+    /**
+     * For the parser, which already knows the kind of the call and hands over
+     * an args array that nothing else refers to, so it is not copied
+     */
+    static StraceCall parsed(int pid, String call, SyscallKind kind, String[] args, boolean knownReturn,
+                             int returnValue, @Nullable String returnPath) {
+        return new StraceCall(pid, call, kind, args, knownReturn, returnValue, returnPath);
+    }
+
+    /**
+     * For {@link StraceCallBatch}, whose calls keep their path and link target
+     * rather than their args
+     */
+    static StraceCall resolved(int pid, String call, SyscallKind kind, boolean knownReturn, int returnValue,
+                               @Nullable String path, @Nullable String linkTarget) {
+        return new StraceCall(pid, call, kind, knownReturn, returnValue, path, linkTarget);
     }
 
-    private StraceCall(String call, String[] args) {
+    private static String[] copy(String[] args) {
+        return Arrays.<String>copyOf(args, args.length);
+    }
+
+    private StraceCall(int pid, String call, SyscallKind kind, String[] args, boolean knownReturn,
+                       int returnValue, @Nullable String returnPath) {
         this.call = call;
-        this.args = Arrays.<String>copyOf(args, args.length);
-        this.knownReturn = false;
-        this.returnValue = 0;
+        this.kind = kind;
+        this.pid = pid;
+        this.args = args;
+        this.knownReturn = knownReturn;
+        this.returnValue = knownReturn ? returnValue : 0;
         this.returnMessage = null;
+        this.returnPath = knownReturn ? returnPath : null;
+        this.resolved = false;
+        this.path = null;
+        this.linkTarget = null;
     }
 
     private StraceCall(String call, String[] args, String returnMessage) {
         this.call = call;
-        this.args = Arrays.<String>copyOf(args, args.length);
+        this.kind = SyscallKind.of(call);
+        this.pid = -1;
+        this.args = args;
         this.knownReturn = true;
         this.returnMessage = returnMessage;
+        this.returnPath = null;
         // put a best approximation of return message into return value
         if (returnMessage.equalsIgnoreCase("SUCCESS")) {
             this.returnValue = 0;
         } else {
             this.returnValue = -1;
         }
+        this.resolved = false;
+        this.path = null;
+        this.linkTarget = null;
+    }
+
+    private StraceCall(int pid, String call, SyscallKind kind, boolean knownReturn, int returnValue,
+                       @Nullable String path, @Nullable String linkTarget) {
+        this.call = call;
+        this.kind = kind;
+        this.pid = pid;
+        this.args = NO_ARGS;
+        this.knownReturn = knownReturn;
+        this.returnValue = returnValue;
+        this.returnMessage = null;
+        this.returnPath = null;
+        this.resolved = true;
+        this.path = path;
+        this.linkTarget = linkTarget;
     }
 
     @Override
     public String toString() {
         return "StraceCall{"
+                + (pid >= 0 ? "pid=" + pid + ", " : "")
                 + "call=\"" + call + "\", "
                 + "args=\"" + Arrays.toString(args) + "\", "
                 + "knownReturn=" + knownReturn + ", "
                 + "returnValue=" + returnValue + ", "
-                + "returnMessage=\"" + returnMessage + "\"}";
+                + "returnMessage=\"" + returnMessage + "\""
+                + (returnPath != null ? ", returnPath=\"" + returnPath + "\"" : "")
+                + (resolved ? ", path=\"" + path + "\", linkTarget=\"" + linkTarget + "\"" : "") + "}";
     }
 
     public boolean isOpen() {
-        return this.call.equals("open") || this.call.equals("CreateFile");
+        return kind.isOpen();
     }
 
     public boolean isExec() {
-        return this.call.matches("exec.*") || this.call.equals("Process Create");
+        return kind.isExec();
     }
 
     public boolean isReadLink() {
-        return this.call.equals("readlink") || this.call.equals("CreateFile");
+        return kind.isReadLink();
     }
 
     public boolean isStat() {
-        return this.call.matches(".*stat") || this.call.equals("CreateFile");
+        return kind.isStat();
     }
 
     // TODO: how to deal with readlink? Will be two separate createfile calls...
+
+    /**
+     * Returns the path that this call opened, executed, stat'ed or read the
+     * link at. A relative path given to one of the *at calls is resolved
+     * against its directory file descriptor when strace -y printed that
+     * descriptor's path; relative to the current directory, a relative path
+     * is returned as it was given, just as for open.
+     * @return The path, or null if it cannot be told from the trace, e.g.
+     *         because it is relative to a directory file descriptor whose path
+     *         strace did not print.
+     */
+    public @Nullable String getPath() {
+        if (resolved) {
+            return path;
+        }
+        if (returnMessage != null) {
+            // Process Monitor: the path, in the quotes added by the parser
+            return args.length > 0 ? stripQuotes(args[0]) : null;
+        }
+        if (kind.fdArg >= 0) {
+            return args.length > kind.fdArg ? descriptorPath(args[kind.fdArg]) : null;
+        }
+        if (kind.pathArg < 0) {
+            // the path of a returned fd is all there is for calls we don't know
+            return returnPath != null ? unescape(returnPath) : null;
+        }
+        if (args.length <= kind.pathArg) {
+            return null;
+        }
+        String given = unquote(args[kind.pathArg]);
+        return kind.dirfdArg >= 0 ? resolveAt(args[kind.dirfdArg], given) : given;
+    }
+
+    /**
+     * Returns the target of the symbolic link read by a readlink or
+     * readlinkat call. A relative target is resolved against the directory
+     * that holds the link.
+     * @return The target, or null if this is not a readlink call or the
+     *         target cannot be told from the trace.
+     */
+    public @Nullable String getLinkTarget() {
+        if (resolved) {
+            return linkTarget;
+        }
+        int targetArg = kind.linkTargetArg;
+        if (targetArg < 0 || returnMessage != null) {
+            return null;
+        }
+        if (args.length <= targetArg || !knownReturn || returnValue < 0) {
+            return null;
+        }
+        String target = unquote(args[targetArg]);
+        if (target == null || target.isEmpty()) {
+            return null;
+        }
+        // strace prints the buffer up to -s bytes; the return value is the real length
+        if (target.length() > returnValue) {
+            target = target.substring(0, returnValue);
+        }
+        if (target.startsWith("/")) {
+            return target;
+        }
+        String link = getPath();
+        if (link == null) {
+            return null;
+        }
+        int slash = link.lastIndexOf('/');
+        return slash < 0 ? target : link.substring(0, slash + 1) + target;
+    }
+
+    /**
+     * Resolves path, as given to an *at call, against the directory file
+     * descriptor dirfd.
+     */
+    private static @Nullable String resolveAt(String dirfd, @Nullable String path) {
+        if (path == null) {
+            return null;
+        }
+        if (path.startsWith("/")) {
+            return path;
+        }
+        String directory = descriptorPath(dirfd);
+        if (path.isEmpty()) {
+            // AT_EMPTY_PATH: the call operates on dirfd itself
+            return directory;
+        }
+        if (directory == null) {
+            // a bare AT_FDCWD means the current directory, as for the non-*at calls
+            return dirfd.equals("AT_FDCWD") ? path : null;
+        }
+        return directory.endsWith("/") ? directory + path : directory + "/" + path;
+    }
+
+    /**
+     * @return the path that strace -y printed after a file descriptor, as in
+     *         "3</usr/lib>", or null if it printed none
+     */
+    private static @Nullable String descriptorPath(String fd) {
+        int open = fd.indexOf('<');
+        if (open < 0 || !fd.endsWith(">")) {
+            return null;
+        }
+        return unescape(fd.substring(open + 1, fd.length() - 1));
+    }
+
+    private static String stripQuotes(String arg) {
+        return arg.length() >= 2 ? arg.substring(1, arg.length() - 1) : arg;
+    }
+
+    /**
+     * @return the contents of a string argument as strace printed it, e.g.
+     *         "\"/tmp/a\\303\\251\"..." (quoted, escaped and perhaps
+     *         truncated), or null if the argument is not a string
+     */
+    private static @Nullable String unquote(String arg) {
+        if (arg.length() < 2 || arg.charAt(0) != '"') {
+            return null;
+        }
+        int close = 1;
+        while (close < arg.length() && arg.charAt(close) != '"') {
+            close += arg.charAt(close) == '\\' ? 2 : 1;
+        }
+        if (close >= arg.length()) {
+            return null;
+        }
+        return unescape(arg.substring(1, close));
+    }
+
+    /**
+     * Undoes strace's escaping: C escapes, and octal or hex escapes for bytes
+     * that are not printable ASCII, which are decoded as UTF-8
+     */
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                if (c < 0x80) {
+                    bytes.write(c);
+                } else {
+                    byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                    bytes.write(encoded, 0, encoded.length);
+                }
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+                case 'n': bytes.write('\n'); break;
+                case 't': bytes.write('\t'); break;
+                case 'r': bytes.write('\r'); break;
+                case 'v': bytes.write(0x0b); break;
+                case 'f': bytes.write('\f'); break;
+                case 'x': {
+                    int value = 0;
+                    int end = Math.min(i + 3, s.length());
+                    int j = i + 1;
+                    for (; j < end && Character.digit(s.charAt(j), 16) >= 0; j++) {
+                        value = value * 16 + Character.digit(s.charAt(j), 16);
+                    }
+                    bytes.write(value);
+                    i = j - 1;
+                    break;
+                }
+                default:
+                    if (e >= '0' && e <= '7') {
+                        int value = 0;
+                        int end = Math.min(i + 3, s.length());
+                        int j = i;
+                        for (; j < end && s.charAt(j) >= '0' && s.charAt(j) <= '7'; j++) {
+                            value = value * 8 + (s.charAt(j) - '0');
+                        }
+                        bytes.write(value);
+                        i = j - 1;
+                    } else {
+                        // \\, \" and anything else stand for themselves
+                        bytes.write(e);
+                    }
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,256 @@
+package org.dux.stracetool;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Parsed calls, kept in columns rather than as one object per call: for each call its pid, name,
+ * return value and whether it is known, and its path and link target. A trace names the same
+ * paths over and over, so each distinct path is stored once, as UTF-8 bytes in a shared arena,
+ * and calls refer to it by number. A call costs 19 bytes, plus its path the first time it is
+ * seen, where a StraceCall with its args costs hundreds. The saving is in what is kept: each
+ * call is still parsed into a StraceCall first, so building a batch allocates a little more per
+ * call than building a list does.
+ * <p>
+ * Only what dux reads from a call is kept. A call read back with {@link #get} has its path and
+ * link target, as {@link StraceCall#getPath} and {@link StraceCall#getLinkTarget} returned them
+ * when it was added, but no args.
+ * <p>
+ * Not thread safe.
+ */
+public final class StraceCallBatch {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte KNOWN_RETURN = 1;
+
+    private int size;
+    private int[] pids = new int[INITIAL_CAPACITY];
+    private short[] names = new short[INITIAL_CAPACITY];
+    private int[] returnValues = new int[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private int[] paths = new int[INITIAL_CAPACITY];
+    private int[] linkTargets = new int[INITIAL_CAPACITY];
+
+    // the distinct call names, which a trace has a few dozen of
+    private final List<String> callNames = new ArrayList<>();
+    private final List<SyscallKind> callKinds = new ArrayList<>();
+    private final Map<String, Short> nameIndexes = new HashMap<>();
+
+    // the distinct paths: string n is arena[starts[n]] up to arena[starts[n + 1]], and is found
+    // by its contents through an open-addressed table of string numbers plus one
+    private byte[] arena = new byte[64 * 1024];
+    private int[] starts = new int[INITIAL_CAPACITY + 1];
+    private int stringCount;
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+    /**
+     * Adds call, working out its path and link target now
+     */
+    public void add(StraceCall call) {
+        if (size == pids.length) {
+            int capacity = size * 2;
+            pids = Arrays.copyOf(pids, capacity);
+            names = Arrays.copyOf(names, capacity);
+            returnValues = Arrays.copyOf(returnValues, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            paths = Arrays.copyOf(paths, capacity);
+            linkTargets = Arrays.copyOf(linkTargets, capacity);
+        }
+        pids[size] = call.pid;
+        names[size] = nameIndex(call.call, call.kind);
+        returnValues[size] = call.returnValue;
+        flags[size] = call.knownReturn ? KNOWN_RETURN : 0;
+        paths[size] = intern(call.getPath());
+        linkTargets[size] = call.isReadLink() ? intern(call.getLinkTarget()) : -1;
+        size++;
+    }
+
+    private short nameIndex(String name, SyscallKind kind) {
+        Short index = nameIndexes.get(name);
+        if (index == null) {
+            if (callNames.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("too many distinct call names in one batch");
+            }
+            index = (short) callNames.size();
+            callNames.add(name);
+            callKinds.add(kind);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of the string s in the arena, adding it if it is not there yet, or -1
+     * if s is null
+     */
+    private int intern(@Nullable String s) {
+        if (s == null) {
+            return -1;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int hash = Arrays.hashCode(bytes);
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                int n = append(bytes);
+                table[slot] = n + 1;
+                if (2 * stringCount > table.length) {
+                    rehash();
+                }
+                return n;
+            }
+            if (stringEquals(entry - 1, bytes)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private int append(byte[] bytes) {
+        int start = starts[stringCount];
+        if (start + bytes.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, start + bytes.length));
+        }
+        System.arraycopy(bytes, 0, arena, start, bytes.length);
+        if (stringCount + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[stringCount + 1] = start + bytes.length;
+        return stringCount++;
+    }
+
+    private boolean stringEquals(int n, byte[] bytes) {
+        int start = starts[n];
+        if (starts[n + 1] - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (arena[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int n = 0; n < stringCount; n++) {
+            int hash = 1;
+            for (int i = starts[n]; i < starts[n + 1]; i++) {
+                hash = 31 * hash + arena[i];
+            }
+            int slot = mix(hash) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = n + 1;
+        }
+    }
+
+    // spreads the bits of a hash, since paths that differ only at the end hash close together
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private @Nullable String string(int n) {
+        return n < 0 ? null : new String(arena, starts[n], starts[n + 1] - starts[n], StandardCharsets.UTF_8);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("call " + i + " of " + size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct paths and link targets
+     */
+    public int distinctPaths() {
+        return stringCount;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the batch takes up
+     */
+    public long sizeInBytes() {
+        // pid, return value, path and link target, name, and flags
+        return (long) pids.length * (4 * 4 + 2 + 1) + arena.length + 4L * (starts.length + table.length);
+    }
+
+    public int pid(int i) {
+        checkIndex(i);
+        return pids[i];
+    }
+
+    public String callName(int i) {
+        checkIndex(i);
+        return callNames.get(names[i]);
+    }
+
+    public SyscallKind kind(int i) {
+        checkIndex(i);
+        return callKinds.get(names[i]);
+    }
+
+    public boolean knownReturn(int i) {
+        checkIndex(i);
+        return (flags[i] & KNOWN_RETURN) != 0;
+    }
+
+    public int returnValue(int i) {
+        checkIndex(i);
+        return returnValues[i];
+    }
+
+    public @Nullable String path(int i) {
+        checkIndex(i);
+        return string(paths[i]);
+    }
+
+    public @Nullable String linkTarget(int i) {
+        checkIndex(i);
+        return string(linkTargets[i]);
+    }
+
+    /**
+     * @return call i, as a new StraceCall without args
+     */
+    public StraceCall get(int i) {
+        checkIndex(i);
+        return StraceCall.resolved(pids[i], callNames.get(names[i]), callKinds.get(names[i]),
+                (flags[i] & KNOWN_RETURN) != 0, returnValues[i], string(paths[i]), string(linkTargets[i]));
+    }
+
+    /**
+     * @return a read-only view of the calls as a list, which makes each StraceCall when it is
+     * asked for
+     */
+    public List<StraceCall> asList() {
+        return new CallList();
+    }
+
+    private final class CallList extends AbstractList<StraceCall> implements RandomAccess {
+        @Override
+        public StraceCall get(int index) {
+            return StraceCallBatch.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.dux.stracetool;
+
+import java.io.IOException;
+
+/**
+ * Receives calls from a {@link StraceParser} one at a time, as they are
+ * parsed, instead of waiting for the whole trace to be collected into a list.
+ */
+public interface StraceCallHandler {
+    /**
+     * Handles a single parsed call.
+     * @param call The call that was just parsed.
+     * @throws IOException if handling the call fails.
+     */
+    void handle(StraceCall call) throws IOException;
+}
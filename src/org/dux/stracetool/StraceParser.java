@@ -1,51 +1,147 @@
 package org.dux.stracetool;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dux.metrics.Counter;
+import org.dux.metrics.DuxMetrics;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
 public abstract class StraceParser {
+    // lines read, and the calls parsed out of them, by every parser
+    static final Counter LINES = DuxMetrics.counter("parser.lines");
+    static final Counter CALLS = DuxMetrics.counter("parser.calls");
+
+    // decides which calls are handed on, or null to hand on every call
+    protected final @Nullable CallFilter filter;
+
+    protected StraceParser() {
+        this(null);
+    }
+
+    protected StraceParser(@Nullable CallFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Parses the strace-like log file at path.
+     * @return every call, with its args, return message and return path
+     */
     public static List<StraceCall> parse(String path)
             throws IOException, FileNotFoundException {
+        return forCurrentOs().parseFile(path);
+    }
+
+    /**
+     * Parses the strace-like log file at path into a batch, which takes a
+     * fraction of the memory that a list of calls would, but keeps only each
+     * call's pid, name, return value, path and link target.
+     */
+    public static StraceCallBatch parseBatch(String path)
+            throws IOException, FileNotFoundException {
+        return forCurrentOs().parseBatchFile(path);
+    }
+
+    /**
+     * Parses the strace-like log file at path, handing each call to handler
+     * as soon as it is parsed rather than collecting them into a list.
+     */
+    public static void parse(String path, StraceCallHandler handler)
+            throws IOException, FileNotFoundException {
+        parse(path, null, handler);
+    }
+
+    /**
+     * Same as {@code StraceParser.parse(path, handler)}, except that only
+     * the calls that filter accepts are handed to handler.
+     */
+    public static void parse(String path, @Nullable CallFilter filter, StraceCallHandler handler)
+            throws IOException, FileNotFoundException {
+        try (FileReader fr = new FileReader(path)) {
+            forCurrentOs(filter).parseStream(fr, handler);
+        }
+    }
+
+    /**
+     * Returns a parser for the log format of the current OS' tracing tool.
+     */
+    public static StraceParser forCurrentOs() {
+        return forCurrentOs(null);
+    }
+
+    /**
+     * Returns a parser for the log format of the current OS' tracing tool,
+     * which only hands on the calls that filter accepts.
+     */
+    public static StraceParser forCurrentOs(@Nullable CallFilter filter) {
         String os = System.getProperty("os.name");
-        StraceParser sp;
         if (os.startsWith("Linux")) {
-            sp = new LinuxStraceParser();
+            return new LinuxStraceParser(filter);
         } else if (os.startsWith("Windows")) {
-            sp = new WindowsStraceParser();
+            return new WindowsStraceParser(filter);
         } else {
             throw new UnsupportedOperationException("Unsupported OS");
         }
-        return sp.parseFile(path);
     }
 
     protected List<StraceCall> parseFile(String path)
             throws IOException, FileNotFoundException {
-        ArrayList<StraceCall> calls = new ArrayList<>();
+        List<StraceCall> calls = new ArrayList<>();
+
+        Tracer.logger.debug("creating a file reader");
+
+        try (FileReader fr = new FileReader(path)) {
+            parseStream(fr, calls::add);
+        }
+
+        return calls;
+    }
+
+    protected StraceCallBatch parseBatchFile(String path)
+            throws IOException, FileNotFoundException {
+        StraceCallBatch calls = new StraceCallBatch();
+
+        Tracer.logger.debug("creating a file reader");
 
-        Tracer.logger.debug("creating a file reader and a buffered reader");
+        try (FileReader fr = new FileReader(path)) {
+            parseStream(fr, calls::add);
+        }
 
-        try (FileReader fr = new FileReader(path);
-             BufferedReader br = new BufferedReader(fr)) {
-            while (br.ready()) {
-                Tracer.logger.debug("buffer is ready");
-                String line = br.readLine();
+        return calls;
+    }
+
+    /**
+     * Parses every line that can be read from reader until end of stream,
+     * handing each call to handler. Unlike parsing a finished file, this
+     * blocks while waiting for more input, so it can be used to parse a
+     * pipe that a running tracer is still writing to.
+     */
+    public void parseStream(Reader reader, StraceCallHandler handler)
+            throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        try {
+            while ((line = br.readLine()) != null) {
                 Tracer.logger.debug("read this line: {}", line);
+                LINES.increment();
                 StraceCall call = parseLine(line);
-                if (call == null) {
+                if (call == null || (filter != null && !filter.accepts(call))) {
                     continue;
                 }
 
-                calls.add(call);
+                CALLS.increment();
+                handler.handle(call);
+            }
+        } finally {
+            if (filter != null) {
+                filter.flush();
             }
         }
-
-        return calls;
     }
 
     protected abstract @Nullable StraceCall parseLine(String line);
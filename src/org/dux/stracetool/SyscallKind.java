@@ -0,0 +1,98 @@
+package org.dux.stracetool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The system calls (and Process Monitor operations) that dux knows how to read a path out of,
+ * with where in their arguments the path is. A call's kind is looked up once, when it is
+ * parsed, so that asking what a call does is a field read rather than a string comparison.
+ */
+public enum SyscallKind {
+    // name, what the call does, and the indexes of its args: the directory fd that a relative
+    // path is resolved against, the path, an fd whose path is the path, and a link's target
+    OPEN("open", Flags.OPENS, -1, 0, -1, -1),
+    OPENAT("openat", Flags.OPENS, 0, 1, -1, -1),
+    OPENAT2("openat2", Flags.OPENS, 0, 1, -1, -1),
+    EXECVE("execve", Flags.EXECS, -1, 0, -1, -1),
+    EXECVEAT("execveat", Flags.EXECS, 0, 1, -1, -1),
+    STAT("stat", Flags.STATS, -1, 0, -1, -1),
+    LSTAT("lstat", Flags.STATS, -1, 0, -1, -1),
+    STAT64("stat64", Flags.STATS, -1, 0, -1, -1),
+    LSTAT64("lstat64", Flags.STATS, -1, 0, -1, -1),
+    FSTAT("fstat", Flags.STATS, -1, -1, 0, -1),
+    FSTAT64("fstat64", Flags.STATS, -1, -1, 0, -1),
+    NEWFSTATAT("newfstatat", Flags.STATS, 0, 1, -1, -1),
+    FSTATAT64("fstatat64", Flags.STATS, 0, 1, -1, -1),
+    STATX("statx", Flags.STATS, 0, 1, -1, -1),
+    READLINK("readlink", Flags.READS_LINK, -1, 0, -1, 1),
+    READLINKAT("readlinkat", Flags.READS_LINK, 0, 1, -1, 2),
+    // Process Monitor; files, symbolic links and hard links are all read through CreateFile
+    CREATE_FILE("CreateFile", Flags.OPENS | Flags.STATS | Flags.READS_LINK, -1, 0, -1, -1),
+    PROCESS_CREATE("Process Create", Flags.EXECS, -1, 0, -1, -1),
+    // every other call; its path, if any, is the path of the fd it returned
+    OTHER(null, 0, -1, -1, -1, -1);
+
+    private static final class Flags {
+        static final int OPENS = 1;
+        static final int EXECS = 2;
+        static final int STATS = 4;
+        static final int READS_LINK = 8;
+    }
+
+    private static final Map<String, SyscallKind> BY_NAME = new HashMap<>();
+    static {
+        for (SyscallKind kind : values()) {
+            if (kind.callName != null) {
+                BY_NAME.put(kind.callName, kind);
+            }
+        }
+    }
+
+    private final String callName;
+    private final int flags;
+    final int dirfdArg;
+    final int pathArg;
+    final int fdArg;
+    final int linkTargetArg;
+
+    SyscallKind(String callName, int flags, int dirfdArg, int pathArg, int fdArg, int linkTargetArg) {
+        this.callName = callName;
+        this.flags = flags;
+        this.dirfdArg = dirfdArg;
+        this.pathArg = pathArg;
+        this.fdArg = fdArg;
+        this.linkTargetArg = linkTargetArg;
+    }
+
+    /**
+     * @return the kind of the call named name, or OTHER if it is not one dux reads paths from
+     */
+    public static SyscallKind of(String name) {
+        SyscallKind kind = BY_NAME.get(name);
+        return kind != null ? kind : OTHER;
+    }
+
+    /**
+     * @return the name of the call, as strace or Process Monitor prints it, or null for OTHER
+     */
+    public String callName() {
+        return callName;
+    }
+
+    public boolean isOpen() {
+        return (flags & Flags.OPENS) != 0;
+    }
+
+    public boolean isExec() {
+        return (flags & Flags.EXECS) != 0;
+    }
+
+    public boolean isStat() {
+        return (flags & Flags.STATS) != 0;
+    }
+
+    public boolean isReadLink() {
+        return (flags & Flags.READS_LINK) != 0;
+    }
+}
@@ -3,6 +3,8 @@ package org.dux.stracetool;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 
+import org.dux.metrics.DuxMetrics;
+import org.dux.metrics.Histogram;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
@@ -32,6 +34,9 @@ public abstract class Tracer {
         logger.setLevel(Level.INFO);
     }
 
+    // how long the traced command ran for, tracing included
+    static final Histogram BUILD_NANOS = DuxMetrics.histogram("tracer.build.nanos");
+
     protected Tracer() {
         // hide this constructor
     }
@@ -44,6 +49,8 @@ public abstract class Tracer {
         // Optional parameters
         private boolean traceSubprocesses = false;
         private boolean filterCalls = false;
+        private boolean streaming = false;
+        private String keepTrace = null;
 
         // The output file will be a CSV regardless of what you name it.
         public Builder(String fileName, List<String> traceCommand) {
@@ -74,13 +81,31 @@ public abstract class Tracer {
             return this;
         }
 
-        // For now, can only filter with the strace flag
-        // "-e trace=open,execve,readlink,fstat,stat,lstat"
+        // For now, can only filter with strace: only the calls that open, execute, stat or
+        // read the link at a path are traced, including their *at forms, and fds are decoded
+        // into paths with -y. Together with traceSubprocesses, strace uses --seccomp-bpf if it
+        // can, so that the other calls don't stop the traced process at all.
         public Builder filterCalls() {
             filterCalls = true;
             return this;
         }
 
+        // Have the tracer write into a pipe that is parsed while the traced
+        // program runs, instead of a file that is parsed after it exits.
+        // Only supported on Linux; ignored elsewhere.
+        public Builder streaming() {
+            streaming = true;
+            return this;
+        }
+
+        // In streaming mode, also copy the trace to keepTrace as it is parsed, since
+        // the pipe it goes through keeps none of it. Otherwise the trace is already
+        // in the output file, which the caller can keep or delete.
+        public Builder keepTrace(String keepTrace) {
+            this.keepTrace = keepTrace;
+            return this;
+        }
+
         public Tracer build() {
             String os = System.getProperty("os.name");
             if (os.startsWith("Windows")) {
@@ -107,6 +132,14 @@ public abstract class Tracer {
         public boolean isFilterCalls() {
             return filterCalls;
         }
+
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        public String getKeepTrace() {
+            return keepTrace;
+        }
     }
 
     // https://stackoverflow.com/questions/1732455/redirect-process-output-to-stdout
@@ -132,4 +165,22 @@ public abstract class Tracer {
     }
 
     public abstract void trace() throws IOException, InterruptedException;
+
+    /**
+     * Traces the executable and hands every parsed call to handler. In
+     * streaming mode, calls are handed over while the traced program is still
+     * running; otherwise they are parsed from the output file once it exits.
+     */
+    public void trace(StraceCallHandler handler) throws IOException, InterruptedException {
+        trace(null, handler);
+    }
+
+    /**
+     * Same as {@code trace(handler)}, except that only the calls that filter
+     * accepts are handed to handler, or every call if filter is null.
+     * Filtering happens as the trace is parsed, so the calls that are dropped
+     * are never made into objects.
+     */
+    public abstract void trace(CallFilter filter, StraceCallHandler handler)
+            throws IOException, InterruptedException;
 }
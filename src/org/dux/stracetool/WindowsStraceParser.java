@@ -3,6 +3,13 @@ package org.dux.stracetool;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class WindowsStraceParser extends StraceParser {
+    public WindowsStraceParser() {
+    }
+
+    // Process Monitor's lines are split into objects before they are filtered
+    public WindowsStraceParser(@Nullable CallFilter filter) {
+        super(filter);
+    }
 
     // e.g. "1:41:00.4573350 PM","Explorer.EXE","7572","RegQueryKey","HKCU\Software\Classes","SUCCESS","2422"
     @Override
@@ -37,6 +37,7 @@ public class WindowsTracer extends Tracer {
         proc1.waitFor();
 
         // run actual command to trace
+        long start = System.nanoTime();
         Process proc = rt.exec((String[]) args.toArray(new String[args.size()]));
         Tracer.StreamGobbler outputGobbler = new Tracer.StreamGobbler(proc.getInputStream());
         Tracer.logger.debug("waiting for build to terminate");
@@ -44,6 +45,7 @@ public class WindowsTracer extends Tracer {
         // TODO Replace with Java 9/10 Process.pid() once those become more mainstream
         int myPid = getPid(proc);
         proc.waitFor();
+        BUILD_NANOS.recordSince(start);
 
         // turn off Process Monitor
         Process proc2 = rt.exec("cmd /c src\\org\\dux\\stracetool\\end_trace.bat");
@@ -94,6 +96,15 @@ public class WindowsTracer extends Tracer {
         }
     }
 
+    /**
+     * Process Monitor can only save its log once tracing has stopped, so
+     * streaming is not possible here: trace first, then parse the saved file.
+     */
+    public void trace(CallFilter filter, StraceCallHandler handler) throws IOException, InterruptedException {
+        trace();
+        StraceParser.parse(fileName, filter, handler);
+    }
+
     /**
      * Returns the given ProcMon line split on "," or null if it is a line to
      * skip (e.g. if it is a call from the Process Monitor executable itself,
@@ -0,0 +1,199 @@
+package org.dux.backingstore;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.dux.cli.DuxCLI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Large transfers of {@link GoogleBackingStore}, against {@link InMemoryStorageRpc}: ranged
+ * downloads that resume after a failure, directly and through a {@link CachingBackingStore},
+ * batched fetches through the cache, and composite uploads that leave no parts behind.
+ */
+public class GoogleBackingStoreTest {
+    private static final String BUCKET = "dux-test";
+    private static final String KEY = "0123456789abcdef";
+
+    private InMemoryStorageRpc server;
+    private GoogleBackingStore store;
+    private Path directory;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        DuxCLI.logger = (Logger) LoggerFactory.getLogger(DuxCLI.class);
+        DuxCLI.logger.setLevel(Level.WARN);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new InMemoryStorageRpc();
+        store = new GoogleBackingStore(server.storage(), BUCKET, BlobCodec.IDENTITY,
+                BlobCodec.DEFAULT_LEVEL, 4);
+        directory = Files.createTempDirectory("dux-gcs-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void rangedDownloadResumesAfterAFailure() throws IOException {
+        // three ranges, of which only the first can be read at first
+        byte[] content = randomBytes(2 * RangedDownload.RANGE_SIZE + 12345);
+        server.put(BUCKET, KEY, content);
+        Path target = directory.resolve("blob");
+
+        server.failReadsFrom(RangedDownload.RANGE_SIZE);
+        assertFalse(store.fetchFile(KEY, target.toString()));
+        assertFalse(Files.exists(target));
+
+        server.failReadsFrom(Long.MAX_VALUE);
+        long before = server.bytesRead();
+        assertTrue(store.fetchFile(KEY, target.toString()));
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(content.length - RangedDownload.RANGE_SIZE, server.bytesRead() - before);
+        assertEquals(Collections.singletonList(target), list(directory));
+    }
+
+    @Test
+    public void cachedDownloadResumesAfterAFailure() throws IOException {
+        byte[] content = randomBytes(2 * RangedDownload.RANGE_SIZE + 12345);
+        server.put(BUCKET, KEY, content);
+        Path cacheDir = directory.resolve("cache");
+        CachingBackingStore cache = new CachingBackingStore(store, cacheDir.toString(), Long.MAX_VALUE);
+        Path target = directory.resolve("blob");
+
+        server.failReadsFrom(RangedDownload.RANGE_SIZE);
+        assertFalse(cache.fetchFile(KEY, target.toString()));
+
+        // the next fetch of the key downloads into the same file, so it picks up where this one stopped
+        server.failReadsFrom(Long.MAX_VALUE);
+        long before = server.bytesRead();
+        assertTrue(cache.fetchFile(KEY, target.toString()));
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(content.length - RangedDownload.RANGE_SIZE, server.bytesRead() - before);
+        assertTrue(cache.isCached(KEY));
+        assertEquals(Collections.emptyList(), list(cacheDir.resolve(".tmp")));
+
+        // and a hit does not go to the server at all
+        Path again = directory.resolve("again");
+        before = server.bytesRead();
+        assertTrue(cache.fetchFile(KEY, again.toString()));
+        assertArrayEquals(content, Files.readAllBytes(again));
+        assertEquals(before, server.bytesRead());
+    }
+
+    @Test
+    public void cachedBatchLooksUpTheMissesTogether() throws IOException {
+        Path cacheDir = directory.resolve("cache");
+        CachingBackingStore cache = new CachingBackingStore(store, cacheDir.toString(), Long.MAX_VALUE);
+        List<String> keys = Arrays.asList("aaaa", "bbbb", "cccc");
+        for (String key : keys) {
+            server.put(BUCKET, key, key.getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(cache.fetchFile("aaaa", directory.resolve("first").toString()));
+
+        // a hit, two misses (one of them asked for twice), and a key the server does not have
+        List<DuxTransfer> transfers = Arrays.asList(
+                new DuxTransfer("aaaa", directory.resolve("a").toString()),
+                new DuxTransfer("bbbb", directory.resolve("b").toString()),
+                new DuxTransfer("cccc", directory.resolve("c").toString()),
+                new DuxTransfer("bbbb", directory.resolve("b2").toString()),
+                new DuxTransfer("dddd", directory.resolve("d").toString()));
+        long gets = server.gets();
+        long batches = server.batches();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        assertEquals(Arrays.asList(true, true, true, true, false), cache.fetchFiles(transfers, 4));
+        assertEquals(gets, server.gets());
+        assertEquals(batches + 1, server.batches());
+        for (DuxTransfer t : transfers.subList(0, 4)) {
+            assertArrayEquals(t.key.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(Paths.get(t.path)));
+        }
+        assertFalse(Files.exists(directory.resolve("d")));
+        for (String key : keys) {
+            assertTrue(cache.isCached(key));
+        }
+        assertEquals(Collections.emptyList(), list(cacheDir.resolve(".tmp")));
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(misses + 3, cache.getMisses());
+    }
+
+    @Test
+    public void compositeUploadLeavesOnlyTheBlob() throws IOException {
+        Path file = largeFile();
+        assertTrue(store.storeFile(KEY, file.toString()));
+        assertEquals(Collections.singleton(KEY), server.names());
+        assertArrayEquals(Files.readAllBytes(file), server.content(KEY));
+        assertEquals(CompositeUpload.partCount(Files.size(file)), server.uploadsFinished());
+        assertEquals(1, server.composes());
+    }
+
+    @Test
+    public void failedComposeDeletesTheParts() throws IOException {
+        Path file = largeFile();
+        server.failCompose(true);
+        assertFalse(store.storeFile(KEY, file.toString()));
+        assertEquals(Collections.emptySet(), server.names());
+    }
+
+    @Test
+    public void failedPartDeletesTheOtherParts() throws IOException {
+        Path file = largeFile();
+        // the last part never uploads, however often it is retried
+        int last = CompositeUpload.partCount(Files.size(file)) - 1;
+        server.failUploads(name -> name.endsWith("-" + last));
+        assertFalse(store.storeFile(KEY, file.toString()));
+        assertEquals(Collections.emptySet(), server.names());
+        assertEquals(0, server.composes());
+    }
+
+    /**
+     * @return a file just large enough to be uploaded in parts
+     */
+    private Path largeFile() throws IOException {
+        Path file = directory.resolve("large");
+        Files.write(file, randomBytes(64 * 1024 * 1024 + 1));
+        return file;
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.sorted().collect(Collectors.toList());
+        }
+    }
+}
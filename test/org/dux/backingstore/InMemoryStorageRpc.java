@@ -0,0 +1,447 @@
+package org.dux.backingstore;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.BucketAccessControl;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.api.services.storage.model.Policy;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.api.services.storage.model.TestIamPermissionsResponse;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.ServiceRpc;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.StorageRpcFactory;
+import com.google.cloud.storage.spi.v1.RpcBatch;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * A stand-in for the Google Cloud Storage server, for tests: one bucket held in memory, behind
+ * the real client library, so that {@link GoogleBackingStore} runs unchanged against it.
+ * <p>
+ * It implements what the backing store uses (metadata lookups, alone and in batches, ranged
+ * reads, resumable uploads, compose and deletes), and can be told to fail some of them.
+ */
+class InMemoryStorageRpc implements StorageRpc {
+    private final Map<String, StorageObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong uploadsFinished = new AtomicLong();
+    private final AtomicLong composes = new AtomicLong();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    // reads of any byte at or after this offset fail
+    private volatile long failReadsFrom = Long.MAX_VALUE;
+    // uploads of blobs with a name that matches this fail when they finish
+    private volatile Predicate<String> failUploads = name -> false;
+    private volatile boolean failCompose;
+
+    /**
+     * @return a client that talks to this stand-in, and does not retry failed requests itself
+     */
+    Storage storage() {
+        return StorageOptions.newBuilder()
+                .setProjectId("dux-test")
+                .setCredentials(NoCredentials.getInstance())
+                .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                .setServiceRpcFactory(new StorageRpcFactory() {
+                    @Override
+                    public ServiceRpc create(StorageOptions options) {
+                        return InMemoryStorageRpc.this;
+                    }
+                })
+                .build()
+                .getService();
+    }
+
+    void put(String bucket, String name, byte[] content) {
+        StorageObject object = new StorageObject().setBucket(bucket).setName(name);
+        finish(object, content);
+    }
+
+    byte[] content(String name) {
+        return contents.get(name);
+    }
+
+    /**
+     * @return the names of every blob, sorted
+     */
+    Set<String> names() {
+        return new TreeSet<>(objects.keySet());
+    }
+
+    long bytesRead() {
+        return bytesRead.get();
+    }
+
+    long uploadsFinished() {
+        return uploadsFinished.get();
+    }
+
+    long composes() {
+        return composes.get();
+    }
+
+    /**
+     * @return how many metadata lookups were made on their own, outside a batch
+     */
+    long gets() {
+        return gets.get();
+    }
+
+    /**
+     * @return how many batches were submitted
+     */
+    long batches() {
+        return batches.get();
+    }
+
+    void failReadsFrom(long offset) {
+        failReadsFrom = offset;
+    }
+
+    void failUploads(Predicate<String> names) {
+        failUploads = names;
+    }
+
+    void failCompose(boolean fail) {
+        failCompose = fail;
+    }
+
+    private StorageObject finish(StorageObject object, byte[] content) {
+        StorageObject stored = object.clone()
+                .setGeneration(generations.incrementAndGet())
+                .setSize(BigInteger.valueOf(content.length));
+        contents.put(object.getName(), content);
+        objects.put(object.getName(), stored);
+        return stored.clone();
+    }
+
+    private static StorageException notFound(String name) {
+        return new StorageException(404, name + " not found");
+    }
+
+    @Override
+    public StorageObject create(StorageObject object, InputStream content, Map<Option, ?> options) {
+        try {
+            return finish(object, ByteStreams.toByteArray(content));
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public StorageObject get(StorageObject object, Map<Option, ?> options) {
+        gets.incrementAndGet();
+        return lookup(object);
+    }
+
+    private StorageObject lookup(StorageObject object) {
+        StorageObject stored = objects.get(object.getName());
+        return stored == null ? null : stored.clone();
+    }
+
+    @Override
+    public boolean delete(StorageObject object, Map<Option, ?> options) {
+        contents.remove(object.getName());
+        return objects.remove(object.getName()) != null;
+    }
+
+    @Override
+    public RpcBatch createBatch() {
+        return new RpcBatch() {
+            private final List<Runnable> requests = new ArrayList<>();
+
+            @Override
+            public void addDelete(StorageObject object, Callback<Void> callback, Map<Option, ?> options) {
+                requests.add(() -> {
+                    if (delete(object, options)) {
+                        callback.onSuccess(null);
+                    } else {
+                        callback.onFailure(error(404, object.getName() + " not found"));
+                    }
+                });
+            }
+
+            @Override
+            public void addPatch(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void addGet(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+                requests.add(() -> {
+                    StorageObject stored = lookup(object);
+                    if (stored != null) {
+                        callback.onSuccess(stored);
+                    } else {
+                        callback.onFailure(error(404, object.getName() + " not found"));
+                    }
+                });
+            }
+
+            @Override
+            public void submit() {
+                batches.incrementAndGet();
+                for (Runnable request : requests) {
+                    request.run();
+                }
+                requests.clear();
+            }
+        };
+    }
+
+    private static GoogleJsonError error(int code, String message) {
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(code);
+        error.setMessage(message);
+        return error;
+    }
+
+    @Override
+    public byte[] load(StorageObject object, Map<Option, ?> options) {
+        byte[] content = contents.get(object.getName());
+        if (content == null) {
+            throw notFound(object.getName());
+        }
+        bytesRead.addAndGet(content.length);
+        return content;
+    }
+
+    @Override
+    public Tuple<String, byte[]> read(StorageObject object, Map<Option, ?> options, long position, int bytes) {
+        StorageObject stored = objects.get(object.getName());
+        if (stored == null) {
+            throw notFound(object.getName());
+        }
+        Object generation = options.get(Option.IF_GENERATION_MATCH);
+        if (generation != null && !stored.getGeneration().equals(((Number) generation).longValue())) {
+            throw new StorageException(412, object.getName() + " is no longer generation " + generation);
+        }
+        byte[] content = contents.get(object.getName());
+        int start = (int) Math.min(position, content.length);
+        int end = Math.min(content.length, start + bytes);
+        if (end > failReadsFrom) {
+            throw new StorageException(503, "injected failure reading " + object.getName() + " at " + start);
+        }
+        bytesRead.addAndGet(end - start);
+        return Tuple.of(stored.getGeneration().toString(), Arrays.copyOfRange(content, start, end));
+    }
+
+    @Override
+    public String open(StorageObject object, Map<Option, ?> options) {
+        String id = UUID.randomUUID().toString();
+        uploads.put(id, new Upload(object));
+        return id;
+    }
+
+    @Override
+    public void write(String uploadId, byte[] toWrite, int toWriteOffset, long destOffset, int length, boolean last) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new StorageException(404, "no upload " + uploadId);
+        }
+        synchronized (upload) {
+            if (destOffset != upload.content.size()) {
+                throw new StorageException(400, "upload " + uploadId + " is at " + upload.content.size()
+                        + ", not " + destOffset);
+            }
+            upload.content.write(toWrite, toWriteOffset, length);
+            if (!last) {
+                return;
+            }
+            uploads.remove(uploadId);
+            if (failUploads.test(upload.object.getName())) {
+                throw new StorageException(503, "injected failure uploading " + upload.object.getName());
+            }
+            finish(upload.object, upload.content.toByteArray());
+            uploadsFinished.incrementAndGet();
+        }
+    }
+
+    @Override
+    public StorageObject compose(Iterable<StorageObject> sources, StorageObject target, Map<Option, ?> options) {
+        if (failCompose) {
+            throw new StorageException(503, "injected failure composing " + target.getName());
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (StorageObject source : sources) {
+            byte[] part = contents.get(source.getName());
+            if (part == null) {
+                throw notFound(source.getName());
+            }
+            content.write(part, 0, part.length);
+        }
+        composes.incrementAndGet();
+        return finish(target, content.toByteArray());
+    }
+
+    private static final class Upload {
+        final StorageObject object;
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        Upload(StorageObject object) {
+            this.object = object;
+        }
+    }
+
+    // the rest of the API is not used by dux
+
+    @Override
+    public Bucket create(Bucket bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Tuple<String, Iterable<Bucket>> list(Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Tuple<String, Iterable<StorageObject>> list(String bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Bucket get(Bucket bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Bucket patch(Bucket bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public StorageObject patch(StorageObject object, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean delete(Bucket bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RewriteResponse openRewrite(RewriteRequest request) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RewriteResponse continueRewrite(RewriteResponse previous) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public BucketAccessControl getAcl(String bucket, String entity, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean deleteAcl(String bucket, String entity, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public BucketAccessControl createAcl(BucketAccessControl acl, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public BucketAccessControl patchAcl(BucketAccessControl acl, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<BucketAccessControl> listAcls(String bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl getDefaultAcl(String bucket, String entity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean deleteDefaultAcl(String bucket, String entity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl createDefaultAcl(ObjectAccessControl acl) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl patchDefaultAcl(ObjectAccessControl acl) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<ObjectAccessControl> listDefaultAcls(String bucket) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl getAcl(String bucket, String object, Long generation, String entity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean deleteAcl(String bucket, String object, Long generation, String entity) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl createAcl(ObjectAccessControl acl) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectAccessControl patchAcl(ObjectAccessControl acl) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<ObjectAccessControl> listAcls(String bucket, String object, Long generation) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Policy getIamPolicy(String bucket, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Policy setIamPolicy(String bucket, Policy policy, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TestIamPermissionsResponse testIamPermissions(String bucket, List<String> permissions, Map<Option, ?> options) {
+        throw new UnsupportedOperationException();
+    }
+}
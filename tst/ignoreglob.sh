@@ -0,0 +1,53 @@
+#!/bin/bash
+
+# this tests the glob and negation rules of .duxignore, by replaying a trace
+# (see sdktrace.sh) with different rules. it needs no cloud credentials.
+
+set -eu
+
+cd shell
+
+. ../sdktrace.sh
+trap "rm -rf $WORK; rm -f .duxignore" EXIT
+
+DUX="../../bazel-bin/dux -s local --storeroot $STORE"
+
+# replays the trace with the .duxignore rules given as arguments, and prints
+# the recorded paths under the SDK, relative to it
+recorded() {
+    printf '%s\n' "$@" > .duxignore
+    rm -f $WORK/build.dux
+    $DUX --replay $WORK/trace.log -f $WORK/build.dux > /dev/null
+    $DUX -f $WORK/build.dux --queryprefix $SDK -v error | sed "s|^[0-9a-f]* $SDK/||" | tr '\n' ' '
+}
+
+expect() {
+    local expected="$1"
+    shift
+    local actual=`recorded "$@"`
+    if [ "$actual" != "$expected" ]; then
+        echo "with .duxignore rules: $*"
+        echo "expected: $expected"
+        echo "recorded: $actual"
+        exit 1
+    fi
+}
+
+# a glob without a slash matches at any depth
+expect "bin/cc lib/libm.so lib/libsdk.so " '*.h'
+
+# a negated glob re-includes what an earlier rule excluded, at any depth with **
+expect "bin/cc include/keep.h include/sub/keep.h lib/libm.so lib/libsdk.so " '*.h' '!**/keep.h'
+
+# a name without a slash or glob is a path in the project directory, unlike in .gitignore
+expect "bin/cc lib/libm.so lib/libsdk.so " '*.h' '!keep.h'
+
+# a literal directory excludes everything under it, and a later negation re-includes one file
+expect "bin/cc include/api.h include/keep.h include/sub/keep.h lib/libm.so " "$SDK/lib" "!$SDK/lib/libm.so"
+
+# a glob with a slash is anchored, and a trailing slash only matches directories
+expect "bin/cc include/api.h include/keep.h lib/libm.so lib/libsdk.so " "$SDK/*/sub/"
+expect "bin/cc include/api.h include/keep.h include/sub/keep.h lib/libm.so lib/libsdk.so " "$SDK/*/keep.h/"
+
+# the last matching rule wins
+expect "bin/cc include/api.h include/keep.h include/sub/keep.h lib/libm.so lib/libsdk.so " '*.h' '!*.h'
@@ -0,0 +1,44 @@
+#!/bin/bash
+
+# this tests that a configuration file written by an older version of dux,
+# as a serialized Java object, can still be read, and that rewriting it gives
+# the same file as the one converted to the current format by hand.
+# it needs no backing store.
+
+set -eu
+
+cd shell
+
+cp legacy.dux legacy.rewritten.dux
+../../bazel-bin/dux -f legacy.rewritten.dux --rewrite
+
+if ! cmp legacy.rewritten.dux expected.dux; then
+    echo "rewriting legacy.dux did not give expected.dux"
+    rm -f legacy.rewritten.dux
+    exit 1
+fi
+
+# and the rewritten file can now be queried
+if [ `../../bazel-bin/dux -f legacy.rewritten.dux --query /bin/rm -v error | wc -l` -ne 1 ]; then
+    echo "rewritten legacy.dux could not be queried"
+    rm -f legacy.rewritten.dux
+    exit 1
+fi
+
+rm -f legacy.rewritten.dux
+
+# a rewrite that fails part way, here because the new file may not grow past 2KB,
+# fails and leaves the legacy file as it was
+cp legacy.dux legacy.rewritten.dux
+if (ulimit -f 2; ../../bazel-bin/dux -f legacy.rewritten.dux --rewrite 2> /dev/null); then
+    echo "--rewrite succeeded although the new file could not be written"
+    rm -f legacy.rewritten.dux
+    exit 1
+fi
+if ! cmp legacy.rewritten.dux legacy.dux || [ `ls legacy.rewritten.dux* | wc -l` -ne 1 ]; then
+    echo "a failed --rewrite did not leave legacy.dux as it was"
+    rm -f legacy.rewritten.dux*
+    exit 1
+fi
+
+rm -f legacy.rewritten.dux
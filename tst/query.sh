@@ -0,0 +1,41 @@
+#!/bin/bash
+
+# this tests --query and --queryprefix against the checked-in expected.dux.
+# they only read the configuration file, so no backing store is needed.
+
+set -eu
+
+cd shell
+
+# a path in the configuration prints its hash and path
+if [ "`../../bazel-bin/dux -f expected.dux --query /bin/rm -v error`" != \
+     "825ffb6f0ae0d0868ca349145ffbad85d117bae0bf01591fdbc04d6d03d7de9c /bin/rm" ]; then
+    echo "--query printed the wrong entry for /bin/rm"
+    exit 1
+fi
+
+# a path that is not in it, even a prefix of one, prints nothing and fails
+if ../../bazel-bin/dux -f expected.dux --query /bin/r -v error; then
+    echo "--query succeeded for a path that is not in the configuration"
+    exit 1
+fi
+
+# a directory matches everything under it, with or without a trailing slash
+if [ `../../bazel-bin/dux -f expected.dux --queryprefix /usr/include/x86_64-linux-gnu -v error | wc -l` -ne 32 ]; then
+    echo "--queryprefix found the wrong number of entries under /usr/include/x86_64-linux-gnu"
+    exit 1
+fi
+if [ `../../bazel-bin/dux -f expected.dux --queryprefix /usr/include/x86_64-linux-gnu/bits/ -v error | wc -l` -ne 24 ]; then
+    echo "--queryprefix found the wrong number of entries under /usr/include/x86_64-linux-gnu/bits/"
+    exit 1
+fi
+if [ `../../bazel-bin/dux -f expected.dux --queryprefix / -v error | wc -l` -ne 72 ]; then
+    echo "--queryprefix / did not find every entry"
+    exit 1
+fi
+
+# a prefix that is not a whole directory name matches nothing
+if ../../bazel-bin/dux -f expected.dux --queryprefix /usr/include/x86_64-linux -v error; then
+    echo "--queryprefix matched part of a directory name"
+    exit 1
+fi
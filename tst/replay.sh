@@ -0,0 +1,45 @@
+#!/bin/bash
+
+# this tests replaying a trace kept by an earlier run (--replay), without strace,
+# and checking the configuration against a local backing store (-s local), so it
+# needs no cloud credentials.
+
+set -eu
+
+cd shell
+
+. ../sdktrace.sh
+trap "rm -rf $WORK" EXIT
+
+DUX="../../bazel-bin/dux -s local --storeroot $STORE"
+
+$DUX --replay $WORK/trace.log -f $WORK/build.dux
+
+# every file the trace opened or executed successfully is recorded, once
+if [ `$DUX -f $WORK/build.dux --queryprefix $SDK -v error | wc -l` -ne 6 ]; then
+    echo "replay did not record the six files of the SDK"
+    $DUX -f $WORK/build.dux --queryprefix $SDK -v error
+    exit 1
+fi
+for f in bin/cc include/api.h include/keep.h include/sub/keep.h lib/libm.so lib/libsdk.so; do
+    if ! $DUX -f $WORK/build.dux --query $SDK/$f -v error > /dev/null; then
+        echo "replay did not record $SDK/$f"
+        exit 1
+    fi
+done
+
+# without --command, the command is the first program the trace ran
+if [ `$DUX -f $WORK/build.dux -d | grep "command='$SDK/bin/cc'" | wc -l` -ne 1 ]; then
+    echo "replay did not record the traced command"
+    exit 1
+fi
+
+# remove a dependency and see that the check pulls it back from the local store
+cp $SDK/lib/libm.so $WORK/libm.so
+rm $SDK/lib/libm.so
+$DUX -f $WORK/build.dux -k
+
+if ! cmp $SDK/lib/libm.so $WORK/libm.so; then
+    echo "Failed to pull missing dependency back from the local store"
+    exit 1
+fi
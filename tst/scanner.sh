@@ -0,0 +1,83 @@
+#!/bin/bash
+
+# this tests the strace line scanner, by replaying (--replay) a trace in the forms
+# "strace -f" prints to a terminal: "[pid N]" prefixes, calls split into
+# "<unfinished ...>" and "<... resumed>" halves by other processes, paths with
+# escaped quotes, commas and parens, and calls whose return value is "?".
+# it needs neither strace nor cloud credentials.
+
+set -eu
+
+cd shell
+
+WORK=`mktemp -d`
+trap "rm -rf $WORK" EXIT
+DIR=$WORK/files
+DUX="../../bazel-bin/dux -s local --storeroot $WORK/store"
+
+mkdir -p $DIR/bin $DIR/inc $WORK/store
+for f in bin/tool bin/gone inc/nopid.h 'inc/say "hi".h' 'inc/a,b (c).h' inc/slow.h inc/other.h \
+         inc/failed.h inc/lost.h inc/late.h inc/after.h; do
+    echo "$f" > "$DIR/$f"
+done
+
+# before the first fork, strace -f prints no pid at all
+cat > $WORK/trace.log <<TRACE
+execve("$DIR/bin/tool", ["tool", "-c"], 0x7ffd5e1c2a48 /* 24 vars */) = 0
+openat(AT_FDCWD, "$DIR/inc/nopid.h", O_RDONLY) = 3</$DIR/inc/nopid.h>
+clone(child_stack=NULL, flags=CLONE_CHILD_CLEARTID|CLONE_CHILD_SETTID|SIGCHLD, child_tidptr=0x7f0e4e1d0a10) = 4201
+[pid  4200] openat(AT_FDCWD, "$DIR/inc/say \"hi\".h", O_RDONLY) = 4</$DIR/inc/say "hi".h>
+[pid  4200] openat(AT_FDCWD, "$DIR/inc/a,b (c).h", O_RDONLY|O_CLOEXEC) = 5</$DIR/inc/a,b (c).h>
+[pid  4200] openat(AT_FDCWD, "$DIR/inc/slow.h", O_RDONLY <unfinished ...>
+[pid  4201] openat(AT_FDCWD, "$DIR/inc/other.h", O_RDONLY <unfinished ...>
+[pid  4200] <... openat resumed>) = 6</$DIR/inc/slow.h>
+[pid  4201] <... openat resumed>) = 3</$DIR/inc/other.h>
+[pid  4201] openat(AT_FDCWD, "$DIR/inc/failed.h", O_RDONLY) = -1 EACCES (Permission denied)
+[pid  4202] openat(AT_FDCWD, "$DIR/inc/lost.h", O_RDONLY <unfinished ...>
+[pid  4202] <... openat resumed>) = ?
+[pid  4202] +++ killed by SIGKILL +++
+[pid  4201] openat(AT_FDCWD, "$DIR/inc/late.h", O_RDONLY) = ?
+[pid  4203] execve("$DIR/bin/gone", ["gone"], 0x7ffd5e1c2b00 /* 24 vars */ <unfinished ...>
+[pid  4203] +++ killed by SIGKILL +++
+[pid  4200] openat(AT_FDCWD, "$DIR/inc/late.h", O_RDONLY) = 7</$DIR/inc/late.h>
+[pid  4200] openat(AT_FDCWD, "$DIR/inc/after.h", O_RDONLY) = 8</$DIR/inc/after.h>
+[pid  4201] +++ exited with 0 +++
++++ exited with 0 +++
+TRACE
+
+$DUX --replay $WORK/trace.log -f $WORK/build.dux
+
+# recorded: every call that succeeded, including each half of the interleaved pairs,
+# and late.h, whose first open did not say whether it succeeded.
+# not recorded: the failed open, the open whose result was lost, and the exec that
+# never finished
+expected="bin/tool
+inc/a,b (c).h
+inc/after.h
+inc/late.h
+inc/nopid.h
+inc/other.h
+inc/say \"hi\".h
+inc/slow.h"
+actual=`$DUX -f $WORK/build.dux --queryprefix $DIR -v error | sed "s|^[0-9a-f]* $DIR/||" | LC_ALL=C sort`
+if [ "$actual" != "$expected" ]; then
+    echo "expected these files to be recorded:"
+    echo "$expected"
+    echo "but recorded:"
+    echo "$actual"
+    exit 1
+fi
+
+# the quoted path is recorded unescaped, with the hash of the file it names
+QUOTED="$DIR/inc/say \"hi\".h"
+if [ "$($DUX -f $WORK/build.dux --query "$QUOTED" -v error | cut -d' ' -f1)" != \
+     "$(sha256sum "$QUOTED" | cut -d' ' -f1)" ]; then
+    echo "the path with escaped quotes was not recorded with the hash of its file"
+    exit 1
+fi
+
+# the first exec that succeeded is the command
+if [ `$DUX -f $WORK/build.dux -d | grep "command='$DIR/bin/tool'" | wc -l` -ne 1 ]; then
+    echo "replay did not record the traced command"
+    exit 1
+fi
@@ -0,0 +1,37 @@
+# sourced by the tests that replay a trace instead of running strace.
+#
+# makes a small SDK under a new temporary directory $WORK, and writes to
+# $WORK/trace.log what "strace -f -y" prints for a compiler that runs from it:
+# an exec, opens through AT_FDCWD and through a directory fd, an open that is
+# interrupted by another process, a readlink and a failed open.
+# $SDK is the SDK's root and $STORE an empty directory for a local store.
+
+WORK=`mktemp -d`
+SDK=$WORK/sdk
+STORE=$WORK/store
+
+mkdir -p $SDK/bin $SDK/include/sub $SDK/lib $STORE
+echo "#!/bin/sh" > $SDK/bin/cc
+echo "int api(void);" > $SDK/include/api.h
+echo "#define KEEP 1" > $SDK/include/keep.h
+echo "#define SUB_KEEP 1" > $SDK/include/sub/keep.h
+echo "libsdk contents" > $SDK/lib/libsdk.so.1
+echo "libm contents" > $SDK/lib/libm.so
+ln -s libsdk.so.1 $SDK/lib/libsdk.so
+
+cat > $WORK/trace.log <<TRACE
+4100  execve("$SDK/bin/cc", ["cc", "-c", "main.c"], 0x7ffd5e1c2a48 /* 24 vars */) = 0
+4100  openat(AT_FDCWD, "$SDK/include/api.h", O_RDONLY) = 3</$SDK/include/api.h>
+4100  openat(AT_FDCWD, "$SDK/include", O_RDONLY|O_DIRECTORY) = 4</$SDK/include>
+4100  openat(4</$SDK/include>, "keep.h", O_RDONLY) = 5</$SDK/include/keep.h>
+4100  openat(4</$SDK/include>, "sub/keep.h", O_RDONLY) = 6</$SDK/include/sub/keep.h>
+4100  openat(AT_FDCWD, "$SDK/include/missing.h", O_RDONLY) = -1 ENOENT (No such file or directory)
+4100  clone(child_stack=NULL, flags=CLONE_CHILD_CLEARTID|CLONE_CHILD_SETTID|SIGCHLD, child_tidptr=0x7f0e4e1d0a10) = 4101
+4101  openat(AT_FDCWD, "$SDK/lib/libm.so", O_RDONLY|O_CLOEXEC <unfinished ...>
+4100  close(3</$SDK/include/api.h>) = 0
+4101  <... openat resumed>) = 3</$SDK/lib/libm.so>
+4101  readlink("$SDK/lib/libsdk.so", "libsdk.so.1", 4095) = 11
+4101  openat(AT_FDCWD, "$SDK/lib/libsdk.so", O_RDONLY|O_CLOEXEC) = 4</$SDK/lib/libsdk.so.1>
+4101  +++ exited with 0 +++
+4100  +++ exited with 0 +++
+TRACE